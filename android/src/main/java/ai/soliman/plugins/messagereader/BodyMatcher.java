@@ -0,0 +1,300 @@
+package ai.soliman.plugins.messagereader;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Checks message bodies against the regex and keyword filters of a
+ * {@link GetMessageFilterInput}. The providers first narrow the rows with
+ * {@code LIKE} prefilters from {@link #likeGroups}, which may let through rows
+ * that do not match; this matcher then decides on the bodies that were read.
+ * Compiled patterns are shared across calls in a small LRU cache.
+ */
+final class BodyMatcher {
+    private static final int PATTERN_CACHE_SIZE = 64;
+    /** Shorter literals filter too little to be worth a LIKE. */
+    private static final int MIN_PREFILTER_LENGTH = 2;
+    /** Keeps the prefilter to a few bound arguments, leaving the rest of the limit to ids. */
+    private static final int MAX_PREFILTER_ARGS = 16;
+    static final String[] NO_CAPTURES = new String[0];
+
+    private static final LinkedHashMap<String, Pattern> PATTERNS = new LinkedHashMap<>(16, 0.75f, true);
+
+    private final Pattern pattern;
+    private final List<String> anyTerms;
+    private final List<String> allTerms;
+    private final boolean captures;
+
+    private BodyMatcher(Pattern pattern, List<String> anyTerms, List<String> allTerms, boolean captures) {
+        this.pattern = pattern;
+        this.anyTerms = anyTerms;
+        this.allTerms = allTerms;
+        this.captures = captures;
+    }
+
+    /**
+     * Returns the matcher of the filter, or null when it has no regex or keyword filter.
+     */
+    static BodyMatcher forFilter(GetMessageFilterInput filter) {
+        if (!filter.hasBodyMatch()) {
+            return null;
+        }
+        Pattern pattern = filter.getBodyRegex() != null ? compile(filter.getBodyRegex()) : null;
+        return new BodyMatcher(pattern, lowerCase(filter.getBodyAnyOf()), lowerCase(filter.getBodyAllOf()),
+                pattern != null && filter.returnsCaptures());
+    }
+
+    /**
+     * Compiles a regex, or returns the pattern compiled for it by an earlier call.
+     *
+     * @throws java.util.regex.PatternSyntaxException if the regex is invalid.
+     */
+    static Pattern compile(String regex) {
+        synchronized (PATTERNS) {
+            Pattern pattern = PATTERNS.get(regex);
+            if (pattern != null) {
+                return pattern;
+            }
+        }
+        // Compiled outside the lock; a race only compiles the same pattern twice
+        Pattern pattern = Pattern.compile(regex);
+        synchronized (PATTERNS) {
+            PATTERNS.put(regex, pattern);
+            Iterator<String> eldest = PATTERNS.keySet().iterator();
+            while (PATTERNS.size() > PATTERN_CACHE_SIZE && eldest.hasNext()) {
+                eldest.next();
+                eldest.remove();
+            }
+        }
+        return pattern;
+    }
+
+    /**
+     * Matches a body. Returns null when it does not match, otherwise the
+     * captures of the first regex match: its groups, or the whole match when
+     * the regex has none. Without captures the result is empty.
+     */
+    String[] match(String body) {
+        if (body == null) {
+            return null;
+        }
+        if (!anyTerms.isEmpty() || !allTerms.isEmpty()) {
+            String lowerBody = body.toLowerCase(Locale.ROOT);
+            for (String term : allTerms) {
+                if (!lowerBody.contains(term)) {
+                    return null;
+                }
+            }
+            if (!anyTerms.isEmpty() && !containsAny(lowerBody, anyTerms)) {
+                return null;
+            }
+        }
+        if (pattern == null) {
+            return NO_CAPTURES;
+        }
+        Matcher matcher = pattern.matcher(body);
+        if (!matcher.find()) {
+            return null;
+        }
+        if (!captures) {
+            return NO_CAPTURES;
+        }
+        if (matcher.groupCount() == 0) {
+            return new String[]{matcher.group()};
+        }
+        String[] groups = new String[matcher.groupCount()];
+        for (int i = 0; i < groups.length; i++) {
+            groups[i] = matcher.group(i + 1);
+        }
+        return groups;
+    }
+
+    /**
+     * Returns the {@code LIKE} patterns a matching body has to satisfy: every
+     * group must have at least one pattern that matches. Only ASCII literals
+     * are used, since SQLite's LIKE ignores case for ASCII only, so the
+     * prefilter never drops a row the matcher would keep. Groups past
+     * {@code MAX_PREFILTER_ARGS} patterns are left to the matcher.
+     */
+    static List<List<String>> likeGroups(GetMessageFilterInput filter) {
+        List<List<String>> groups = new ArrayList<>();
+        // The plain body filter is only checked here for SMS, so it always goes first
+        if (filter.getBody() != null && !filter.getBody().isEmpty()) {
+            groups.add(Collections.singletonList("%" + filter.getBody() + "%"));
+        }
+        if (!filter.hasBodyMatch()) {
+            return groups;
+        }
+        int args = groups.size();
+        String literal = filter.getBodyRegex() != null ? requiredLiteral(filter.getBodyRegex()) : null;
+        if (literal != null) {
+            groups.add(Collections.singletonList("%" + literal + "%"));
+            args++;
+        }
+        for (String term : filter.getBodyAllOf()) {
+            if (isLikeLiteral(term) && args < MAX_PREFILTER_ARGS) {
+                groups.add(Collections.singletonList("%" + term + "%"));
+                args++;
+            }
+        }
+        List<String> anyOf = new ArrayList<>();
+        for (String term : filter.getBodyAnyOf()) {
+            if (!isLikeLiteral(term)) {
+                // One term that cannot be prefiltered lets every row through
+                anyOf = null;
+                break;
+            }
+            anyOf.add("%" + term + "%");
+        }
+        if (anyOf != null && !anyOf.isEmpty() && args + anyOf.size() <= MAX_PREFILTER_ARGS) {
+            groups.add(anyOf);
+        }
+        return groups;
+    }
+
+    /**
+     * Returns the longest run of plain characters every match of the regex
+     * contains, or null if none is found. The scan is conservative: anything
+     * it does not understand ends the current run, and alternations, inline
+     * flags, quoting and nested classes disable it.
+     */
+    static String requiredLiteral(String regex) {
+        if (regex.contains("(?") || regex.contains("\\Q")) {
+            return null;
+        }
+        String longest = "";
+        StringBuilder run = new StringBuilder();
+        int depth = 0;
+        for (int i = 0; i < regex.length(); i++) {
+            char c = regex.charAt(i);
+            if (c == '\\') {
+                // Escapes are classes (\d), anchors (\b) or quoted literals; skip them
+                i++;
+                longest = longer(longest, run);
+                continue;
+            }
+            if (c == '[') {
+                longest = longer(longest, run);
+                i = skipClass(regex, i);
+                if (i < 0) {
+                    return null;
+                }
+                continue;
+            }
+            if (c == '|') {
+                if (depth == 0) {
+                    return null;
+                }
+                continue;
+            }
+            if (c == '(' || c == ')') {
+                depth += c == '(' ? 1 : -1;
+                longest = longer(longest, run);
+                continue;
+            }
+            if (depth > 0) {
+                continue;
+            }
+            if (c == '?' || c == '*' || c == '{') {
+                // The previous char is optional
+                if (run.length() > 0) {
+                    run.setLength(run.length() - 1);
+                }
+                longest = longer(longest, run);
+                if (c == '{') {
+                    int end = regex.indexOf('}', i);
+                    i = end >= 0 ? end : regex.length();
+                }
+                continue;
+            }
+            if (c == '+') {
+                // The previous char repeats, so the run cannot go on past it
+                longest = longer(longest, run);
+                continue;
+            }
+            if (c == '.' || c == '^' || c == '$' || !isLikeLiteral(String.valueOf(c))) {
+                longest = longer(longest, run);
+                continue;
+            }
+            run.append(c);
+        }
+        longest = longer(longest, run);
+        return longest.length() >= MIN_PREFILTER_LENGTH ? longest : null;
+    }
+
+    /**
+     * Returns the index of the {@code ]} closing the class opened at
+     * {@code start}, or -1 for nested or unterminated classes.
+     */
+    private static int skipClass(String regex, int start) {
+        int i = start + 1;
+        if (i < regex.length() && regex.charAt(i) == '^') {
+            i++;
+        }
+        if (i < regex.length() && regex.charAt(i) == ']') {
+            i++;
+        }
+        for (; i < regex.length(); i++) {
+            char c = regex.charAt(i);
+            if (c == '\\') {
+                i++;
+            } else if (c == '[') {
+                return -1;
+            } else if (c == ']') {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Returns the longer of the two and clears the run.
+     */
+    private static String longer(String longest, StringBuilder run) {
+        String candidate = run.toString();
+        run.setLength(0);
+        return candidate.length() > longest.length() ? candidate : longest;
+    }
+
+    /**
+     * Whether the term can be used in a LIKE pattern as is: ASCII without the
+     * LIKE wildcards.
+     */
+    private static boolean isLikeLiteral(String term) {
+        if (term == null || term.isEmpty()) {
+            return false;
+        }
+        for (int i = 0; i < term.length(); i++) {
+            char c = term.charAt(i);
+            if (c >= 0x80 || c < 0x20 || c == '%' || c == '_') {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean containsAny(String body, List<String> terms) {
+        for (String term : terms) {
+            if (body.contains(term)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static List<String> lowerCase(List<String> terms) {
+        List<String> lower = new ArrayList<>(terms.size());
+        for (String term : terms) {
+            if (term != null && !term.isEmpty()) {
+                lower.add(term.toLowerCase(Locale.ROOT));
+            }
+        }
+        return lower;
+    }
+}
@@ -0,0 +1,138 @@
+package ai.soliman.plugins.messagereader;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Per-stage durations and counts of a single read, filled in by
+ * {@link MessageReader} while metrics are enabled. Stages nest: the SMS and
+ * MMS pipelines run in parallel and include their queries, and
+ * {@code mmsTexts} includes the {@code partStreams} it opens.
+ */
+public class CallMetrics {
+    public static final String SMS_QUERY = "smsQuery";
+    public static final String SMS_PIPELINE = "smsPipeline";
+    public static final String MMS_QUERY = "mmsQuery";
+    public static final String MMS_SNAPSHOT = "mmsSnapshot";
+    public static final String MMS_ADDRESSES = "mmsAddresses";
+    public static final String MMS_TEXTS = "mmsTexts";
+    public static final String PART_STREAMS = "partStreams";
+    public static final String MMS_PIPELINE = "mmsPipeline";
+    public static final String MERGE = "merge";
+    public static final String JSON = "json";
+    public static final String TOTAL = "total";
+
+    private final long startNanos = System.nanoTime();
+    /** Per stage: total nanos, times recorded and rows handled. */
+    private final Map<String, long[]> stages = new LinkedHashMap<>();
+    private long providerQueries;
+    private long streamOpens;
+    private long streamChars;
+    private long rows;
+    private long textChars;
+    private boolean cacheHit;
+
+    synchronized void record(String stage, long nanos, long stageRows) {
+        long[] totals = stages.get(stage);
+        if (totals == null) {
+            totals = new long[3];
+            stages.put(stage, totals);
+        }
+        totals[0] += nanos;
+        totals[1]++;
+        totals[2] += stageRows;
+    }
+
+    synchronized void onQuery() {
+        providerQueries++;
+    }
+
+    synchronized void onStreamOpen() {
+        streamOpens++;
+    }
+
+    synchronized void onStreamRead(long chars) {
+        streamChars += chars;
+    }
+
+    synchronized void onCacheHit() {
+        cacheHit = true;
+    }
+
+    /**
+     * Records the messages returned and the chars of their senders and bodies.
+     */
+    synchronized void onRowsReturned(MessageRows messages) {
+        rows += messages.size();
+        for (int i = 0; i < messages.size(); i++) {
+            String sender = messages.getSender(i);
+            String body = messages.getBody(i);
+            textChars += (sender != null ? sender.length() : 0) + (body != null ? body.length() : 0);
+        }
+    }
+
+    /**
+     * Records the time the caller spent building the result, e.g. the JSON
+     * sent over the bridge.
+     */
+    public void recordSerialization(long nanos, long serializedRows) {
+        record(JSON, nanos, serializedRows);
+    }
+
+    /**
+     * Closes the measurement: the {@code total} stage spans from creation to now.
+     */
+    public synchronized void finish() {
+        if (!stages.containsKey(TOTAL)) {
+            record(TOTAL, System.nanoTime() - startNanos, rows);
+        }
+    }
+
+    /**
+     * Returns the nanos recorded per stage.
+     */
+    public synchronized Map<String, Long> getStageNanos() {
+        Map<String, Long> nanos = new LinkedHashMap<>();
+        for (Map.Entry<String, long[]> stage : stages.entrySet()) {
+            nanos.put(stage.getKey(), stage.getValue()[0]);
+        }
+        return nanos;
+    }
+
+    public synchronized long getProviderQueries() { return providerQueries; }
+
+    public synchronized long getStreamOpens() { return streamOpens; }
+
+    public synchronized long getStreamChars() { return streamChars; }
+
+    public synchronized long getRows() { return rows; }
+
+    public synchronized long getTextChars() { return textChars; }
+
+    public synchronized boolean isCacheHit() { return cacheHit; }
+
+    public synchronized JSONObject toJSON() throws JSONException {
+        JSONObject stagesJson = new JSONObject();
+        for (Map.Entry<String, long[]> stage : stages.entrySet()) {
+            long[] totals = stage.getValue();
+            JSONObject stageJson = new JSONObject();
+            stageJson.put("ms", totals[0] / 1e6);
+            stageJson.put("count", totals[1]);
+            stageJson.put("rows", totals[2]);
+            stagesJson.put(stage.getKey(), stageJson);
+        }
+
+        JSONObject diagnostics = new JSONObject();
+        diagnostics.put("stages", stagesJson);
+        diagnostics.put("rows", rows);
+        diagnostics.put("textChars", textChars);
+        diagnostics.put("providerQueries", providerQueries);
+        diagnostics.put("streamOpens", streamOpens);
+        diagnostics.put("streamChars", streamChars);
+        diagnostics.put("cacheHit", cacheHit);
+        return diagnostics;
+    }
+}
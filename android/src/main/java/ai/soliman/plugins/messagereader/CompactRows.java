@@ -0,0 +1,239 @@
+package ai.soliman.plugins.messagereader;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Writes {@link MessageRows} in the compact wire format: a JSON array holding
+ * one array per message, with the values in the order of the given fields.
+ * Strings are escaped in a single pass straight from the row columns into a
+ * char buffer that is reused by the next page written on the same thread, so
+ * no per-message JSON objects are built.
+ */
+final class CompactRows {
+    private static final int INITIAL_BUFFER_SIZE = 32 * 1024;
+    /** Larger buffers, in chars, are dropped after use rather than kept per thread. */
+    private static final int MAX_RETAINED_BUFFER_SIZE = 2 * 1024 * 1024;
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+    private static final char[] NULL = {'n', 'u', 'l', 'l'};
+
+    private static final ThreadLocal<CompactRows> WRITERS = new ThreadLocal<CompactRows>() {
+        @Override
+        protected CompactRows initialValue() {
+            return new CompactRows();
+        }
+    };
+
+    private char[] buffer = new char[INITIAL_BUFFER_SIZE];
+    private int length;
+    private final char[] digits = new char[20];
+
+    private CompactRows() {
+    }
+
+    /**
+     * Returns the compact JSON of the messages, ready to be sent over the
+     * bridge as a single string.
+     */
+    static String encode(MessageRows messages, List<String> fields) {
+        CompactRows writer = WRITERS.get();
+        try {
+            writer.write(messages, fields);
+            return new String(writer.buffer, 0, writer.length);
+        } finally {
+            writer.release();
+        }
+    }
+
+    private void write(MessageRows messages, List<String> fields) {
+        length = 0;
+        ensure(2);
+        buffer[length++] = '[';
+        for (int i = 0; i < messages.size(); i++) {
+            ensure(2);
+            if (i > 0) {
+                buffer[length++] = ',';
+            }
+            buffer[length++] = '[';
+            for (int f = 0; f < fields.size(); f++) {
+                if (f > 0) {
+                    ensure(1);
+                    buffer[length++] = ',';
+                }
+                writeField(messages, i, fields.get(f));
+            }
+            ensure(1);
+            buffer[length++] = ']';
+        }
+        ensure(1);
+        buffer[length++] = ']';
+    }
+
+    private void writeField(MessageRows messages, int index, String field) {
+        switch (field) {
+            case "id":
+                writeLong(messages.getId(index));
+                break;
+            case "sender":
+                writeString(messages.getSender(index));
+                break;
+            case "body":
+                writeString(messages.getBody(index));
+                break;
+            case "date":
+                writeLong(messages.getDate(index));
+                break;
+            case "messageType":
+                writeString(messages.getMessageType(index));
+                break;
+            case "type":
+                writeString(messages.getBoxName(index));
+                break;
+            case "captures":
+                writeStrings(messages.getCaptures(index));
+                break;
+            case "subscriptionId":
+                if (messages.getSubscriptionId(index) != MessageRows.SUBSCRIPTION_UNKNOWN) {
+                    writeLong(messages.getSubscriptionId(index));
+                } else {
+                    writeString(null);
+                }
+                break;
+            default:
+                writeString(null);
+                break;
+        }
+    }
+
+    private void writeStrings(String[] values) {
+        if (values == null) {
+            writeString(null);
+            return;
+        }
+        ensure(1);
+        buffer[length++] = '[';
+        for (int i = 0; i < values.length; i++) {
+            if (i > 0) {
+                ensure(1);
+                buffer[length++] = ',';
+            }
+            writeString(values[i]);
+        }
+        ensure(1);
+        buffer[length++] = ']';
+    }
+
+    private void writeLong(long value) {
+        if (value == Long.MIN_VALUE) {
+            writeAscii(Long.toString(value));
+            return;
+        }
+        ensure(20);
+        if (value < 0) {
+            buffer[length++] = '-';
+            value = -value;
+        }
+        int count = 0;
+        do {
+            digits[count++] = (char) ('0' + value % 10);
+            value /= 10;
+        } while (value != 0);
+        while (count > 0) {
+            buffer[length++] = digits[--count];
+        }
+    }
+
+    private void writeAscii(String value) {
+        ensure(value.length());
+        for (int i = 0; i < value.length(); i++) {
+            buffer[length++] = value.charAt(i);
+        }
+    }
+
+    /**
+     * Writes a JSON string, escaping quotes, backslashes and control chars.
+     * Lone surrogates become U+FFFD, so the payload is always valid UTF-16.
+     */
+    private void writeString(String value) {
+        if (value == null) {
+            ensure(NULL.length);
+            System.arraycopy(NULL, 0, buffer, length, NULL.length);
+            length += NULL.length;
+            return;
+        }
+        int count = value.length();
+        // One char per char, except for escapes, which grow the buffer as needed
+        ensure(count + 2);
+        char[] out = buffer;
+        int pos = length;
+        out[pos++] = '"';
+        for (int i = 0; i < count; i++) {
+            char c = value.charAt(i);
+            if (c == '"' || c == '\\' || c < 0x20) {
+                length = pos;
+                ensure(6 + (count - i) + 1);
+                out = buffer;
+                pos = c < 0x20 ? writeControl(out, pos, c) : writeEscaped(out, pos, c);
+            } else if (!Character.isSurrogate(c)) {
+                out[pos++] = c;
+            } else if (Character.isHighSurrogate(c) && i + 1 < count
+                    && Character.isLowSurrogate(value.charAt(i + 1))) {
+                out[pos++] = c;
+                out[pos++] = value.charAt(++i);
+            } else {
+                out[pos++] = '\ufffd';
+            }
+        }
+        out[pos++] = '"';
+        length = pos;
+    }
+
+    private static int writeEscaped(char[] out, int pos, char c) {
+        out[pos++] = '\\';
+        out[pos++] = c;
+        return pos;
+    }
+
+    private static int writeControl(char[] out, int pos, char c) {
+        out[pos++] = '\\';
+        switch (c) {
+            case '\n':
+                out[pos++] = 'n';
+                break;
+            case '\r':
+                out[pos++] = 'r';
+                break;
+            case '\t':
+                out[pos++] = 't';
+                break;
+            case '\b':
+                out[pos++] = 'b';
+                break;
+            case '\f':
+                out[pos++] = 'f';
+                break;
+            default:
+                out[pos++] = 'u';
+                out[pos++] = '0';
+                out[pos++] = '0';
+                out[pos++] = HEX[c >> 4];
+                out[pos++] = HEX[c & 0xf];
+                break;
+        }
+        return pos;
+    }
+
+    private void ensure(int extra) {
+        int needed = length + extra;
+        if (needed > buffer.length) {
+            buffer = Arrays.copyOf(buffer, Math.max(needed, buffer.length * 2));
+        }
+    }
+
+    private void release() {
+        length = 0;
+        if (buffer.length > MAX_RETAINED_BUFFER_SIZE) {
+            buffer = new char[INITIAL_BUFFER_SIZE];
+        }
+    }
+}
@@ -1,16 +1,63 @@
 package ai.soliman.plugins.messagereader;
 
+import org.json.JSONObject;
+
 import java.util.List;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.Set;
 
 public class GetMessageFilterInput {
+    /**
+     * How much of each message to load. {@code IDS} returns ids, dates and
+     * types only, {@code HEADERS} adds senders, boxes and subscriptions,
+     * {@code FULL} adds bodies.
+     */
+    public enum Detail {
+        IDS, HEADERS, FULL;
+
+        public static Detail parse(String value) {
+            if (value == null) {
+                return FULL;
+            }
+            switch (value) {
+                case "ids":
+                    return IDS;
+                case "headers":
+                    return HEADERS;
+                case "full":
+                    return FULL;
+                default:
+                    throw new IllegalArgumentException("Invalid detail: " + value);
+            }
+        }
+    }
+
     private List<String> ids;
     private String body;
+    private String bodyRegex;
+    private List<String> bodyAnyOf;
+    private List<String> bodyAllOf;
+    private boolean captureGroups;
     private String sender;
+    private List<String> senders;
+    private boolean normalizeSenders;
     private Long minDate;
     private Long maxDate;
     private Integer indexFrom;
     private Integer limit;
+    private Integer maxRows;
+    private Long maxBytes;
+    private PageToken pageToken;
+    private String threadId;
+    private Detail detail;
+    private List<String> fields;
+    private Integer bodyPreviewLength;
+    private List<String> boxes;
+    private List<Integer> subscriptionIds;
+    private SyncWatermark sinceWatermark;
+    private SyncWatermark untilWatermark;
 
     // Getters and setters
     public List<String> getIds() {
@@ -22,12 +69,93 @@ public class GetMessageFilterInput {
     public String getBody() { return body; }
     public void setBody(String body) { this.body = body; }
 
+    /**
+     * A Java regex the body must contain a match of, or null.
+     */
+    public String getBodyRegex() { return bodyRegex; }
+
+    /**
+     * @throws java.util.regex.PatternSyntaxException if the regex is invalid.
+     */
+    public void setBodyRegex(String bodyRegex) {
+        if (bodyRegex != null) {
+            BodyMatcher.compile(bodyRegex);
+        }
+        this.bodyRegex = bodyRegex;
+    }
+
+    /**
+     * Terms the body must contain at least one of, ignoring case.
+     */
+    public List<String> getBodyAnyOf() {
+        return bodyAnyOf != null ? bodyAnyOf : new ArrayList<String>();
+    }
+
+    public void setBodyAnyOf(List<String> bodyAnyOf) { this.bodyAnyOf = bodyAnyOf; }
+
+    /**
+     * Terms the body must contain all of, ignoring case.
+     */
+    public List<String> getBodyAllOf() {
+        return bodyAllOf != null ? bodyAllOf : new ArrayList<String>();
+    }
+
+    public void setBodyAllOf(List<String> bodyAllOf) { this.bodyAllOf = bodyAllOf; }
+
+    public boolean isCaptureGroups() { return captureGroups; }
+    public void setCaptureGroups(boolean captureGroups) { this.captureGroups = captureGroups; }
+
+    /**
+     * Whether bodies have to be checked by a {@link BodyMatcher} once read,
+     * because a regex or keyword filter cannot be evaluated by the providers.
+     */
+    public boolean hasBodyMatch() {
+        return bodyRegex != null || !getBodyAnyOf().isEmpty() || !getBodyAllOf().isEmpty();
+    }
+
+    /**
+     * Whether any body filter is set, so bodies have to be read to select rows.
+     */
+    public boolean hasBodyFilter() {
+        return (body != null && !body.isEmpty()) || hasBodyMatch();
+    }
+
     public String getSender() {
         return sender != null ? sender : "";
     }
 
     public void setSender(String sender) { this.sender = sender; }
 
+    public List<String> getSenders() {
+        return senders != null ? senders : new ArrayList<String>();
+    }
+
+    public void setSenders(List<String> senders) { this.senders = senders; }
+
+    public boolean isNormalizeSenders() { return normalizeSenders; }
+    public void setNormalizeSenders(boolean normalizeSenders) { this.normalizeSenders = normalizeSenders; }
+
+    /**
+     * Returns the addresses a message must match one of: {@code sender} and
+     * {@code senders} combined, without duplicates. Empty when unfiltered.
+     */
+    public List<String> getSenderAddresses() {
+        Set<String> addresses = new LinkedHashSet<>();
+        if (sender != null && !sender.isEmpty()) {
+            addresses.add(sender);
+        }
+        for (String address : getSenders()) {
+            if (address != null && !address.isEmpty()) {
+                addresses.add(address);
+            }
+        }
+        return new ArrayList<>(addresses);
+    }
+
+    public boolean hasSenderFilter() {
+        return (sender != null && !sender.isEmpty()) || !getSenders().isEmpty();
+    }
+
     public Long getMinDate() { return minDate; }
     public void setMinDate(Long minDate) { this.minDate = minDate; }
 
@@ -39,4 +167,252 @@ public class GetMessageFilterInput {
 
     public Integer getLimit() { return limit; }
     public void setLimit(Integer limit) { this.limit = limit; }
+
+    /**
+     * The most messages one page may hold whatever its limit, or null for the
+     * reader's default cap.
+     */
+    public Integer getMaxRows() { return maxRows; }
+    public void setMaxRows(Integer maxRows) { this.maxRows = maxRows; }
+
+    /**
+     * The estimated size one page may take in memory, or null for the reader's
+     * default cap.
+     */
+    public Long getMaxBytes() { return maxBytes; }
+    public void setMaxBytes(Long maxBytes) { this.maxBytes = maxBytes; }
+
+    public PageToken getPageToken() { return pageToken; }
+    public void setPageToken(PageToken pageToken) { this.pageToken = pageToken; }
+
+    public String getThreadId() { return threadId; }
+    public void setThreadId(String threadId) { this.threadId = threadId; }
+
+    public Detail getDetail() {
+        return detail != null ? detail : Detail.FULL;
+    }
+
+    public void setDetail(Detail detail) { this.detail = detail; }
+
+    /**
+     * The message fields to return, or null for all of them.
+     */
+    public List<String> getFields() { return fields; }
+
+    /**
+     * @throws IllegalArgumentException if a field is unknown.
+     */
+    public void setFields(List<String> fields) {
+        if (fields != null) {
+            for (String field : fields) {
+                if (!MessageRows.FIELDS.contains(field)) {
+                    throw new IllegalArgumentException("Invalid field: " + field);
+                }
+            }
+        }
+        this.fields = fields;
+    }
+
+    public Integer getBodyPreviewLength() { return bodyPreviewLength; }
+    public void setBodyPreviewLength(Integer bodyPreviewLength) { this.bodyPreviewLength = bodyPreviewLength; }
+
+    /**
+     * The boxes to read from ({@code inbox}, {@code sent}, ...), or null for all of them.
+     */
+    public List<String> getBoxes() { return boxes; }
+
+    /**
+     * @throws IllegalArgumentException if a box is unknown.
+     */
+    public void setBoxes(List<String> boxes) {
+        if (boxes != null) {
+            for (String box : boxes) {
+                MessageRows.parseBox(box);
+            }
+        }
+        this.boxes = boxes;
+    }
+
+    public boolean hasBoxFilter() {
+        return boxes != null && !boxes.isEmpty();
+    }
+
+    /**
+     * Returns the provider codes of the boxes to read from, as strings for
+     * selection args.
+     */
+    public List<String> getBoxCodes() {
+        List<String> codes = new ArrayList<>();
+        if (boxes != null) {
+            for (String box : boxes) {
+                codes.add(String.valueOf(MessageRows.parseBox(box)));
+            }
+        }
+        return codes;
+    }
+
+    /**
+     * The SIM subscriptions to read from, or null for all of them.
+     */
+    public List<Integer> getSubscriptionIds() { return subscriptionIds; }
+    public void setSubscriptionIds(List<Integer> subscriptionIds) { this.subscriptionIds = subscriptionIds; }
+
+    public boolean hasSubscriptionFilter() {
+        return subscriptionIds != null && !subscriptionIds.isEmpty();
+    }
+
+    public boolean returnsSenders() {
+        return getDetail() != Detail.IDS && (fields == null || fields.contains("sender"));
+    }
+
+    public boolean returnsBoxes() {
+        return getDetail() != Detail.IDS && (fields == null || fields.contains("type"));
+    }
+
+    public boolean returnsSubscriptionIds() {
+        return getDetail() != Detail.IDS && (fields == null || fields.contains("subscriptionId"));
+    }
+
+    public boolean returnsCaptures() {
+        return captureGroups && bodyRegex != null && (fields == null || fields.contains("captures"));
+    }
+
+    public boolean returnsBodies() {
+        return getDetail() == Detail.FULL && (fields == null || fields.contains("body"));
+    }
+
+    /**
+     * Whether the rows read with this filter carry their sender and complete
+     * body, and so can be added to the search index without overwriting
+     * indexed values.
+     */
+    public boolean returnsIndexableRows() {
+        return returnsSenders() && returnsBodies() && bodyPreviewLength == null;
+    }
+
+    public SyncWatermark getSinceWatermark() { return sinceWatermark; }
+    public SyncWatermark getUntilWatermark() { return untilWatermark; }
+
+    /**
+     * Restricts the filter to rows with {@code since < _id <= until}, per provider.
+     * Either bound may be null.
+     */
+    public void setIdRange(SyncWatermark since, SyncWatermark until) {
+        this.sinceWatermark = since;
+        this.untilWatermark = until;
+    }
+
+    /**
+     * Returns a copy of this filter restricted to the given ids.
+     */
+    public GetMessageFilterInput withIds(List<String> ids) {
+        GetMessageFilterInput copy = copy();
+        copy.setIds(ids);
+        return copy;
+    }
+
+    /**
+     * Returns a copy of this filter whose sender filter is exactly the given
+     * addresses; an empty list removes the sender filter.
+     */
+    public GetMessageFilterInput withSenders(List<String> senders) {
+        GetMessageFilterInput copy = copy();
+        copy.setSender(null);
+        copy.setSenders(senders);
+        return copy;
+    }
+
+    /**
+     * Returns a key that is equal for filters selecting the same page, whatever
+     * the order of their ids. Used by {@link MessageCache}.
+     */
+    public String cacheKey() {
+        List<String> sortedIds = new ArrayList<>(getIds());
+        Collections.sort(sortedIds);
+
+        StringBuilder key = new StringBuilder();
+        key.append("ids=").append(sortedIds.size());
+        for (String id : sortedIds) {
+            key.append(',').append(id);
+        }
+        key.append(";body=").append(body != null ? JSONObject.quote(body) : "");
+        key.append(";bodyRegex=").append(bodyRegex != null ? JSONObject.quote(bodyRegex) : "");
+        appendSortedTerms(key, ";bodyAnyOf=", getBodyAnyOf());
+        appendSortedTerms(key, ";bodyAllOf=", getBodyAllOf());
+        key.append(";captures=").append(captureGroups);
+        key.append(";sender=").append(JSONObject.quote(getSender()));
+        List<String> sortedSenders = new ArrayList<>(getSenders());
+        Collections.sort(sortedSenders);
+        key.append(";senders=").append(sortedSenders.size());
+        for (String address : sortedSenders) {
+            key.append(',').append(JSONObject.quote(address));
+        }
+        key.append(";normalize=").append(normalizeSenders);
+        key.append(";minDate=").append(minDate);
+        key.append(";maxDate=").append(maxDate);
+        key.append(";indexFrom=").append(indexFrom);
+        key.append(";limit=").append(limit);
+        key.append(";maxRows=").append(maxRows);
+        key.append(";maxBytes=").append(maxBytes);
+        key.append(";pageToken=").append(pageToken);
+        key.append(";threadId=").append(threadId);
+        key.append(";detail=").append(getDetail());
+        List<String> sortedFields = fields != null ? new ArrayList<>(fields) : null;
+        if (sortedFields != null) {
+            Collections.sort(sortedFields);
+        }
+        key.append(";fields=").append(sortedFields);
+        key.append(";preview=").append(bodyPreviewLength);
+        List<String> sortedBoxes = boxes != null ? new ArrayList<>(boxes) : null;
+        if (sortedBoxes != null) {
+            Collections.sort(sortedBoxes);
+        }
+        key.append(";boxes=").append(sortedBoxes);
+        List<Integer> sortedSubscriptions = subscriptionIds != null ? new ArrayList<>(subscriptionIds) : null;
+        if (sortedSubscriptions != null) {
+            Collections.sort(sortedSubscriptions);
+        }
+        key.append(";subscriptions=").append(sortedSubscriptions);
+        key.append(";since=").append(sinceWatermark);
+        key.append(";until=").append(untilWatermark);
+        return key.toString();
+    }
+
+    private static void appendSortedTerms(StringBuilder key, String name, List<String> terms) {
+        List<String> sorted = new ArrayList<>(terms);
+        Collections.sort(sorted);
+        key.append(name).append(sorted.size());
+        for (String term : sorted) {
+            key.append(',').append(JSONObject.quote(term));
+        }
+    }
+
+    public GetMessageFilterInput copy() {
+        GetMessageFilterInput copy = new GetMessageFilterInput();
+        copy.ids = ids;
+        copy.body = body;
+        copy.bodyRegex = bodyRegex;
+        copy.bodyAnyOf = bodyAnyOf;
+        copy.bodyAllOf = bodyAllOf;
+        copy.captureGroups = captureGroups;
+        copy.sender = sender;
+        copy.senders = senders;
+        copy.normalizeSenders = normalizeSenders;
+        copy.minDate = minDate;
+        copy.maxDate = maxDate;
+        copy.indexFrom = indexFrom;
+        copy.limit = limit;
+        copy.maxRows = maxRows;
+        copy.maxBytes = maxBytes;
+        copy.pageToken = pageToken;
+        copy.threadId = threadId;
+        copy.detail = detail;
+        copy.fields = fields;
+        copy.bodyPreviewLength = bodyPreviewLength;
+        copy.boxes = boxes;
+        copy.subscriptionIds = subscriptionIds;
+        copy.sinceWatermark = sinceWatermark;
+        copy.untilWatermark = untilWatermark;
+        return copy;
+    }
 }
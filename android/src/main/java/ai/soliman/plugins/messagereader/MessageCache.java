@@ -0,0 +1,114 @@
+package ai.soliman.plugins.messagereader;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * LRU cache of getMessages results keyed by the normalized filter, bounded
+ * both by entry count and by an estimate of the retained size in bytes.
+ * The whole cache is dropped when the SMS/MMS providers report a change.
+ */
+public class MessageCache {
+    public static final int DEFAULT_MAX_ENTRIES = 32;
+    public static final long DEFAULT_MAX_BYTES = 4L * 1024 * 1024;
+
+    private final int maxEntries;
+    private final long maxBytes;
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private long bytes;
+    private long generation;
+
+    private long hits;
+    private long misses;
+    private long evictions;
+    private long invalidations;
+
+    public MessageCache(int maxEntries, long maxBytes) {
+        this.maxEntries = Math.max(maxEntries, 1);
+        this.maxBytes = Math.max(maxBytes, 0);
+    }
+
+    /**
+     * Returns the current generation, to be passed back to {@link #put} so
+     * that results read before an invalidation are not stored afterwards.
+     */
+    public synchronized long getGeneration() {
+        return generation;
+    }
+
+    public synchronized MessageRows get(String key) {
+        Entry entry = entries.get(key);
+        if (entry == null) {
+            misses++;
+            return null;
+        }
+        hits++;
+        return entry.messages;
+    }
+
+    public synchronized void put(String key, MessageRows messages, long readGeneration) {
+        if (readGeneration != generation) {
+            return;
+        }
+        long size = estimateBytes(key, messages);
+        if (size > maxBytes) {
+            return;
+        }
+
+        Entry previous = entries.put(key, new Entry(messages, size));
+        if (previous != null) {
+            bytes -= previous.bytes;
+        }
+        bytes += size;
+
+        Iterator<Map.Entry<String, Entry>> eldest = entries.entrySet().iterator();
+        while ((entries.size() > maxEntries || bytes > maxBytes) && eldest.hasNext()) {
+            Entry evicted = eldest.next().getValue();
+            eldest.remove();
+            bytes -= evicted.bytes;
+            evictions++;
+        }
+    }
+
+    public synchronized void invalidate() {
+        entries.clear();
+        bytes = 0;
+        generation++;
+        invalidations++;
+    }
+
+    public synchronized JSONObject getStats() throws JSONException {
+        JSONObject stats = new JSONObject();
+        stats.put("entries", entries.size());
+        stats.put("bytes", bytes);
+        stats.put("maxEntries", maxEntries);
+        stats.put("maxBytes", maxBytes);
+        stats.put("hits", hits);
+        stats.put("misses", misses);
+        stats.put("evictions", evictions);
+        stats.put("invalidations", invalidations);
+        return stats;
+    }
+
+    private static long estimateBytes(String key, MessageRows messages) {
+        long size = key.length() * 2L;
+        for (int i = 0; i < messages.size(); i++) {
+            size += messages.estimateBytes(i);
+        }
+        return size;
+    }
+
+    private static class Entry {
+        final MessageRows messages;
+        final long bytes;
+
+        Entry(MessageRows messages, long bytes) {
+            this.messages = messages;
+            this.bytes = bytes;
+        }
+    }
+}
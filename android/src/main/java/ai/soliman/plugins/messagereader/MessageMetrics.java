@@ -0,0 +1,122 @@
+package ai.soliman.plugins.messagereader;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Rolling latency windows of the reads made while metrics are enabled. Each
+ * stage keeps its last {@code windowSize} durations, from which percentiles
+ * are computed on demand; counts are running totals since the last reset.
+ */
+public class MessageMetrics {
+    public static final int DEFAULT_WINDOW_SIZE = 256;
+
+    private final int windowSize;
+    private final Map<String, Window> windows = new LinkedHashMap<>();
+    private long calls;
+    private long cacheHits;
+    private long rows;
+    private long textChars;
+    private long providerQueries;
+    private long streamOpens;
+    private long streamChars;
+
+    public MessageMetrics(int windowSize) {
+        this.windowSize = Math.max(windowSize, 1);
+    }
+
+    public synchronized void add(CallMetrics call) {
+        call.finish();
+        for (Map.Entry<String, Long> stage : call.getStageNanos().entrySet()) {
+            Window window = windows.get(stage.getKey());
+            if (window == null) {
+                window = new Window(windowSize);
+                windows.put(stage.getKey(), window);
+            }
+            window.add(stage.getValue());
+        }
+        calls++;
+        if (call.isCacheHit()) {
+            cacheHits++;
+        }
+        rows += call.getRows();
+        textChars += call.getTextChars();
+        providerQueries += call.getProviderQueries();
+        streamOpens += call.getStreamOpens();
+        streamChars += call.getStreamChars();
+    }
+
+    public synchronized void reset() {
+        windows.clear();
+        calls = 0;
+        cacheHits = 0;
+        rows = 0;
+        textChars = 0;
+        providerQueries = 0;
+        streamOpens = 0;
+        streamChars = 0;
+    }
+
+    public synchronized JSONObject toJSON() throws JSONException {
+        JSONObject stages = new JSONObject();
+        for (Map.Entry<String, Window> entry : windows.entrySet()) {
+            long[] sorted = entry.getValue().sorted();
+            JSONObject stage = new JSONObject();
+            stage.put("samples", sorted.length);
+            stage.put("p50Ms", percentile(sorted, 0.50) / 1e6);
+            stage.put("p90Ms", percentile(sorted, 0.90) / 1e6);
+            stage.put("p99Ms", percentile(sorted, 0.99) / 1e6);
+            stage.put("maxMs", sorted[sorted.length - 1] / 1e6);
+            stages.put(entry.getKey(), stage);
+        }
+
+        JSONObject metrics = new JSONObject();
+        metrics.put("windowSize", windowSize);
+        metrics.put("calls", calls);
+        metrics.put("cacheHits", cacheHits);
+        metrics.put("rows", rows);
+        metrics.put("textChars", textChars);
+        metrics.put("providerQueries", providerQueries);
+        metrics.put("streamOpens", streamOpens);
+        metrics.put("streamChars", streamChars);
+        metrics.put("stages", stages);
+        return metrics;
+    }
+
+    /**
+     * Nearest-rank percentile of a sorted, non-empty window.
+     */
+    static long percentile(long[] sorted, double p) {
+        int rank = (int) Math.ceil(p * sorted.length);
+        return sorted[Math.min(Math.max(rank - 1, 0), sorted.length - 1)];
+    }
+
+    /**
+     * Ring buffer of the most recent samples of one stage.
+     */
+    private static final class Window {
+        private final long[] samples;
+        private int next;
+        private int size;
+
+        Window(int capacity) {
+            samples = new long[capacity];
+        }
+
+        void add(long sample) {
+            samples[next] = sample;
+            next = (next + 1) % samples.length;
+            size = Math.min(size + 1, samples.length);
+        }
+
+        long[] sorted() {
+            long[] copy = Arrays.copyOf(samples, size);
+            Arrays.sort(copy);
+            return copy;
+        }
+    }
+}
@@ -1,222 +1,2123 @@
 package ai.soliman.plugins.messagereader;
 
-import android.content.ContentResolver;
 import android.content.Context;
 import android.database.Cursor;
 import android.net.Uri;
+import android.os.Build;
 import android.provider.Telephony;
+import android.util.Base64;
 
 import org.json.JSONArray;
+import org.json.JSONException;
 import org.json.JSONObject;
 
-import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
 import java.util.List;
 import java.util.ArrayList;
-import java.util.Set;
-import java.util.HashSet;
 import java.util.Map;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public class MessageReader {
 
+    private static final int DEFAULT_LIMIT = 100;
+    public static final long DEFAULT_TIMEOUT_MS = 30000;
+    /** Time allowed for walks over the whole inbox: streams, full syncs and search indexing. */
+    public static final long DEFAULT_WALK_TIMEOUT_MS = 10 * 60 * 1000;
+    /** Most messages one getMessages page holds unless the filter sets maxRows. */
+    public static final int DEFAULT_MAX_ROWS = 10000;
+    /** Estimated size one getMessages page may take unless the filter sets maxBytes. */
+    public static final long DEFAULT_MAX_BYTES = 16L * 1024 * 1024;
+    /** One thread per provider pipeline, for two concurrent calls. */
+    private static final int READ_THREADS = 4;
+    private static final int DRAIN_INITIAL_CAPACITY = 256;
+    private static final int MMS_BATCH_SIZE = 50;
+    private static final int PART_BUFFER_SIZE = 4096;
+    /**
+     * Most bytes, or characters for text parts, one getMessagePart call
+     * returns. A multiple of 3, so full base64 chunks concatenate without padding.
+     */
+    public static final int MAX_PART_CHUNK_SIZE = 768 * 1024;
+    private static final int SEARCH_INDEX_BATCH_SIZE = 500;
+    private static final int STATS_BATCH_SIZE = 500;
+    private static final String MMS_TEXT_PART_SELECTION = "ct = 'text/plain'";
+    /** Body of an MMS without text parts. */
+    static final String MMS_NO_TEXT_BODY = "[No text content]";
+
     private Context context;
+    private final QueryCounters counters = new QueryCounters();
+    private volatile MessageCache cache;
+    private volatile MessageSearchIndex searchIndex;
+    /** Whether content://mms accepts subqueries in its selection; null until tried. */
+    private volatile Boolean mmsSubqueriesSupported;
+    private volatile Boolean aggregateProjectionsSupported;
+    private volatile Boolean substrProjectionSupported;
+    /** Whether the threads query accepts LIMIT/OFFSET after its sort order; null until tried. */
+    private volatile Boolean sortOrderPagingSupported;
+    /** Whether the SMS and MMS providers accept a GROUP BY closing the selection; null until tried. */
+    private volatile Boolean groupedCountsSupported;
+    private volatile SenderIndex senderIndex;
+    private volatile MessageMetrics metrics;
+    private volatile MmsSnapshot mmsSnapshot;
+    /** Whether the snapshot was checked against the provider since the last change. */
+    private volatile boolean mmsSnapshotValidated;
+    /** Metrics of the read running on this thread, handed on to the pipeline threads. */
+    private final ThreadLocal<CallMetrics> callMetrics = new ThreadLocal<>();
+    private final ExecutorService readExecutor = Executors.newFixedThreadPool(READ_THREADS, new ThreadFactory() {
+        private final AtomicInteger count = new AtomicInteger();
+
+        @Override
+        public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, "MessageReader-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
 
     public MessageReader(Context context) {
         this.context = context;
     }
 
-    public JSONArray getMessages(GetMessageFilterInput filter) {
-        JSONArray messages = new JSONArray();
-
-        // If filter is null, create an empty filter
-        final GetMessageFilterInput finalFilter = (filter == null) ? new GetMessageFilterInput() : filter;
+    /**
+     * Stops the reader's executor. Reads in flight are interrupted.
+     */
+    public void shutdown() {
+        readExecutor.shutdownNow();
+    }
+
+    public QueryCounters getCounters() {
+        return counters;
+    }
+
+    /**
+     * Enables result caching for getMessages, or disables it when null.
+     */
+    public void setCache(MessageCache cache) {
+        this.cache = cache;
+    }
+
+    public MessageCache getCache() {
+        return cache;
+    }
+
+    /**
+     * Enables the full-text search index, or disables it when null. Messages
+     * read by getMessages are added to it as they go by.
+     */
+    public void setSearchIndex(MessageSearchIndex searchIndex) {
+        this.searchIndex = searchIndex;
+    }
+
+    public MessageSearchIndex getSearchIndex() {
+        return searchIndex;
+    }
+
+    /**
+     * Enables metrics mode, or disables it when null. Callers then pass a
+     * {@link CallMetrics} to each read and add it to the metrics once done.
+     */
+    public void setMetrics(MessageMetrics metrics) {
+        this.metrics = metrics;
+    }
+
+    public MessageMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * Enables the persistent MMS snapshot, or disables it when null. MMS
+     * senders and bodies found in it are not read from the addr and part
+     * tables again.
+     */
+    public void setMmsSnapshot(MmsSnapshot mmsSnapshot) {
+        this.mmsSnapshotValidated = false;
+        this.mmsSnapshot = mmsSnapshot;
+    }
+
+    public MmsSnapshot getMmsSnapshot() {
+        return mmsSnapshot;
+    }
+
+    /**
+     * Called when the SMS or MMS provider reports a change.
+     */
+    public void onMessagesChanged() {
+        MessageCache currentCache = cache;
+        if (currentCache != null) {
+            currentCache.invalidate();
+        }
+        // New messages may come from new addresses
+        senderIndex = null;
+        mmsSnapshotValidated = false;
+    }
+
+    /**
+     * Reads one page of messages. The SMS and MMS pipelines run in parallel on
+     * the reader's executor and their results are merged in date order.
+     *
+     * @param timeoutMs Maximum time to wait for both pipelines.
+     * @throws TimeoutException if the page could not be read in time; both
+     *                          pipelines are then cancelled.
+     */
+    public MessageRows getMessages(GetMessageFilterInput filter, long timeoutMs) throws TimeoutException {
+        return getMessages(filter, timeoutMs, null);
+    }
+
+    /**
+     * Reads one page of messages like {@link #getMessages(GetMessageFilterInput, long)},
+     * recording the time spent in each stage into {@code metrics} when it is
+     * not null.
+     */
+    public MessageRows getMessages(GetMessageFilterInput filter, long timeoutMs, CallMetrics metrics)
+            throws TimeoutException {
+        // If filter is null, create an empty filter
+        final GetMessageFilterInput finalFilter = (filter == null) ? new GetMessageFilterInput() : filter;
+
+        callMetrics.set(metrics);
+        try {
+            MessageCache currentCache = cache;
+            String cacheKey = null;
+            long cacheGeneration = 0;
+            if (currentCache != null) {
+                cacheKey = finalFilter.cacheKey();
+                cacheGeneration = currentCache.getGeneration();
+                MessageRows cached = currentCache.get(cacheKey);
+                if (cached != null) {
+                    if (metrics != null) {
+                        metrics.onCacheHit();
+                        metrics.onRowsReturned(cached);
+                    }
+                    return cached;
+                }
+            }
+
+            int limit = finalFilter.getLimit() != null ? finalFilter.getLimit() : DEFAULT_LIMIT;
+            MessageRows messages = readPage(resolveSenders(finalFilter), limit, timeoutMs);
+            onPageRead(finalFilter, currentCache, cacheKey, cacheGeneration, messages);
+            if (metrics != null) {
+                metrics.onRowsReturned(messages);
+            }
+            return messages;
+        } finally {
+            callMetrics.remove();
+        }
+    }
+
+    /**
+     * Reads one page per filter, returned in the same order. Filters that
+     * differ only in their ids, or only in their senders, are answered from a
+     * single walk over shared provider queries matching the union of their
+     * ids or senders; the rows are then routed back to each filter.
+     *
+     * @param timeoutMs Maximum time for the whole batch.
+     * @throws TimeoutException if the batch could not be read in time.
+     */
+    public List<MessageRows> getMessagesBatch(List<GetMessageFilterInput> filters, long timeoutMs)
+            throws TimeoutException {
+        return getMessagesBatch(filters, timeoutMs, null);
+    }
+
+    /**
+     * Reads one page per filter like {@link #getMessagesBatch(List, long)},
+     * recording the stages of every read of the batch into {@code metrics}
+     * when it is not null.
+     */
+    public List<MessageRows> getMessagesBatch(List<GetMessageFilterInput> filters, long timeoutMs,
+                                              CallMetrics metrics) throws TimeoutException {
+        callMetrics.set(metrics);
+        try {
+            List<MessageRows> results = readBatch(filters, timeoutMs);
+            if (metrics != null) {
+                for (MessageRows rows : results) {
+                    metrics.onRowsReturned(rows);
+                }
+            }
+            return results;
+        } finally {
+            callMetrics.remove();
+        }
+    }
+
+    private List<MessageRows> readBatch(List<GetMessageFilterInput> filters, long timeoutMs)
+            throws TimeoutException {
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMs);
+        List<MessageRows> results = new ArrayList<>(Collections.<MessageRows>nCopies(filters.size(), null));
+
+        MessageCache currentCache = cache;
+        long cacheGeneration = currentCache != null ? currentCache.getGeneration() : 0;
+
+        Map<String, List<BatchMember>> groups = new LinkedHashMap<>();
+        for (int i = 0; i < filters.size(); i++) {
+            GetMessageFilterInput filter = filters.get(i) != null ? filters.get(i) : new GetMessageFilterInput();
+            if (currentCache != null) {
+                MessageRows cached = currentCache.get(filter.cacheKey());
+                if (cached != null) {
+                    CallMetrics metrics = callMetrics.get();
+                    if (metrics != null) {
+                        metrics.onCacheHit();
+                    }
+                    results.set(i, cached);
+                    continue;
+                }
+            }
+
+            BatchMember member = new BatchMember(i, filter, resolveSenders(filter));
+            String key = coalesceKey(member.resolved);
+            if (key == null) {
+                // Not coalescible: a group of its own
+                key = "#" + i;
+            }
+            List<BatchMember> group = groups.get(key);
+            if (group == null) {
+                group = new ArrayList<>();
+                groups.put(key, group);
+            }
+            group.add(member);
+        }
+
+        for (List<BatchMember> group : groups.values()) {
+            if (group.size() == 1) {
+                BatchMember member = group.get(0);
+                long remainingMs = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+                if (remainingMs <= 0) {
+                    throw new TimeoutException();
+                }
+                member.rows = readPage(member.resolved, member.limit, remainingMs);
+            } else {
+                readCoalesced(group, deadline);
+            }
+
+            for (BatchMember member : group) {
+                String cacheKey = currentCache != null ? member.filter.cacheKey() : null;
+                onPageRead(member.filter, currentCache, cacheKey, cacheGeneration, member.rows);
+                results.set(member.index, member.rows);
+            }
+        }
+
+        return results;
+    }
+
+    /**
+     * Caches a freshly read page and adds it to the search index.
+     */
+    private void onPageRead(GetMessageFilterInput filter, MessageCache currentCache, String cacheKey,
+                            long cacheGeneration, MessageRows messages) {
+        if (currentCache != null) {
+            currentCache.put(cacheKey, messages, cacheGeneration);
+        }
+
+        // The first body of a truncated page may have been cut to fit
+        MessageSearchIndex currentIndex = searchIndex;
+        if (currentIndex != null && filter.returnsIndexableRows() && !messages.isTruncated()) {
+            try {
+                currentIndex.addAll(messages);
+            } catch (Exception e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * Returns a key shared by filters that only differ in their page and in
+     * either their ids or their senders, or null if the filter restricts both
+     * or neither and so cannot be coalesced.
+     */
+    private String coalesceKey(GetMessageFilterInput filter) {
+        boolean hasIds = !filter.getIds().isEmpty();
+        if (hasIds == filter.hasSenderFilter()) {
+            return null;
+        }
+        GetMessageFilterInput shared = filter.copy();
+        shared.setIds(null);
+        shared.setSender(null);
+        shared.setSenders(null);
+        shared.setIndexFrom(null);
+        shared.setLimit(null);
+        shared.setMaxRows(null);
+        shared.setMaxBytes(null);
+        return (hasIds ? "ids:" : "senders:") + shared.cacheKey();
+    }
+
+    /**
+     * Answers a group of filters with one walk over the union of their ids or
+     * senders. Each row is routed to the filters it matches until every filter
+     * has its page. An MMS row carries only its first address, so in sender
+     * groups all walked MMS are routed again on their full address lists.
+     */
+    private void readCoalesced(final List<BatchMember> group, final long deadline) throws TimeoutException {
+        final boolean byIds = !group.get(0).resolved.getIds().isEmpty();
+
+        Set<String> union = new LinkedHashSet<>();
+        long maxBytes = 0;
+        for (BatchMember member : group) {
+            union.addAll(member.keys);
+            maxBytes = Math.max(maxBytes, member.budget.getMaxBytes());
+        }
+        GetMessageFilterInput combined = group.get(0).resolved.copy();
+        combined.setIndexFrom(null);
+        combined.setLimit(null);
+        // Bodies are cut on read to what the most generous member can hold
+        combined.setMaxBytes(maxBytes);
+        if (byIds) {
+            combined.setIds(new ArrayList<>(union));
+        } else {
+            combined.setSender(null);
+            combined.setSenders(new ArrayList<>(union));
+            // Rows are routed on their sender, so it has to be read
+            if (combined.getDetail() == GetMessageFilterInput.Detail.IDS) {
+                combined.setDetail(GetMessageFilterInput.Detail.HEADERS);
+            }
+            if (combined.getFields() != null && !combined.getFields().contains("sender")) {
+                List<String> fields = new ArrayList<>(combined.getFields());
+                fields.add("sender");
+                combined.setFields(fields);
+            }
+        }
+
+        final MessageRows walked = new MessageRows();
+        final List<Integer> mmsPositions = new ArrayList<>();
+        walkMessages(combined, Integer.MAX_VALUE, deadline, new MessageSink() {
+            @Override
+            public boolean accept(MessageSource source) {
+                int position = walked.size();
+                source.copyTo(walked);
+                String key = byIds ? String.valueOf(walked.getId(position)) : walked.getSender(position);
+                boolean open = false;
+                for (BatchMember member : group) {
+                    if (!member.isFull() && member.keys.contains(key)) {
+                        member.positions.add(position);
+                    }
+                    open |= !member.isFull();
+                }
+                if (!byIds && walked.isMms(position)) {
+                    mmsPositions.add(position);
+                }
+                // Stopping once every filter is full is safe: re-routing MMS
+                // below only adds rows, and only within the walked range
+                return open;
+            }
+        });
+
+        if (!mmsPositions.isEmpty()) {
+            String[] ids = new String[mmsPositions.size()];
+            for (int i = 0; i < ids.length; i++) {
+                ids[i] = String.valueOf(walked.getId(mmsPositions.get(i)));
+            }
+            Map<String, List<String>> addresses = getAllMmsAddresses(ids);
+            for (int i = 0; i < ids.length; i++) {
+                List<String> messageAddresses = addresses.get(ids[i]);
+                if (messageAddresses == null) {
+                    continue;
+                }
+                for (BatchMember member : group) {
+                    for (String address : messageAddresses) {
+                        if (member.keys.contains(address)) {
+                            member.positions.add(mmsPositions.get(i));
+                            break;
+                        }
+                    }
+                }
+            }
+        }
+
+        for (BatchMember member : group) {
+            MessageRows rows = new MessageRows(Math.min(member.limit, DRAIN_INITIAL_CAPACITY));
+            boolean keepSender = member.resolved.returnsSenders();
+            int skipped = 0;
+            for (int position : member.positions) {
+                if (rows.size() >= member.limit) {
+                    break;
+                }
+                if (skipped++ < member.indexFrom) {
+                    continue;
+                }
+                if (!member.budget.add(rows, walked, position, keepSender)) {
+                    break;
+                }
+            }
+            member.rows = rows;
+        }
+    }
+
+    /**
+     * One filter of a batch: its page bounds, the ids or raw sender addresses
+     * that select its rows and the walked rows routed to it so far.
+     */
+    private static class BatchMember {
+        final int index;
+        final GetMessageFilterInput filter;
+        final GetMessageFilterInput resolved;
+        final int indexFrom;
+        final int limit;
+        final PageBudget budget;
+        final Set<String> keys;
+        final TreeSet<Integer> positions = new TreeSet<>();
+        MessageRows rows;
+
+        BatchMember(int index, GetMessageFilterInput filter, GetMessageFilterInput resolved) {
+            this.index = index;
+            this.filter = filter;
+            this.resolved = resolved;
+            this.indexFrom = filter.getIndexFrom() != null ? Math.max(filter.getIndexFrom(), 0) : 0;
+            this.budget = budget(filter);
+            this.limit = budget.rowsToRead(Math.max(filter.getLimit() != null ? filter.getLimit() : DEFAULT_LIMIT, 0));
+            this.keys = new HashSet<>(resolved.getIds().isEmpty()
+                    ? resolved.getSenderAddresses()
+                    : resolved.getIds());
+        }
+
+        boolean isFull() {
+            return positions.size() >= (long) indexFrom + limit;
+        }
+    }
+
+    /**
+     * Brings the search index up to date by adding every message above its
+     * watermark, in transactions of {@code SEARCH_INDEX_BATCH_SIZE} rows.
+     * Deleting the newest messages only lowers the watermark, as in
+     * {@link #getMessagesSince}; the index is rebuilt from scratch only when
+     * no message it has seen is left.
+     *
+     * @param timeoutMs Maximum time for the sync.
+     * @throws TimeoutException if the sync could not finish in time. The rows
+     *                          indexed so far are kept, but the watermark is
+     *                          not moved, so the next sync reads them again.
+     */
+    public void syncSearchIndex(long timeoutMs) throws TimeoutException {
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMs);
+        final MessageSearchIndex index = searchIndex;
+        if (index == null) {
+            return;
+        }
+
+        SyncRange range = resolveSyncRange(index.getWatermark());
+        if (range.reset) {
+            index.clear();
+        }
+        SyncWatermark since = range.since;
+        SyncWatermark until = range.until;
+        if (until.getSmsId() == since.getSmsId() && until.getMmsId() == since.getMmsId()) {
+            index.setWatermark(until);
+            return;
+        }
+
+        GetMessageFilterInput filter = new GetMessageFilterInput();
+        filter.setIdRange(since, until);
+
+        final MessageRows[] batch = {new MessageRows(SEARCH_INDEX_BATCH_SIZE)};
+        walkMessages(filter, Integer.MAX_VALUE, deadline, new MessageSink() {
+            @Override
+            public boolean accept(MessageSource source) {
+                source.copyTo(batch[0]);
+                if (batch[0].size() >= SEARCH_INDEX_BATCH_SIZE) {
+                    index.addAll(batch[0]);
+                    batch[0] = new MessageRows(SEARCH_INDEX_BATCH_SIZE);
+                }
+                return true;
+            }
+        });
+        index.addAll(batch[0]);
+        index.setWatermark(until);
+    }
+
+    /**
+     * Searches the full-text index. Hits whose message was deleted since it
+     * was indexed are dropped from the result and from the index.
+     *
+     * @throws IllegalStateException if the search index is not enabled.
+     */
+    public JSONArray searchMessages(String query, int limit, boolean prefix) throws JSONException {
+        MessageSearchIndex index = searchIndex;
+        if (index == null) {
+            throw new IllegalStateException("Search index is not enabled");
+        }
+
+        JSONArray hits = index.search(query, limit, prefix);
+
+        List<String> smsIds = new ArrayList<>();
+        List<String> mmsIds = new ArrayList<>();
+        for (int i = 0; i < hits.length(); i++) {
+            JSONObject hit = hits.getJSONObject(i);
+            ("mms".equals(hit.optString("messageType")) ? mmsIds : smsIds).add(hit.optString("id"));
+        }
+        Set<String> deletedSmsIds = new HashSet<>(findDeletedIds(Telephony.Sms.CONTENT_URI, smsIds));
+        Set<String> deletedMmsIds = new HashSet<>(findDeletedIds(Uri.parse("content://mms"), mmsIds));
+        if (deletedSmsIds.isEmpty() && deletedMmsIds.isEmpty()) {
+            return hits;
+        }
+
+        JSONArray results = new JSONArray();
+        for (int i = 0; i < hits.length(); i++) {
+            JSONObject hit = hits.getJSONObject(i);
+            String messageType = hit.optString("messageType");
+            String id = hit.optString("id");
+            if (("mms".equals(messageType) ? deletedMmsIds : deletedSmsIds).contains(id)) {
+                index.remove(messageType, id);
+            } else {
+                results.put(hit);
+            }
+        }
+        return results;
+    }
+
+    /**
+     * Streams messages matching the filter in batches of {@code batchSize}.
+     * Without a limit the whole matching inbox is streamed. The listener is
+     * called a last time with {@code done} set, after the final batch or as
+     * soon as {@code cancelled} is observed.
+     *
+     * @param timeoutMs Maximum time for the whole stream.
+     * @throws TimeoutException if the stream could not finish in time; the
+     *                          listener then gets no final batch.
+     */
+    public void streamMessages(GetMessageFilterInput filter, int batchSize, long timeoutMs,
+                               final AtomicBoolean cancelled, final BatchListener listener)
+            throws TimeoutException {
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMs);
+        final GetMessageFilterInput finalFilter = (filter == null) ? new GetMessageFilterInput() : filter;
+        final int size = Math.max(batchSize, 1);
+        final MessageRows[] batch = {new MessageRows(size)};
+
+        int limit = finalFilter.getLimit() != null ? finalFilter.getLimit() : Integer.MAX_VALUE;
+        walkMessages(finalFilter, limit, deadline, new MessageSink() {
+            @Override
+            public boolean accept(MessageSource source) {
+                if (cancelled.get()) {
+                    return false;
+                }
+                source.copyTo(batch[0]);
+                if (batch[0].size() >= size) {
+                    listener.onBatch(batch[0], false);
+                    batch[0] = new MessageRows(size);
+                }
+                return true;
+            }
+        });
+
+        if (cancelled.get()) {
+            listener.onBatch(new MessageRows(), true);
+        } else {
+            listener.onBatch(batch[0], true);
+        }
+    }
+
+    /**
+     * Returns the messages added since the given watermark, the new watermark
+     * and which of the ids the client already holds were deleted. The page
+     * options of the filter are ignored: the whole delta is returned.
+     *
+     * @param watermark The watermark of the previous sync, or null for a full sync.
+     * @param timeoutMs Maximum time to read the delta.
+     * @throws TimeoutException if the delta could not be read in time.
+     */
+    public SyncResult getMessagesSince(GetMessageFilterInput filter, SyncWatermark watermark,
+                                       List<String> knownSmsIds, List<String> knownMmsIds, long timeoutMs)
+            throws TimeoutException {
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMs);
+        final GetMessageFilterInput syncFilter = (filter == null) ? new GetMessageFilterInput() : filter.copy();
+        syncFilter.setIndexFrom(null);
+        syncFilter.setLimit(null);
+        syncFilter.setPageToken(null);
+
+        // Capture the upper bound first so rows inserted while reading the
+        // delta are left for the next sync instead of being skipped
+        SyncRange range = resolveSyncRange(watermark != null ? watermark : new SyncWatermark(0, 0));
+        SyncWatermark until = range.until;
+        syncFilter.setIdRange(range.since, until);
+
+        final MessageRows messages = new MessageRows();
+        walkMessages(syncFilter, Integer.MAX_VALUE, deadline, new MessageSink() {
+            @Override
+            public boolean accept(MessageSource source) {
+                source.copyTo(messages);
+                return true;
+            }
+        });
+
+        List<String> deletedSmsIds = findDeletedIds(Telephony.Sms.CONTENT_URI, knownSmsIds);
+        List<String> deletedMmsIds = findDeletedIds(Uri.parse("content://mms"), knownMmsIds);
+
+        return new SyncResult(messages, until, deletedSmsIds, deletedMmsIds, range.reset);
+    }
+
+    /**
+     * Resolves where a sync from {@code watermark} resumes. Deleting the
+     * newest rows lowers the highest id, and the freed ids are handed out
+     * again, so a lower highest id is only a deletion. When the row at the
+     * watermark is gone or has another date, the sync resumes above the
+     * newest row that was already there when the watermark was taken, so
+     * rows that reuse freed ids are returned. Only when no such row is left,
+     * as after the store was recreated, is the sync reset to a full read.
+     */
+    private SyncRange resolveSyncRange(SyncWatermark watermark) {
+        long[] sms = resolveProviderRange(Telephony.Sms.CONTENT_URI, watermark.getSmsId(), watermark.getSmsDate());
+        long[] mms = resolveProviderRange(Uri.parse("content://mms"), watermark.getMmsId(), watermark.getMmsDate());
+        SyncWatermark until = new SyncWatermark(sms[1], mms[1], sms[2], mms[2]);
+        boolean reset = sms[0] < 0 || mms[0] < 0;
+        SyncWatermark since = reset ? new SyncWatermark(0, 0) : new SyncWatermark(sms[0], mms[0]);
+        return new SyncRange(since, until, reset);
+    }
+
+    /**
+     * Returns the id to resume above, -1 when no row seen by the previous
+     * sync is left, and the id and date of the newest row of one provider.
+     */
+    private long[] resolveProviderRange(Uri contentUri, long sinceId, long sinceDate) {
+        long[] newest = queryNewest(contentUri, null, null);
+        if (newest == null) {
+            // Unreadable: read nothing and keep the watermark
+            return new long[]{sinceId, sinceId, sinceDate};
+        }
+        long lower = sinceId;
+        if (sinceId > 0) {
+            long[] atWatermark = queryNewest(contentUri, "_id = ?", new String[]{String.valueOf(sinceId)});
+            boolean unchanged = atWatermark == null || (atWatermark[0] == sinceId
+                    && (sinceDate == SyncWatermark.DATE_UNKNOWN || atWatermark[1] == sinceDate));
+            if (!unchanged) {
+                // Freed ids get a newer date when they are handed out again
+                long[] survivor = sinceDate == SyncWatermark.DATE_UNKNOWN
+                        ? queryNewest(contentUri, "_id < ?", new String[]{String.valueOf(sinceId)})
+                        : queryNewest(contentUri, "_id < ? AND date <= ?",
+                                new String[]{String.valueOf(sinceId), String.valueOf(sinceDate)});
+                lower = survivor == null ? Math.min(sinceId, newest[0]) : survivor[0] > 0 ? survivor[0] : -1;
+            }
+        }
+        return new long[]{lower, newest[0], newest[1]};
+    }
+
+    private static final class SyncRange {
+        final SyncWatermark since;
+        final SyncWatermark until;
+        final boolean reset;
+
+        SyncRange(SyncWatermark since, SyncWatermark until, boolean reset) {
+            this.since = since;
+            this.until = until;
+            this.reset = reset;
+        }
+    }
+
+    /**
+     * Computes counts and the date range of every message matching the filter,
+     * ignoring its page options. Totals alone come from COUNT/MIN/MAX
+     * projections when the provider accepts them; sender and day buckets, or
+     * a provider that rejects aggregates, fall back to a single pass over
+     * narrow cursors that never loads message bodies unless a body or sender
+     * filter has to be checked against MMS parts.
+     */
+    public MessageStats getMessageStats(GetMessageFilterInput filter, boolean bySender, boolean byDay) {
+        GetMessageFilterInput statsFilter = (filter == null) ? new GetMessageFilterInput() : filter.copy();
+        statsFilter.setIndexFrom(null);
+        statsFilter.setLimit(null);
+        statsFilter.setPageToken(null);
+        statsFilter = resolveSenders(statsFilter);
+
+        MessageStats stats = new MessageStats(bySender, byDay);
+        if (!stats.hasBuckets() && !Boolean.FALSE.equals(aggregateProjectionsSupported)
+                && !hasMmsPostFilters(statsFilter)) {
+            MessageStats totals = new MessageStats(false, false);
+            if (aggregateSms(statsFilter, totals) && aggregateMms(statsFilter, totals)) {
+                aggregateProjectionsSupported = true;
+                return totals;
+            }
+            aggregateProjectionsSupported = false;
+        }
+
+        collectSmsStats(statsFilter, stats);
+        collectMmsStats(statsFilter, stats);
+        return stats;
+    }
+
+    private boolean aggregateSms(GetMessageFilterInput filter, MessageStats stats) {
+        for (GetMessageFilterInput chunk : smsChunks(filter)) {
+            if (!aggregate(Telephony.Sms.CONTENT_URI, buildSmsSelection(chunk), buildSmsSelectionArgs(chunk),
+                    MessageRows.TYPE_SMS, 1, stats)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private boolean aggregateMms(GetMessageFilterInput filter, MessageStats stats) {
+        for (GetMessageFilterInput chunk : mmsChunks(filter, false)) {
+            if (!aggregate(Uri.parse("content://mms"), buildMmsSelection(chunk, false),
+                    buildMmsSelectionArgs(chunk, false), MessageRows.TYPE_MMS, 1000L, stats)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Adds one COUNT/MIN/MAX row to the stats. Returns false if the provider
+     * rejects aggregate projections.
+     */
+    private boolean aggregate(Uri uri, String selection, String[] selectionArgs, byte messageType,
+                              long dateScale, MessageStats stats) {
+        String[] projection = {"COUNT(*)", "MIN(date)", "MAX(date)"};
+        try (Cursor cursor = query(uri, projection, selection, selectionArgs, null)) {
+            if (cursor == null || !cursor.moveToFirst()) {
+                return false;
+            }
+            stats.addAggregate(messageType, cursor.getLong(0),
+                    cursor.getLong(1) * dateScale, cursor.getLong(2) * dateScale);
+            return true;
+        } catch (RuntimeException e) {
+            return false;
+        }
+    }
+
+    private void collectSmsStats(GetMessageFilterInput filter, MessageStats stats) {
+        BodyMatcher matcher = BodyMatcher.forFilter(filter);
+        String[] projection = {Telephony.Sms.ADDRESS, Telephony.Sms.DATE, Telephony.Sms.BODY};
+        if (matcher == null) {
+            projection = Arrays.copyOf(projection, 2);
+        }
+        for (GetMessageFilterInput chunk : smsChunks(filter)) {
+            try (Cursor cursor = query(Telephony.Sms.CONTENT_URI, projection, buildSmsSelection(chunk),
+                    buildSmsSelectionArgs(chunk), null)) {
+                if (cursor == null) {
+                    continue;
+                }
+                while (cursor.moveToNext()) {
+                    if (matcher == null || matcher.match(cursor.getString(2)) != null) {
+                        stats.add(MessageRows.TYPE_SMS, cursor.getString(0), cursor.getLong(1));
+                    }
+                }
+            } catch (Exception e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    private void collectMmsStats(GetMessageFilterInput filter, MessageStats stats) {
+        if (hasMmsPostFilters(filter)) {
+            // Sender and body filters may need the part table; reuse the full read path
+            MessageRows batch = new MessageRows(STATS_BATCH_SIZE);
+            try (MessageSource source = readMMS(filter, Integer.MAX_VALUE)) {
+                while (source.hasNext()) {
+                    source.copyTo(batch);
+                    if (batch.size() >= STATS_BATCH_SIZE) {
+                        stats.addAll(batch);
+                        batch = new MessageRows(STATS_BATCH_SIZE);
+                    }
+                }
+            } catch (Exception e) {
+                e.printStackTrace();
+            }
+            stats.addAll(batch);
+            return;
+        }
+
+        String[] projection = {"_id", "date"};
+        for (GetMessageFilterInput chunk : mmsChunks(filter, false)) {
+            try (Cursor cursor = query(Uri.parse("content://mms"), projection, buildMmsSelection(chunk, false),
+                    buildMmsSelectionArgs(chunk, false), null)) {
+                if (cursor == null) {
+                    continue;
+                }
+                String[] batchIds = new String[STATS_BATCH_SIZE];
+                long[] batchDates = new long[STATS_BATCH_SIZE];
+                int count = 0;
+                boolean more = true;
+                while (more) {
+                    more = cursor.moveToNext();
+                    if (more) {
+                        batchIds[count] = cursor.getString(0);
+                        batchDates[count] = cursor.getLong(1) * 1000L; // Convert to milliseconds
+                        count++;
+                    }
+                    if (count == STATS_BATCH_SIZE || (!more && count > 0)) {
+                        addMmsBatch(Arrays.copyOf(batchIds, count), batchDates, stats);
+                        count = 0;
+                    }
+                }
+            } catch (Exception e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    private void addMmsBatch(String[] ids, long[] dates, MessageStats stats) {
+        // Only sender buckets need the addr table
+        Map<String, List<String>> addresses = stats.isBySender()
+                ? getAllMmsAddresses(ids)
+                : Collections.<String, List<String>>emptyMap();
+        for (int i = 0; i < ids.length; i++) {
+            List<String> senders = addresses.get(ids[i]);
+            stats.add(MessageRows.TYPE_MMS, senders != null && !senders.isEmpty() ? senders.get(0) : "", dates[i]);
+        }
+    }
+
+    /**
+     * Returns one page of conversations, newest first, with the latest
+     * snippet, the total and unread message counts and the recipients of each
+     * thread. Costs one threads query plus one unread-count and one address
+     * query for the page, whatever the size of the inbox.
+     */
+    public JSONArray getConversations(int indexFrom, int limit) throws JSONException {
+        JSONArray conversations = new JSONArray();
+        if (limit <= 0) {
+            return conversations;
+        }
+        int offset = Math.max(indexFrom, 0);
+
+        String[] projection = {
+                Telephony.Threads._ID,
+                Telephony.Threads.DATE,
+                Telephony.Threads.MESSAGE_COUNT,
+                Telephony.Threads.READ,
+                Telephony.Threads.SNIPPET,
+                Telephony.Threads.RECIPIENT_IDS
+        };
+
+        List<String> threadIds = new ArrayList<>();
+        Set<String> recipientIds = new HashSet<>();
+
+        try (Cursor cursor = queryThreads(projection, offset, limit)) {
+            if (cursor != null) {
+                int idIndex = cursor.getColumnIndex(Telephony.Threads._ID);
+                int dateIndex = cursor.getColumnIndex(Telephony.Threads.DATE);
+                int countIndex = cursor.getColumnIndex(Telephony.Threads.MESSAGE_COUNT);
+                int readIndex = cursor.getColumnIndex(Telephony.Threads.READ);
+                int snippetIndex = cursor.getColumnIndex(Telephony.Threads.SNIPPET);
+                int recipientsIndex = cursor.getColumnIndex(Telephony.Threads.RECIPIENT_IDS);
+
+                // Positioned on the page already unless the provider ignored the offset
+                int skip = Boolean.TRUE.equals(sortOrderPagingSupported) ? 0 : offset;
+                int position = 0;
+                while (conversations.length() < limit && cursor.moveToNext()) {
+                    if (position++ < skip) {
+                        continue;
+                    }
+                    String threadId = cursor.getString(idIndex);
+                    String recipients = cursor.getString(recipientsIndex);
+
+                    JSONObject conversation = new JSONObject();
+                    conversation.put("threadId", threadId);
+                    conversation.put("date", cursor.getLong(dateIndex));
+                    conversation.put("messageCount", cursor.getInt(countIndex));
+                    conversation.put("read", cursor.getInt(readIndex) != 0);
+                    conversation.put("snippet", cursor.getString(snippetIndex));
+                    conversation.put("recipientIds", recipients != null ? recipients.trim() : "");
+                    conversations.put(conversation);
+
+                    threadIds.add(threadId);
+                    if (recipients != null) {
+                        for (String recipientId : recipients.trim().split(" +")) {
+                            if (!recipientId.isEmpty()) {
+                                recipientIds.add(recipientId);
+                            }
+                        }
+                    }
+                }
+            }
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+
+        if (threadIds.isEmpty()) {
+            return conversations;
+        }
+
+        Map<String, Integer> unreadCounts = new HashMap<>();
+        countUnread(Telephony.Sms.CONTENT_URI, threadIds, unreadCounts);
+        countUnread(Uri.parse("content://mms"), threadIds, unreadCounts);
+        Map<String, String> addresses = getCanonicalAddresses(new ArrayList<>(recipientIds));
+
+        for (int i = 0; i < conversations.length(); i++) {
+            JSONObject conversation = conversations.getJSONObject(i);
+            Integer unread = unreadCounts.get(conversation.getString("threadId"));
+            conversation.put("unreadCount", unread != null ? unread : 0);
+
+            JSONArray recipients = new JSONArray();
+            String ids = (String) conversation.remove("recipientIds");
+            for (String recipientId : ids.split(" +")) {
+                String address = addresses.get(recipientId);
+                if (address != null) {
+                    recipients.put(address);
+                }
+            }
+            conversation.put("recipients", recipients);
+        }
+
+        return conversations;
+    }
+
+    /**
+     * Queries one page of the threads table. The threads provider ignores the
+     * {@code limit} parameter, so the page goes after the sort order as
+     * {@code LIMIT/OFFSET}. A provider that rejects this gets the plain sort
+     * order, and {@link #getConversations} skips the offset itself.
+     */
+    private Cursor queryThreads(String[] projection, int offset, int limit) {
+        Uri threadsUri = Telephony.Threads.CONTENT_URI.buildUpon()
+                .appendQueryParameter("simple", "true")
+                .build();
+        String sortOrder = Telephony.Threads.DATE + " DESC";
+        if (!Boolean.FALSE.equals(sortOrderPagingSupported)) {
+            try {
+                Cursor cursor = query(threadsUri, projection, null, null,
+                        sortOrder + " LIMIT " + limit + " OFFSET " + offset);
+                sortOrderPagingSupported = true;
+                return cursor;
+            } catch (RuntimeException e) {
+                sortOrderPagingSupported = false;
+            }
+        }
+        return query(threadsUri, projection, null, null, sortOrder);
+    }
+
+    /**
+     * Adds the number of unread rows of each thread to {@code counts}. Counts
+     * come from one {@code COUNT(*) ... GROUP BY thread_id} row per thread.
+     * Providers that reject the grouping are read one unread row at a time.
+     */
+    private void countUnread(Uri contentUri, List<String> threadIds, Map<String, Integer> counts) {
+        for (List<String> chunk : SelectionChunks.split(threadIds, maxIdsPerQuery())) {
+            String selection = "read = 0 AND thread_id IN (" + makePlaceholders(chunk.size()) + ")";
+            if (!Boolean.FALSE.equals(groupedCountsSupported)) {
+                // The provider wraps the selection in parentheses, so closing
+                // them early lets the GROUP BY follow the WHERE clause
+                try (Cursor cursor = query(contentUri, new String[]{"thread_id", "COUNT(*)"},
+                        selection + ") GROUP BY (thread_id", chunk.toArray(new String[0]), null)) {
+                    if (cursor != null) {
+                        groupedCountsSupported = true;
+                        while (cursor.moveToNext()) {
+                            add(counts, cursor.getString(0), cursor.getInt(1));
+                        }
+                        continue;
+                    }
+                } catch (RuntimeException e) {
+                    groupedCountsSupported = false;
+                }
+            }
+
+            try (Cursor cursor = query(contentUri, new String[]{"thread_id"}, selection,
+                    chunk.toArray(new String[0]), null)) {
+                if (cursor == null) {
+                    continue;
+                }
+                while (cursor.moveToNext()) {
+                    add(counts, cursor.getString(0), 1);
+                }
+            } catch (Exception e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    private static void add(Map<String, Integer> counts, String key, int count) {
+        Integer previous = counts.get(key);
+        counts.put(key, previous != null ? previous + count : count);
+    }
+
+    /**
+     * Resolves canonical address ids, as found in a thread's recipient_ids.
+     */
+    private Map<String, String> getCanonicalAddresses(List<String> ids) {
+        Map<String, String> addresses = new HashMap<>();
+        Uri uri = Uri.parse("content://mms-sms/canonical-addresses");
+        for (List<String> chunk : SelectionChunks.split(ids, maxIdsPerQuery())) {
+            if (chunk.isEmpty()) {
+                continue;
+            }
+            String selection = "_id IN (" + makePlaceholders(chunk.size()) + ")";
+            try (Cursor cursor = query(uri, new String[]{"_id", "address"}, selection,
+                    chunk.toArray(new String[0]), null)) {
+                if (cursor == null) {
+                    continue;
+                }
+                while (cursor.moveToNext()) {
+                    addresses.put(cursor.getString(0), cursor.getString(1));
+                }
+            } catch (Exception e) {
+                e.printStackTrace();
+            }
+        }
+        return addresses;
+    }
+
+    /**
+     * Returns the watermark of the newest SMS and MMS, to pass to
+     * {@link #getMessagesSince} to only read what arrives afterwards.
+     */
+    public SyncWatermark getLatestWatermark() {
+        long[] sms = queryNewest(Telephony.Sms.CONTENT_URI, null, null);
+        long[] mms = queryNewest(Uri.parse("content://mms"), null, null);
+        if (sms == null) {
+            sms = new long[2];
+        }
+        if (mms == null) {
+            mms = new long[2];
+        }
+        return new SyncWatermark(sms[0], mms[0], sms[1], mms[1]);
+    }
+
+    /**
+     * Returns the {@code _id} and {@code date} of the row with the highest id
+     * matching the selection, zeros when there is none, or null when the
+     * provider cannot be read.
+     */
+    private long[] queryNewest(Uri contentUri, String selection, String[] selectionArgs) {
+        Uri uri = contentUri.buildUpon()
+                .appendQueryParameter("limit", "1")
+                .build();
+        try (Cursor cursor = query(uri, new String[]{"_id", "date"}, selection, selectionArgs, "_id DESC")) {
+            if (cursor == null) {
+                return null;
+            }
+            return cursor.moveToNext() ? new long[]{cursor.getLong(0), cursor.getLong(1)} : new long[2];
+        } catch (Exception e) {
+            e.printStackTrace();
+            return null;
+        }
+    }
+
+    /**
+     * Returns the ids among {@code knownIds} that no longer exist in the provider.
+     */
+    private List<String> findDeletedIds(Uri contentUri, List<String> knownIds) {
+        List<String> deletedIds = new ArrayList<>();
+        if (knownIds == null || knownIds.isEmpty()) {
+            return deletedIds;
+        }
+
+        Set<String> existingIds = new HashSet<>();
+        for (List<String> chunk : SelectionChunks.split(knownIds, maxIdsPerQuery())) {
+            String selection = "_id IN (" + makePlaceholders(chunk.size()) + ")";
+            try (Cursor cursor = query(contentUri, new String[]{"_id"}, selection, chunk.toArray(new String[0]), null)) {
+                if (cursor == null) {
+                    // Unknown state: report nothing rather than everything as deleted
+                    return new ArrayList<>();
+                }
+                while (cursor.moveToNext()) {
+                    existingIds.add(cursor.getString(0));
+                }
+            } catch (Exception e) {
+                e.printStackTrace();
+                return new ArrayList<>();
+            }
+        }
+
+        for (String id : knownIds) {
+            if (!existingIds.contains(id)) {
+                deletedIds.add(id);
+            }
+        }
+        return deletedIds;
+    }
+
+    /**
+     * Reads up to {@code indexFrom + limit} rows from each provider in
+     * parallel, then merges the two sorted lists and keeps the requested page.
+     * Both pipelines stop once their rows are over the page's byte budget, and
+     * the page ends where either of them stopped, so memory stays bounded
+     * whatever the limit.
+     */
+    private MessageRows readPage(final GetMessageFilterInput filter, int limit, long timeoutMs)
+            throws TimeoutException {
+        final int indexFrom = filter.getIndexFrom() != null ? Math.max(filter.getIndexFrom(), 0) : 0;
+        if (limit <= 0) {
+            return new MessageRows(0);
+        }
+        PageBudget budget = budget(filter);
+        limit = budget.rowsToRead(limit);
+        final long maxBytes = budget.getMaxBytes();
+        long wantedRows = (long) indexFrom + limit;
+        final int wanted = wantedRows > Integer.MAX_VALUE ? Integer.MAX_VALUE : (int) wantedRows;
+
+        final CallMetrics metrics = callMetrics.get();
+        Future<MessageRows> smsFuture = readExecutor.submit(new Callable<MessageRows>() {
+            @Override
+            public MessageRows call() {
+                callMetrics.set(metrics);
+                long start = System.nanoTime();
+                try {
+                    MessageRows rows = drain(readSMS(filter, wanted), wanted, indexFrom, maxBytes);
+                    record(CallMetrics.SMS_PIPELINE, start, rows.size());
+                    return rows;
+                } finally {
+                    callMetrics.remove();
+                }
+            }
+        });
+        Future<MessageRows> mmsFuture = readExecutor.submit(new Callable<MessageRows>() {
+            @Override
+            public MessageRows call() {
+                callMetrics.set(metrics);
+                long start = System.nanoTime();
+                try {
+                    MessageRows rows = drain(readMMS(filter, wanted), wanted, indexFrom, maxBytes);
+                    record(CallMetrics.MMS_PIPELINE, start, rows.size());
+                    return rows;
+                } finally {
+                    callMetrics.remove();
+                }
+            }
+        });
+
+        MessageRows sms;
+        MessageRows mms;
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMs);
+        try {
+            sms = smsFuture.get(Math.max(deadline - System.nanoTime(), 0), TimeUnit.NANOSECONDS);
+            mms = mmsFuture.get(Math.max(deadline - System.nanoTime(), 0), TimeUnit.NANOSECONDS);
+        } catch (TimeoutException e) {
+            smsFuture.cancel(true);
+            mmsFuture.cancel(true);
+            throw e;
+        } catch (InterruptedException e) {
+            smsFuture.cancel(true);
+            mmsFuture.cancel(true);
+            Thread.currentThread().interrupt();
+            return new MessageRows(0);
+        } catch (ExecutionException e) {
+            e.printStackTrace();
+            smsFuture.cancel(true);
+            mmsFuture.cancel(true);
+            return new MessageRows(0);
+        }
+
+        // Same order as the streaming walk: date DESC, SMS first on equal dates
+        long mergeStart = System.nanoTime();
+        MessageRows messages = new MessageRows(Math.min(limit, sms.size() + mms.size()));
+        int smsIndex = 0;
+        int mmsIndex = 0;
+        for (long position = 0; position < wantedRows; position++) {
+            boolean hasSms = smsIndex < sms.size();
+            boolean hasMms = mmsIndex < mms.size();
+            if ((!hasSms && sms.isTruncated()) || (!hasMms && mms.isTruncated())) {
+                // A pipeline stopped on its byte budget: its next row could come first
+                messages.setTruncated(true);
+                break;
+            }
+            if (!hasSms && !hasMms) {
+                break;
+            }
+            boolean takeSms = hasSms && (!hasMms || sms.getDate(smsIndex) >= mms.getDate(mmsIndex));
+            if (position < indexFrom) {
+                if (takeSms) {
+                    smsIndex++;
+                } else {
+                    mmsIndex++;
+                }
+            } else if (!budget.add(messages, takeSms ? sms : mms, takeSms ? smsIndex : mmsIndex, true)) {
+                break;
+            } else if (takeSms) {
+                smsIndex++;
+            } else {
+                mmsIndex++;
+            }
+        }
+        record(CallMetrics.MERGE, mergeStart, messages.size());
+        return messages;
+    }
+
+    /**
+     * Copies at most {@code wanted} rows out of the source and closes it.
+     * Stops early when the reading thread is interrupted, and once the rows
+     * past the first {@code indexFrom} are over {@code maxBytes}; the rows are
+     * then marked truncated.
+     */
+    private MessageRows drain(MessageSource source, int wanted, int indexFrom, long maxBytes) {
+        try (MessageSource closing = source) {
+            MessageRows rows = new MessageRows(Math.min(wanted, DRAIN_INITIAL_CAPACITY));
+            long bytes = 0;
+            while (rows.size() < wanted && !Thread.currentThread().isInterrupted() && closing.hasNext()) {
+                if (bytes > maxBytes) {
+                    rows.setTruncated(true);
+                    break;
+                }
+                closing.copyTo(rows);
+                if (rows.size() > indexFrom) {
+                    bytes += rows.estimateBytes(rows.size() - 1);
+                }
+            }
+            return rows;
+        }
+    }
+
+    /**
+     * Returns the row and byte budget of a page read with the filter.
+     */
+    private static PageBudget budget(GetMessageFilterInput filter) {
+        return new PageBudget(
+                filter.getMaxRows() != null ? filter.getMaxRows() : DEFAULT_MAX_ROWS,
+                filter.getMaxBytes() != null ? filter.getMaxBytes() : DEFAULT_MAX_BYTES);
+    }
+
+    /**
+     * Returns the length bodies are cut to on read: the preview length, but
+     * never more than one message can take of the byte budget.
+     */
+    private static int maxBodyLength(GetMessageFilterInput filter) {
+        int budgetLength = budget(filter).maxBodyLength();
+        Integer previewLength = filter.getBodyPreviewLength();
+        return previewLength != null ? Math.min(previewLength, budgetLength) : budgetLength;
+    }
+
+    /**
+     * Walks the merged messages on the calling thread. The deadline, a
+     * {@link System#nanoTime()} value, is checked before every message, so a
+     * single slow provider query can still overrun it.
+     *
+     * @throws TimeoutException if the deadline passed before the walk ended.
+     */
+    private void walkMessages(GetMessageFilterInput filter, int limit, long deadline, MessageSink sink)
+            throws TimeoutException {
+        filter = resolveSenders(filter);
+        int indexFrom = filter.getIndexFrom() != null ? Math.max(filter.getIndexFrom(), 0) : 0;
+        if (limit <= 0) {
+            return;
+        }
+        long wanted = (long) indexFrom + limit;
+        int providerLimit = wanted > Integer.MAX_VALUE ? Integer.MAX_VALUE : (int) wanted;
+
+        boolean timedOut = false;
+        try (MessageSource sms = readSMS(filter, providerLimit);
+             MessageSource mms = readMMS(filter, providerLimit)) {
+            for (long position = 0; position < wanted; position++) {
+                if (System.nanoTime() - deadline > 0) {
+                    timedOut = true;
+                    break;
+                }
+                MessageSource next = newest(sms, mms);
+                if (next == null) {
+                    break;
+                }
+                if (position < indexFrom) {
+                    next.skip();
+                } else if (!sink.accept(next)) {
+                    break;
+                }
+            }
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+        if (timedOut) {
+            throw new TimeoutException();
+        }
+    }
+
+    /**
+     * Receives merged messages in order, as the source positioned on the next
+     * message to copy. Returning false stops the walk.
+     */
+    private interface MessageSink {
+        boolean accept(MessageSource source);
+    }
+
+    /**
+     * Receives the batches produced by {@link #streamMessages}.
+     */
+    public interface BatchListener {
+        void onBatch(MessageRows messages, boolean done);
+    }
+
+    /**
+     * Returns the token that resumes after the given page, or null when the
+     * page was neither full nor truncated and there is nothing left to read.
+     */
+    public String nextPageToken(GetMessageFilterInput filter, MessageRows messages) {
+        int limit = filter != null && filter.getLimit() != null ? filter.getLimit() : DEFAULT_LIMIT;
+        if (messages.isEmpty() || (messages.size() < limit && !messages.isTruncated())) {
+            return null;
+        }
+        return PageToken.after(messages, messages.size() - 1).toString();
+    }
+
+    /**
+     * Picks the source whose head message is the most recent. On equal dates
+     * SMS wins, so the merged order is stable across pages.
+     */
+    private MessageSource newest(MessageSource sms, MessageSource mms) {
+        boolean hasSms = sms.hasNext();
+        boolean hasMms = mms.hasNext();
+        if (hasSms && hasMms) {
+            return sms.peekDate() >= mms.peekDate() ? sms : mms;
+        }
+        if (hasSms) {
+            return sms;
+        }
+        return hasMms ? mms : null;
+    }
+
+    private MessageSource readSMS(GetMessageFilterInput filter, int wanted) {
+        List<GetMessageFilterInput> chunks = smsChunks(filter);
+        if (chunks.size() == 1) {
+            return readSmsChunk(chunks.get(0), wanted);
+        }
+        List<MessageSource> sources = new ArrayList<>(chunks.size());
+        for (GetMessageFilterInput chunk : chunks) {
+            sources.add(readSmsChunk(chunk, wanted));
+        }
+        return new MergedSource(sources);
+    }
+
+    /**
+     * Splits the filter into filters whose SMS selection stays under SQLite's
+     * variable limit once every other argument is bound. Both the ids and the
+     * senders are chunked, one filter per pair of chunks; an SMS has a single
+     * address, so the chunks never select the same row.
+     *
+     * @throws IllegalArgumentException if the other arguments alone fill the limit.
+     */
+    private List<GetMessageFilterInput> smsChunks(GetMessageFilterInput filter) {
+        List<String> ids = filter.getIds();
+        List<String> senders = filter.hasSenderFilter()
+                ? filter.getSenderAddresses() : Collections.<String>emptyList();
+        GetMessageFilterInput rest = filter.withIds(Collections.<String>emptyList())
+                .withSenders(Collections.<String>emptyList());
+        int free = maxVariables() - buildSmsSelectionArgs(rest).length;
+        if (ids.size() + senders.size() <= free) {
+            return Collections.singletonList(filter);
+        }
+        if (free < 2) {
+            throw new IllegalArgumentException("Too many filter values for one query");
+        }
+
+        ids = SelectionChunks.distinct(ids);
+        List<List<String>> senderChunks = senders.isEmpty() ? Collections.singletonList(senders)
+                : SelectionChunks.split(senders, SelectionChunks.secondListShare(ids.size(), senders.size(), free));
+        List<List<String>> idChunks = SelectionChunks.split(ids, Math.max(1, free - senderChunks.get(0).size()));
+        List<GetMessageFilterInput> chunks = new ArrayList<>(idChunks.size() * senderChunks.size());
+        for (List<String> idChunk : idChunks) {
+            GetMessageFilterInput withIds = filter.withIds(idChunk);
+            for (List<String> senderChunk : senderChunks) {
+                chunks.add(senders.isEmpty() ? withIds : withIds.withSenders(senderChunk));
+            }
+        }
+        return chunks;
+    }
+
+    /**
+     * Splits the filter's ids into filters whose MMS selection stays under
+     * SQLite's variable limit once every other argument is bound. Sender
+     * lists are not chunked here: an MMS has several addresses, so sender
+     * chunks could select the same row twice. {@link #readMMS} only pushes
+     * senders down when they leave room for the ids.
+     *
+     * @throws IllegalArgumentException if the other arguments alone fill the limit.
+     */
+    private List<GetMessageFilterInput> mmsChunks(GetMessageFilterInput filter, boolean pushDown) {
+        List<String> ids = filter.getIds();
+        int free = maxVariables()
+                - buildMmsSelectionArgs(filter.withIds(Collections.<String>emptyList()), pushDown).length;
+        if (ids.size() <= free) {
+            return Collections.singletonList(filter);
+        }
+        if (free < 1) {
+            throw new IllegalArgumentException("Too many filter values for one query");
+        }
+        List<List<String>> idChunks = SelectionChunks.split(SelectionChunks.distinct(ids), free);
+        List<GetMessageFilterInput> chunks = new ArrayList<>(idChunks.size());
+        for (List<String> idChunk : idChunks) {
+            chunks.add(filter.withIds(idChunk));
+        }
+        return chunks;
+    }
+
+    private MessageSource readSmsChunk(GetMessageFilterInput filter, int wanted) {
+        Uri.Builder smsUriBuilder = Telephony.Sms.CONTENT_URI.buildUpon();
+        if (wanted < Integer.MAX_VALUE) {
+            smsUriBuilder.appendQueryParameter("limit", String.valueOf(wanted));
+        }
+        Uri smsUri = smsUriBuilder.build();
+
+        // Sender and body filters are part of the selection, so only the
+        // columns that are returned are projected
+        List<String> projection = new ArrayList<>(6);
+        projection.add(Telephony.Sms._ID);
+        projection.add(Telephony.Sms.DATE);
+        if (filter.returnsSenders()) {
+            projection.add(Telephony.Sms.ADDRESS);
+        }
+        if (filter.returnsBoxes()) {
+            projection.add(Telephony.Sms.TYPE);
+        }
+        if (filter.returnsSubscriptionIds()) {
+            projection.add(Telephony.Sms.SUBSCRIPTION_ID);
+        }
+
+        String selection = buildSmsSelection(filter);
+        String[] selectionArgs = buildSmsSelectionArgs(filter);
+
+        String sortOrder = Telephony.Sms.DATE + " DESC, " + Telephony.Sms._ID + " DESC";
+
+        // Regex and keyword filters have to see whole bodies
+        BodyMatcher matcher = BodyMatcher.forFilter(filter);
+        Integer previewLength = filter.returnsBodies() && matcher == null ? filter.getBodyPreviewLength() : null;
+        Cursor cursor = null;
+        if (previewLength != null && !Boolean.FALSE.equals(substrProjectionSupported)) {
+            // Let the provider cut previews so long bodies never fill the cursor window
+            List<String> substrProjection = new ArrayList<>(projection);
+            substrProjection.add("substr(" + Telephony.Sms.BODY + ", 1, " + previewLength + ") AS "
+                    + Telephony.Sms.BODY);
+            long start = System.nanoTime();
+            try {
+                cursor = query(smsUri, substrProjection.toArray(new String[0]), selection, selectionArgs, sortOrder);
+                record(CallMetrics.SMS_QUERY, start, 0);
+                substrProjectionSupported = true;
+            } catch (RuntimeException e) {
+                substrProjectionSupported = false;
+            }
+        }
+
+        if (cursor == null) {
+            if (filter.returnsBodies() || matcher != null) {
+                projection.add(Telephony.Sms.BODY);
+            }
+            long start = System.nanoTime();
+            try {
+                cursor = query(smsUri, projection.toArray(new String[0]), selection, selectionArgs, sortOrder);
+                record(CallMetrics.SMS_QUERY, start, 0);
+            } catch (Exception e) {
+                e.printStackTrace();
+            }
+        }
+
+        return new SmsSource(cursor, maxBodyLength(filter), matcher, filter.returnsBodies());
+    }
+
+    private MessageSource readMMS(GetMessageFilterInput filter, int wanted) {
+        if (!hasMmsPostFilters(filter)) {
+            return readMmsChunks(filter, wanted, false);
+        }
+
+        // Let the provider evaluate sender and body filters through subqueries
+        // on the addr and part tables when it accepts them and they leave
+        // room for the ids
+        int pushDownArgs = buildMmsSelectionArgs(filter.withIds(Collections.<String>emptyList()), true).length;
+        if (!Boolean.FALSE.equals(mmsSubqueriesSupported) && pushDownArgs <= maxVariables() / 2) {
+            try {
+                MessageSource source = readMmsChunks(filter, wanted, true);
+                mmsSubqueriesSupported = true;
+                return source;
+            } catch (RuntimeException e) {
+                mmsSubqueriesSupported = false;
+            }
+        }
+
+        // Otherwise narrow the candidates with cheap addr/part id lookups first
+        GetMessageFilterInput candidates = narrowMmsCandidates(filter);
+        if (candidates == null) {
+            return new MmsSource(null, filter, 1);
+        }
+        return readMmsChunks(candidates, wanted, false);
+    }
+
+    private MessageSource readMmsChunks(GetMessageFilterInput filter, int wanted, boolean pushDown) {
+        List<GetMessageFilterInput> chunks = mmsChunks(filter, pushDown);
+        if (chunks.size() == 1) {
+            return readMmsChunk(chunks.get(0), wanted, pushDown);
+        }
+        List<MessageSource> sources = new ArrayList<>(chunks.size());
+        try {
+            for (GetMessageFilterInput chunk : chunks) {
+                sources.add(readMmsChunk(chunk, wanted, pushDown));
+            }
+        } catch (RuntimeException e) {
+            for (MessageSource source : sources) {
+                source.close();
+            }
+            throw e;
+        }
+        return new MergedSource(sources);
+    }
+
+    /**
+     * Queries one chunk of MMS ids and dates. With {@code pushDown}, sender and
+     * body filters are added to the selection as subqueries and a provider that
+     * rejects them makes this method throw instead of returning no rows.
+     */
+    private MessageSource readMmsChunk(GetMessageFilterInput filter, int wanted, boolean pushDown) {
+        Uri.Builder mmsUriBuilder = Uri.parse("content://mms").buildUpon();
+
+        // Sender and body filters are applied in Java, so the provider can only
+        // be capped when every fetched row is guaranteed to be returned
+        if (!hasMmsPostFilters(filter) && wanted < Integer.MAX_VALUE) {
+            mmsUriBuilder.appendQueryParameter("limit", String.valueOf(wanted));
+        }
+        Uri mmsUri = mmsUriBuilder.build();
+
+        List<String> projection = new ArrayList<>(4);
+        projection.add("_id");
+        projection.add("date");
+        if (filter.returnsBoxes()) {
+            projection.add("msg_box");
+        }
+        if (filter.returnsSubscriptionIds()) {
+            projection.add("sub_id");
+        }
+
+        String selection = buildMmsSelection(filter, pushDown);
+        String[] selectionArgs = buildMmsSelectionArgs(filter, pushDown);
+
+        String sortOrder = "date DESC, _id DESC";
+
+        Cursor cursor = null;
+        long start = System.nanoTime();
+        try {
+            cursor = query(mmsUri, projection.toArray(new String[0]), selection, selectionArgs, sortOrder);
+            record(CallMetrics.MMS_QUERY, start, 0);
+        } catch (RuntimeException e) {
+            if (pushDown) {
+                throw e;
+            }
+            e.printStackTrace();
+        }
+
+        return new MmsSource(cursor, filter, Math.min(wanted, MMS_BATCH_SIZE));
+    }
+
+    /**
+     * Restricts the filter's ids to the MMS that can match its sender and body
+     * filters, using lookups on the addr table, chunked like ids, and on the
+     * part table.
+     * Parts stored in files cannot be searched here, so their messages are
+     * kept as candidates. Returns the filter unchanged when a lookup fails and
+     * null when no MMS can match.
+     */
+    private GetMessageFilterInput narrowMmsCandidates(GetMessageFilterInput filter) {
+        Set<String> candidates = null;
+
+        if (filter.hasSenderFilter()) {
+            candidates = new HashSet<>();
+            for (List<String> addresses : SelectionChunks.split(filter.getSenderAddresses(), maxIdsPerQuery())) {
+                Set<String> senderCandidates = queryIds(Uri.parse("content://mms/addr"), "msg_id",
+                        "address IN (" + makePlaceholders(addresses.size()) + ")",
+                        addresses.toArray(new String[0]));
+                if (senderCandidates == null) {
+                    return filter;
+                }
+                candidates.addAll(senderCandidates);
+            }
+        }
+
+        for (List<String> likes : BodyMatcher.likeGroups(filter)) {
+            Set<String> bodyCandidates = queryIds(Uri.parse("content://mms/part"), "mid",
+                    MMS_TEXT_PART_SELECTION + " AND (" + partLikeClause(likes.size()) + ")",
+                    likes.toArray(new String[0]));
+            if (bodyCandidates == null) {
+                return filter;
+            }
+            if (candidates == null) {
+                candidates = bodyCandidates;
+            } else {
+                candidates.retainAll(bodyCandidates);
+            }
+        }
+
+        if (candidates == null) {
+            return filter;
+        }
+        if (!filter.getIds().isEmpty()) {
+            candidates.retainAll(filter.getIds());
+        }
+        return candidates.isEmpty() ? null : filter.withIds(new ArrayList<>(candidates));
+    }
+
+    /**
+     * Returns the distinct values of one id column, or null if the query fails.
+     */
+    private Set<String> queryIds(Uri uri, String column, String selection, String[] selectionArgs) {
+        try (Cursor cursor = query(uri, new String[]{column}, selection, selectionArgs, null)) {
+            if (cursor == null) {
+                return null;
+            }
+            Set<String> ids = new HashSet<>();
+            while (cursor.moveToNext()) {
+                ids.add(cursor.getString(0));
+            }
+            return ids;
+        } catch (Exception e) {
+            e.printStackTrace();
+            return null;
+        }
+    }
 
-        JSONArray smsMessages = readSMS(finalFilter);
-        JSONArray mmsMessages = readMMS(finalFilter);
+    /**
+     * Replaces normalized sender filters with the raw addresses they match, so
+     * the selections can use an exact {@code address IN (...)}.
+     */
+    private GetMessageFilterInput resolveSenders(GetMessageFilterInput filter) {
+        if (!filter.isNormalizeSenders() || !filter.hasSenderFilter()) {
+            return filter;
+        }
+        GetMessageFilterInput resolved = filter.copy();
+        resolved.setSender(null);
+        resolved.setSenders(getSenderIndex().resolve(filter.getSenderAddresses()));
+        resolved.setNormalizeSenders(false);
+        return resolved;
+    }
 
-        // Combine SMS and MMS messages
-        for (int i = 0; i < smsMessages.length(); i++) {
-            messages.put(smsMessages.optJSONObject(i));
+    /**
+     * Returns the sender index, building it from the canonical address table
+     * on first use after a change.
+     */
+    private SenderIndex getSenderIndex() {
+        SenderIndex index = senderIndex;
+        if (index != null) {
+            return index;
         }
-        for (int i = 0; i < mmsMessages.length(); i++) {
-            messages.put(mmsMessages.optJSONObject(i));
+        index = new SenderIndex();
+        try (Cursor cursor = query(Uri.parse("content://mms-sms/canonical-addresses"),
+                new String[]{"address"}, null, null, null)) {
+            if (cursor != null) {
+                while (cursor.moveToNext()) {
+                    index.add(cursor.getString(0));
+                }
+            }
+        } catch (Exception e) {
+            e.printStackTrace();
         }
+        senderIndex = index;
+        return index;
+    }
+
+    private int maxIdsPerQuery() {
+        return SelectionChunks.maxIdsPerQuery(Build.VERSION.SDK_INT);
+    }
+
+    private int maxVariables() {
+        return SelectionChunks.maxVariables(Build.VERSION.SDK_INT);
+    }
 
-        // Apply pagination filters
-        return applyPaginationFilters(messages, finalFilter);
+    private boolean hasMmsPostFilters(GetMessageFilterInput filter) {
+        return filter.hasSenderFilter() || filter.hasBodyFilter();
     }
 
-    private JSONArray applyPaginationFilters(JSONArray messages, GetMessageFilterInput filter) {
-        int totalMessages = messages.length();
-        int startIndex = filter.getIndexFrom() != null ? filter.getIndexFrom() : 0;
-        if (startIndex < 0) startIndex = 0;
-        if (startIndex >= totalMessages) return new JSONArray();
+    /**
+     * A forward-only stream of messages in date DESC order.
+     */
+    private interface MessageSource extends Closeable {
+        boolean hasNext();
 
-        int limit = filter.getLimit() != null ? filter.getLimit() : totalMessages - startIndex;
-        if (limit <= 0) return new JSONArray();
+        long peekDate();
 
-        int endIndex = Math.min(startIndex + limit, totalMessages);
+        long peekId();
 
-        JSONArray filteredMessages = new JSONArray();
-        for (int i = startIndex; i < endIndex; i++) {
-            filteredMessages.put(messages.optJSONObject(i));
-        }
+        /**
+         * Appends the head message to {@code rows} and advances.
+         */
+        void copyTo(MessageRows rows);
 
-        return filteredMessages;
+        void skip();
+
+        @Override
+        void close();
     }
 
-    private JSONArray readSMS(GetMessageFilterInput filter) {
-        JSONArray messages = new JSONArray();
+    private static class SmsSource implements MessageSource {
+        private final Cursor cursor;
+        private final int idIndex;
+        private final int addressIndex;
+        private final int bodyIndex;
+        private final int dateIndex;
+        private final int typeIndex;
+        private final int subscriptionIndex;
+        private final int maxBodyLength;
+        private final BodyMatcher matcher;
+        private final boolean keepBody;
+        private boolean positioned;
+        private boolean hasRow;
+        private String[] captures;
+
+        /**
+         * @param matcher Checks each body when not null; rows it rejects are skipped.
+         */
+        SmsSource(Cursor cursor, int maxBodyLength, BodyMatcher matcher, boolean keepBody) {
+            this.cursor = cursor;
+            this.maxBodyLength = maxBodyLength;
+            this.matcher = matcher;
+            this.keepBody = keepBody;
+            this.idIndex = cursor != null ? cursor.getColumnIndex(Telephony.Sms._ID) : -1;
+            this.addressIndex = cursor != null ? cursor.getColumnIndex(Telephony.Sms.ADDRESS) : -1;
+            this.bodyIndex = cursor != null ? cursor.getColumnIndex(Telephony.Sms.BODY) : -1;
+            this.dateIndex = cursor != null ? cursor.getColumnIndex(Telephony.Sms.DATE) : -1;
+            this.typeIndex = cursor != null ? cursor.getColumnIndex(Telephony.Sms.TYPE) : -1;
+            this.subscriptionIndex = cursor != null ? cursor.getColumnIndex(Telephony.Sms.SUBSCRIPTION_ID) : -1;
+        }
 
-        Uri smsUri = Telephony.Sms.CONTENT_URI.buildUpon()
-                .appendQueryParameter("limit", String.valueOf(filter.getLimit() != null ? filter.getLimit() : 100))
-                .appendQueryParameter("offset", String.valueOf(filter.getIndexFrom() != null ? filter.getIndexFrom() : 0))
-                .build();
+        @Override
+        public boolean hasNext() {
+            if (!positioned) {
+                hasRow = cursor != null && cursor.moveToNext();
+                captures = null;
+                while (hasRow && matcher != null
+                        && (captures = matcher.match(cursor.getString(bodyIndex))) == null) {
+                    hasRow = cursor.moveToNext();
+                }
+                positioned = true;
+            }
+            return hasRow;
+        }
 
-        ContentResolver cr = context.getContentResolver();
+        @Override
+        public long peekDate() {
+            return cursor.getLong(dateIndex);
+        }
 
-        String[] projection = {
-                Telephony.Sms._ID,
-                Telephony.Sms.ADDRESS,
-                Telephony.Sms.BODY,
-                Telephony.Sms.DATE
-        };
+        @Override
+        public long peekId() {
+            return cursor.getLong(idIndex);
+        }
 
-        String selection = buildSmsSelection(filter);
-        String[] selectionArgs = buildSmsSelectionArgs(filter);
+        @Override
+        public void copyTo(MessageRows rows) {
+            rows.add(MessageRows.TYPE_SMS,
+                    cursor.getLong(idIndex),
+                    cursor.getLong(dateIndex),
+                    addressIndex >= 0 ? cursor.getString(addressIndex) : null,
+                    keepBody && bodyIndex >= 0 ? truncate(cursor.getString(bodyIndex), maxBodyLength) : null,
+                    typeIndex >= 0 ? (byte) cursor.getInt(typeIndex) : MessageRows.BOX_UNKNOWN,
+                    subscriptionIndex >= 0 ? cursor.getInt(subscriptionIndex) : MessageRows.SUBSCRIPTION_UNKNOWN,
+                    captures != null && captures.length > 0 ? captures : null);
+            positioned = false;
+        }
 
-        String sortOrder = Telephony.Sms.DATE + " DESC";
+        @Override
+        public void skip() {
+            positioned = false;
+        }
 
-        try (Cursor cursor = cr.query(smsUri, projection, selection, selectionArgs, sortOrder)) {
+        @Override
+        public void close() {
             if (cursor != null) {
-                int idIndex = cursor.getColumnIndex(Telephony.Sms._ID);
-                int addressIndex = cursor.getColumnIndex(Telephony.Sms.ADDRESS);
-                int bodyIndex = cursor.getColumnIndex(Telephony.Sms.BODY);
-                int dateIndex = cursor.getColumnIndex(Telephony.Sms.DATE);
-
-                while (cursor.moveToNext()) {
-                    JSONObject sms = new JSONObject();
-                    sms.put("id", cursor.getString(idIndex));
-                    sms.put("sender", cursor.getString(addressIndex));
-                    sms.put("body", cursor.getString(bodyIndex));
-                    sms.put("date", cursor.getLong(dateIndex));
-                    sms.put("messageType", "sms");
-                    messages.put(sms);
-                }
+                cursor.close();
             }
-        } catch (Exception e) {
-            e.printStackTrace();
         }
-
-        return messages;
     }
 
-    private JSONArray readMMS(GetMessageFilterInput filter) {
-        JSONArray messages = new JSONArray();
+    /**
+     * Merges sources of the same message type, each sorted by date DESC then
+     * id DESC, into one stream with the same order. Used when an id filter has
+     * to be split over several queries.
+     */
+    private static class MergedSource implements MessageSource {
+        private final List<MessageSource> sources;
+        private MessageSource head;
+
+        MergedSource(List<MessageSource> sources) {
+            this.sources = sources;
+        }
 
-        Uri mmsUri = Uri.parse("content://mms").buildUpon()
-                .appendQueryParameter("limit", String.valueOf(filter.getLimit() != null ? filter.getLimit() : 100))
-                .appendQueryParameter("offset", String.valueOf(filter.getIndexFrom() != null ? filter.getIndexFrom() : 0))
-                .build();
+        @Override
+        public boolean hasNext() {
+            if (head == null) {
+                for (MessageSource source : sources) {
+                    if (!source.hasNext()) {
+                        continue;
+                    }
+                    if (head == null || source.peekDate() > head.peekDate()
+                            || (source.peekDate() == head.peekDate() && source.peekId() > head.peekId())) {
+                        head = source;
+                    }
+                }
+            }
+            return head != null;
+        }
 
-        ContentResolver cr = context.getContentResolver();
+        @Override
+        public long peekDate() {
+            return head.peekDate();
+        }
 
-        String[] projection = {
-                "_id",
-                "date"
-        };
+        @Override
+        public long peekId() {
+            return head.peekId();
+        }
 
-        String selection = buildMmsSelection(filter);
-        String[] selectionArgs = buildMmsSelectionArgs(filter);
+        @Override
+        public void copyTo(MessageRows rows) {
+            head.copyTo(rows);
+            head = null;
+        }
 
-        String sortOrder = "date DESC";
+        @Override
+        public void skip() {
+            head.skip();
+            head = null;
+        }
 
-        Set<String> mmsIds = new HashSet<>();
+        @Override
+        public void close() {
+            for (MessageSource source : sources) {
+                source.close();
+            }
+        }
+    }
 
-        try (Cursor cursor = cr.query(mmsUri, projection, selection, selectionArgs, sortOrder)) {
-            if (cursor != null) {
-                int idIndex = cursor.getColumnIndex("_id");
+    /**
+     * Reads MMS ids and dates from the cursor in small batches and resolves
+     * addresses and texts for one batch at a time, so only the rows that end
+     * up on the requested page (plus at most one batch) are ever loaded.
+     */
+    private class MmsSource implements MessageSource {
+        private final Cursor cursor;
+        private final GetMessageFilterInput filter;
+        private final int batchSize;
+        private final int idIndex;
+        private final int dateIndex;
+        private final int boxIndex;
+        private final int subscriptionIndex;
+        private MessageRows pending = new MessageRows(0);
+        private int position;
+        private boolean exhausted;
+
+        MmsSource(Cursor cursor, GetMessageFilterInput filter, int batchSize) {
+            this.cursor = cursor;
+            this.filter = filter;
+            this.batchSize = Math.max(batchSize, 1);
+            this.idIndex = cursor != null ? cursor.getColumnIndex("_id") : -1;
+            this.dateIndex = cursor != null ? cursor.getColumnIndex("date") : -1;
+            this.boxIndex = cursor != null ? cursor.getColumnIndex("msg_box") : -1;
+            this.subscriptionIndex = cursor != null ? cursor.getColumnIndex("sub_id") : -1;
+            this.exhausted = cursor == null;
+        }
 
-                while (cursor.moveToNext()) {
-                    String id = cursor.getString(idIndex);
-                    mmsIds.add(id);
-                }
+        @Override
+        public boolean hasNext() {
+            while (position >= pending.size() && !exhausted) {
+                readBatch();
             }
-        } catch (Exception e) {
-            e.printStackTrace();
+            return position < pending.size();
         }
 
-        if (mmsIds.isEmpty()) {
-            return messages;
+        @Override
+        public long peekDate() {
+            return pending.getDate(position);
+        }
+
+        @Override
+        public long peekId() {
+            return pending.getId(position);
+        }
+
+        @Override
+        public void copyTo(MessageRows rows) {
+            rows.add(pending, position++);
         }
 
-        // Fetch all MMS addresses and texts in bulk
-        Map<String, JSONArray> addressesMap = getAllMmsAddresses(mmsIds);
-        Map<String, String> textsMap = getAllMmsTexts(mmsIds);
+        @Override
+        public void skip() {
+            position++;
+        }
 
-        // Re-query MMS messages to get dates
-        try (Cursor cursor = cr.query(mmsUri, projection, selection, selectionArgs, sortOrder)) {
+        @Override
+        public void close() {
             if (cursor != null) {
-                int idIndex = cursor.getColumnIndex("_id");
-                int dateIndex = cursor.getColumnIndex("date");
+                cursor.close();
+            }
+        }
 
-                while (cursor.moveToNext()) {
-                    String id = cursor.getString(idIndex);
-                    long date = cursor.getLong(dateIndex) * 1000L; // Convert to milliseconds
+        private void readBatch() {
+            long[] ids = new long[batchSize];
+            long[] dates = new long[batchSize];
+            byte[] boxes = new byte[batchSize];
+            int[] subscriptionIds = new int[batchSize];
+            int count = 0;
+
+            try {
+                while (count < batchSize && cursor.moveToNext()) {
+                    ids[count] = cursor.getLong(idIndex);
+                    dates[count] = cursor.getLong(dateIndex) * 1000L; // Convert to milliseconds
+                    boxes[count] = boxIndex >= 0 ? (byte) cursor.getInt(boxIndex) : MessageRows.BOX_UNKNOWN;
+                    subscriptionIds[count] = subscriptionIndex >= 0
+                            ? cursor.getInt(subscriptionIndex)
+                            : MessageRows.SUBSCRIPTION_UNKNOWN;
+                    count++;
+                }
+            } catch (Exception e) {
+                e.printStackTrace();
+            }
 
-                    String mmsBody = textsMap.get(id);
-                    JSONArray senders = addressesMap.get(id);
+            if (count < batchSize) {
+                exhausted = true;
+            }
+            if (count == 0) {
+                return;
+            }
+
+            // Fetch the batch's MMS addresses and texts in bulk, skipping the
+            // addr and part tables when neither the detail level nor a filter needs them
+            String[] idArgs = new String[count];
+            for (int i = 0; i < count; i++) {
+                idArgs[i] = String.valueOf(ids[i]);
+            }
+            boolean hasBodyFilter = filter.hasBodyFilter();
+            BodyMatcher matcher = BodyMatcher.forFilter(filter);
+            boolean needsBodies = filter.returnsBodies() || hasBodyFilter;
+            boolean needsSenders = filter.returnsSenders() || filter.hasSenderFilter();
+            // A body filter has to see whole texts; otherwise stop reading at the
+            // preview length. Either way no text is read past the byte budget.
+            int maxBodyLength = hasBodyFilter ? budget(filter).maxBodyLength() : maxBodyLength(filter);
+
+            // Only look up what the snapshot does not already hold
+            MmsSnapshot snapshot = needsSenders || needsBodies ? validatedMmsSnapshot() : null;
+            Map<Long, MmsSnapshot.Entry> known = readSnapshot(snapshot, ids, dates, count);
+            List<String> addressIds = new ArrayList<>(count);
+            List<String> textIds = new ArrayList<>(count);
+            for (int i = 0; i < count; i++) {
+                MmsSnapshot.Entry entry = known.get(ids[i]);
+                if (needsSenders && (entry == null || entry.addresses == null)) {
+                    addressIds.add(idArgs[i]);
+                }
+                if (needsBodies && (entry == null || !entry.coversBody(maxBodyLength))) {
+                    textIds.add(idArgs[i]);
+                }
+            }
+            Map<String, List<String>> addressesMap = !addressIds.isEmpty()
+                    ? getAllMmsAddresses(addressIds.toArray(new String[0]))
+                    : Collections.<String, List<String>>emptyMap();
+            Map<String, String> textsMap = !textIds.isEmpty()
+                    ? getAllMmsTexts(textIds.toArray(new String[0]), maxBodyLength)
+                    : Collections.<String, String>emptyMap();
+            if (snapshot != null && (!addressIds.isEmpty() || !textIds.isEmpty())) {
+                writeSnapshot(snapshot, ids, dates, idArgs, known, addressIds, textIds, addressesMap, textsMap,
+                        maxBodyLength);
+            }
 
-                    // Apply sender and body filters manually
-                    boolean matchesSenderFilter = matchesSenderFilter(filter, senders);
-                    boolean matchesBodyFilter = matchesBodyFilter(filter, mmsBody);
+            pending = new MessageRows(count);
+            position = 0;
+            for (int i = 0; i < count; i++) {
+                String id = idArgs[i];
+                MmsSnapshot.Entry entry = known.get(ids[i]);
+                String mmsBody = entry != null && entry.coversBody(maxBodyLength)
+                        ? entry.body
+                        : textsMap.get(id);
+                List<String> senders = entry != null && entry.addresses != null
+                        ? entry.addresses
+                        : addressesMap.get(id);
+
+                // Apply sender and body filters manually
+                if (!matchesSenderFilter(filter, senders) || !matchesBodyFilter(filter, mmsBody)) {
+                    continue;
+                }
+                String[] captures = matcher != null ? matcher.match(mmsBody) : null;
+                if (matcher != null && captures == null) {
+                    continue;
+                }
 
-                    if (matchesSenderFilter && matchesBodyFilter) {
-                        JSONObject mms = new JSONObject();
-                        mms.put("id", id);
-                        mms.put("date", date);
+                String sender = null;
+                if (filter.returnsSenders()) {
+                    sender = senders != null && !senders.isEmpty() ? senders.get(0) : "";
+                }
+                String body = null;
+                if (filter.returnsBodies()) {
+                    body = mmsBody != null && !mmsBody.isEmpty() ? mmsBody : MMS_NO_TEXT_BODY;
+                    body = truncate(body, maxBodyLength(filter));
+                }
+                pending.add(MessageRows.TYPE_MMS, ids[i], dates[i], sender, body, boxes[i], subscriptionIds[i],
+                        captures != null && captures.length > 0 ? captures : null);
+            }
+        }
 
-                        if (senders != null && senders.length() > 0) {
-                            mms.put("sender", senders.getJSONObject(0).getString("sender"));
-                        } else {
-                            mms.put("sender", "");
-                        }
+        private Map<Long, MmsSnapshot.Entry> readSnapshot(MmsSnapshot snapshot, long[] ids, long[] dates,
+                                                          int count) {
+            if (snapshot == null) {
+                return Collections.emptyMap();
+            }
+            long start = System.nanoTime();
+            try {
+                Map<Long, MmsSnapshot.Entry> known = snapshot.getAll(ids, dates, count);
+                record(CallMetrics.MMS_SNAPSHOT, start, known.size());
+                return known;
+            } catch (Exception e) {
+                e.printStackTrace();
+                return Collections.emptyMap();
+            }
+        }
+
+        /**
+         * Stores what was just resolved, merged with what the snapshot already
+         * held for the same messages.
+         */
+        private void writeSnapshot(MmsSnapshot snapshot, long[] ids, long[] dates, String[] idArgs,
+                                   Map<Long, MmsSnapshot.Entry> known, List<String> addressIds,
+                                   List<String> textIds, Map<String, List<String>> addressesMap,
+                                   Map<String, String> textsMap, int maxBodyLength) {
+            Set<String> resolvedAddresses = new HashSet<>(addressIds);
+            Set<String> resolvedTexts = new HashSet<>(textIds);
+            List<MmsSnapshot.Entry> entries = new ArrayList<>();
+            for (int i = 0; i < idArgs.length; i++) {
+                String id = idArgs[i];
+                boolean hasAddresses = resolvedAddresses.contains(id);
+                boolean hasText = resolvedTexts.contains(id);
+                if (!hasAddresses && !hasText) {
+                    continue;
+                }
+                MmsSnapshot.Entry entry = known.get(ids[i]);
 
-                        mms.put("body", mmsBody != null && !mmsBody.isEmpty() ? mmsBody : "[No text content]");
-                        mms.put("messageType", "mms");
-                        messages.put(mms);
+                List<String> addresses = entry != null ? entry.addresses : null;
+                if (hasAddresses) {
+                    addresses = addressesMap.get(id);
+                    if (addresses == null) {
+                        addresses = Collections.emptyList();
                     }
                 }
+                String body = entry != null ? entry.body : null;
+                boolean bodyComplete = entry != null && entry.bodyComplete;
+                if (hasText) {
+                    body = textsMap.get(id);
+                    if (body == null) {
+                        body = "";
+                    }
+                    // Texts shorter than the preview length were read to the end
+                    bodyComplete = body.length() < maxBodyLength;
+                }
+                entries.add(new MmsSnapshot.Entry(ids[i], dates[i], addresses, body, bodyComplete));
+            }
+            try {
+                snapshot.putAll(entries);
+            } catch (Exception e) {
+                e.printStackTrace();
             }
-        } catch (Exception e) {
-            e.printStackTrace();
         }
-
-        return messages;
     }
 
-    private boolean matchesSenderFilter(GetMessageFilterInput filter, JSONArray senders) {
-        if (filter.getSender() == null || filter.getSender().isEmpty()) {
+    private boolean matchesSenderFilter(GetMessageFilterInput filter, List<String> senders) {
+        if (!filter.hasSenderFilter()) {
             return true;
         }
-        if (senders != null) {
-            for (int i = 0; i < senders.length(); i++) {
-                try {
-                    JSONObject senderObj = senders.getJSONObject(i);
-                    String sender = senderObj.getString("sender");
-                    if (sender.equals(filter.getSender())) {
-                        return true;
-                    }
-                } catch (Exception e) {
-                    e.printStackTrace();
-                }
+        if (senders == null) {
+            return false;
+        }
+        for (String address : filter.getSenderAddresses()) {
+            if (senders.contains(address)) {
+                return true;
             }
         }
         return false;
     }
 
+    /**
+     * Checks the plain {@code body} filter. Regex and keyword filters are
+     * checked by a {@link BodyMatcher}.
+     */
     private boolean matchesBodyFilter(GetMessageFilterInput filter, String body) {
         if (filter.getBody() == null || filter.getBody().isEmpty()) {
             return true;
@@ -240,12 +2141,50 @@ public class MessageReader {
             clauses.add(Telephony.Sms.DATE + " <= ?");
         }
 
-        if (filter.getSender() != null && !filter.getSender().isEmpty()) {
-            clauses.add(Telephony.Sms.ADDRESS + " = ?");
+        if (filter.hasSenderFilter()) {
+            clauses.add(Telephony.Sms.ADDRESS + " IN (" + makePlaceholders(filter.getSenderAddresses().size()) + ")");
+        }
+
+        // Regex and keyword filters are prefiltered here and checked once read
+        for (List<String> likes : BodyMatcher.likeGroups(filter)) {
+            StringBuilder clause = new StringBuilder("(");
+            for (int i = 0; i < likes.size(); i++) {
+                clause.append(i == 0 ? "" : " OR ").append(Telephony.Sms.BODY).append(" LIKE ?");
+            }
+            clauses.add(clause.append(')').toString());
+        }
+
+        if (filter.getThreadId() != null) {
+            clauses.add(Telephony.Sms.THREAD_ID + " = ?");
+        }
+
+        if (filter.hasBoxFilter()) {
+            clauses.add(Telephony.Sms.TYPE + " IN (" + makePlaceholders(filter.getBoxCodes().size()) + ")");
+        }
+
+        if (filter.hasSubscriptionFilter()) {
+            clauses.add(Telephony.Sms.SUBSCRIPTION_ID + " IN ("
+                    + makePlaceholders(filter.getSubscriptionIds().size()) + ")");
         }
 
-        if (filter.getBody() != null && !filter.getBody().isEmpty()) {
-            clauses.add(Telephony.Sms.BODY + " LIKE ?");
+        if (filter.getSinceWatermark() != null) {
+            clauses.add(Telephony.Sms._ID + " > ?");
+        }
+
+        if (filter.getUntilWatermark() != null) {
+            clauses.add(Telephony.Sms._ID + " <= ?");
+        }
+
+        // Keyset seek: on equal dates SMS rows come before MMS rows, so after an
+        // MMS token every SMS with the same date has already been returned
+        PageToken token = filter.getPageToken();
+        if (token != null) {
+            if (token.isSms()) {
+                clauses.add("(" + Telephony.Sms.DATE + " < ? OR (" + Telephony.Sms.DATE + " = ? AND "
+                        + Telephony.Sms._ID + " < ?))");
+            } else {
+                clauses.add(Telephony.Sms.DATE + " < ?");
+            }
         }
 
         if (!clauses.isEmpty()) {
@@ -270,18 +2209,49 @@ public class MessageReader {
             args.add(String.valueOf(filter.getMaxDate()));
         }
 
-        if (filter.getSender() != null && !filter.getSender().isEmpty()) {
-            args.add(filter.getSender());
+        if (filter.hasSenderFilter()) {
+            args.addAll(filter.getSenderAddresses());
+        }
+
+        for (List<String> likes : BodyMatcher.likeGroups(filter)) {
+            args.addAll(likes);
+        }
+
+        if (filter.getThreadId() != null) {
+            args.add(filter.getThreadId());
+        }
+
+        if (filter.hasBoxFilter()) {
+            args.addAll(filter.getBoxCodes());
+        }
+
+        if (filter.hasSubscriptionFilter()) {
+            for (Integer subscriptionId : filter.getSubscriptionIds()) {
+                args.add(String.valueOf(subscriptionId));
+            }
+        }
+
+        if (filter.getSinceWatermark() != null) {
+            args.add(String.valueOf(filter.getSinceWatermark().getSmsId()));
         }
 
-        if (filter.getBody() != null && !filter.getBody().isEmpty()) {
-            args.add("%" + filter.getBody() + "%");
+        if (filter.getUntilWatermark() != null) {
+            args.add(String.valueOf(filter.getUntilWatermark().getSmsId()));
+        }
+
+        PageToken token = filter.getPageToken();
+        if (token != null) {
+            args.add(String.valueOf(token.getDate()));
+            if (token.isSms()) {
+                args.add(String.valueOf(token.getDate()));
+                args.add(String.valueOf(token.getId()));
+            }
         }
 
         return args.toArray(new String[0]);
     }
 
-    private String buildMmsSelection(GetMessageFilterInput filter) {
+    private String buildMmsSelection(GetMessageFilterInput filter, boolean pushDown) {
         StringBuilder selection = new StringBuilder();
 
         List<String> clauses = new ArrayList<>();
@@ -298,6 +2268,52 @@ public class MessageReader {
             clauses.add("date <= ?");
         }
 
+        if (pushDown && filter.hasSenderFilter()) {
+            clauses.add("_id IN (SELECT msg_id FROM addr WHERE address IN ("
+                    + makePlaceholders(filter.getSenderAddresses().size()) + "))");
+        }
+
+        // Parts stored in files cannot be matched in SQL; their messages stay
+        // candidates and are checked by matchesBodyFilter or a BodyMatcher once read
+        if (pushDown) {
+            for (List<String> likes : BodyMatcher.likeGroups(filter)) {
+                clauses.add("_id IN (SELECT mid FROM part WHERE " + MMS_TEXT_PART_SELECTION
+                        + " AND (" + partLikeClause(likes.size()) + "))");
+            }
+        }
+
+        if (filter.getThreadId() != null) {
+            clauses.add("thread_id = ?");
+        }
+
+        // Box codes 1-5 mean the same in msg_box as in the SMS type column
+        if (filter.hasBoxFilter()) {
+            clauses.add("msg_box IN (" + makePlaceholders(filter.getBoxCodes().size()) + ")");
+        }
+
+        if (filter.hasSubscriptionFilter()) {
+            clauses.add("sub_id IN (" + makePlaceholders(filter.getSubscriptionIds().size()) + ")");
+        }
+
+        if (filter.getSinceWatermark() != null) {
+            clauses.add("_id > ?");
+        }
+
+        if (filter.getUntilWatermark() != null) {
+            clauses.add("_id <= ?");
+        }
+
+        // MMS dates are stored in seconds, so an SMS token keeps every MMS in
+        // the same second that is not newer than the token
+        PageToken token = filter.getPageToken();
+        if (token != null) {
+            if (token.isSms()) {
+                clauses.add("date <= ?");
+            } else {
+                clauses.add("(date < ? OR (date = ? AND _id < ?))");
+            }
+        }
+
         if (!clauses.isEmpty()) {
             selection.append(String.join(" AND ", clauses));
         }
@@ -305,7 +2321,7 @@ public class MessageReader {
         return selection.toString();
     }
 
-    private String[] buildMmsSelectionArgs(GetMessageFilterInput filter) {
+    private String[] buildMmsSelectionArgs(GetMessageFilterInput filter, boolean pushDown) {
         List<String> args = new ArrayList<>();
 
         if (filter.getIds() != null && !filter.getIds().isEmpty()) {
@@ -320,9 +2336,62 @@ public class MessageReader {
             args.add(String.valueOf(filter.getMaxDate() / 1000L)); // Convert milliseconds to seconds
         }
 
+        if (pushDown && filter.hasSenderFilter()) {
+            args.addAll(filter.getSenderAddresses());
+        }
+
+        if (pushDown) {
+            for (List<String> likes : BodyMatcher.likeGroups(filter)) {
+                args.addAll(likes);
+            }
+        }
+
+        if (filter.getThreadId() != null) {
+            args.add(filter.getThreadId());
+        }
+
+        if (filter.hasBoxFilter()) {
+            args.addAll(filter.getBoxCodes());
+        }
+
+        if (filter.hasSubscriptionFilter()) {
+            for (Integer subscriptionId : filter.getSubscriptionIds()) {
+                args.add(String.valueOf(subscriptionId));
+            }
+        }
+
+        if (filter.getSinceWatermark() != null) {
+            args.add(String.valueOf(filter.getSinceWatermark().getMmsId()));
+        }
+
+        if (filter.getUntilWatermark() != null) {
+            args.add(String.valueOf(filter.getUntilWatermark().getMmsId()));
+        }
+
+        PageToken token = filter.getPageToken();
+        if (token != null) {
+            args.add(String.valueOf(token.getDate() / 1000L)); // Convert milliseconds to seconds
+            if (!token.isSms()) {
+                args.add(String.valueOf(token.getDate() / 1000L));
+                args.add(String.valueOf(token.getId()));
+            }
+        }
+
         return args.toArray(new String[0]);
     }
 
+    /**
+     * Returns {@code text LIKE ? OR ...} for the part table. Parts stored in
+     * files cannot be matched in SQL, so they always pass.
+     */
+    private static String partLikeClause(int likes) {
+        StringBuilder clause = new StringBuilder();
+        for (int i = 0; i < likes; i++) {
+            clause.append("text LIKE ? OR ");
+        }
+        return clause.append("_data IS NOT NULL").toString();
+    }
+
     private String makePlaceholders(int len) {
         if (len < 1) {
             throw new RuntimeException("No placeholders");
@@ -336,22 +2405,76 @@ public class MessageReader {
         }
     }
 
-    private Map<String, JSONArray> getAllMmsAddresses(Set<String> ids) {
-        Map<String, JSONArray> addressesMap = new HashMap<>();
+    private Cursor query(Uri uri, String[] projection, String selection, String[] selectionArgs, String sortOrder) {
+        counters.onQuery();
+        CallMetrics metrics = callMetrics.get();
+        if (metrics != null) {
+            metrics.onQuery();
+        }
+        return context.getContentResolver().query(uri, projection, selection, selectionArgs, sortOrder);
+    }
+
+    /**
+     * Adds the time since {@code startNanos} to a stage of the current read's
+     * metrics, if it has any.
+     */
+    private void record(String stage, long startNanos, long rows) {
+        CallMetrics metrics = callMetrics.get();
+        if (metrics != null) {
+            metrics.record(stage, System.nanoTime() - startNanos, rows);
+        }
+    }
+
+    /**
+     * Returns the MMS snapshot once it has been checked against the provider's
+     * newest MMS, or null when it is disabled or cannot be checked.
+     */
+    private MmsSnapshot validatedMmsSnapshot() {
+        MmsSnapshot snapshot = mmsSnapshot;
+        if (snapshot == null || mmsSnapshotValidated) {
+            return snapshot;
+        }
+        Uri uri = Uri.parse("content://mms").buildUpon()
+                .appendQueryParameter("limit", "1")
+                .build();
+        try (Cursor cursor = query(uri, new String[]{"_id", "date"}, null, null, "_id DESC")) {
+            if (cursor == null) {
+                return null;
+            }
+            boolean hasMms = cursor.moveToNext();
+            snapshot.validate(hasMms ? cursor.getLong(0) : 0, hasMms ? cursor.getLong(1) * 1000L : 0);
+            mmsSnapshotValidated = true;
+            return snapshot;
+        } catch (Exception e) {
+            e.printStackTrace();
+            return null;
+        }
+    }
+
+    private Map<String, List<String>> getAllMmsAddresses(String[] ids) {
+        long start = System.nanoTime();
+        Map<String, List<String>> addressesMap = new HashMap<>();
 
         Uri addrUri = Uri.parse("content://mms/addr");
 
-        String[] projection = {"msg_id", "address", "type"};
+        String[] projection = {"msg_id", "address"};
+
+        for (List<String> chunk : SelectionChunks.split(Arrays.asList(ids), maxIdsPerQuery())) {
+            readMmsAddresses(addrUri, projection, chunk.toArray(new String[0]), addressesMap);
+        }
 
-        String selection = "msg_id IN (" + makePlaceholders(ids.size()) + ")";
+        record(CallMetrics.MMS_ADDRESSES, start, ids.length);
+        return addressesMap;
+    }
 
-        String[] selectionArgs = ids.toArray(new String[0]);
+    private void readMmsAddresses(Uri addrUri, String[] projection, String[] ids,
+                                  Map<String, List<String>> addressesMap) {
+        String selection = "msg_id IN (" + makePlaceholders(ids.length) + ")";
 
-        try (Cursor cursor = context.getContentResolver().query(addrUri, projection, selection, selectionArgs, null)) {
+        try (Cursor cursor = query(addrUri, projection, selection, ids, null)) {
             if (cursor != null) {
                 int msgIdIndex = cursor.getColumnIndex("msg_id");
                 int addressIndex = cursor.getColumnIndex("address");
-                int typeIndex = cursor.getColumnIndex("type");
 
                 while (cursor.moveToNext()) {
                     String msgId = cursor.getString(msgIdIndex);
@@ -359,38 +2482,89 @@ public class MessageReader {
 
                     // Skip placeholders
                     if (address != null && !address.equalsIgnoreCase("insert-address-token")) {
-                        JSONObject addr = new JSONObject();
-                        addr.put("sender", address);
-                        addr.put("type", cursor.getInt(typeIndex));
-
-                        JSONArray addresses = addressesMap.get(msgId);
+                        List<String> addresses = addressesMap.get(msgId);
                         if (addresses == null) {
-                            addresses = new JSONArray();
+                            addresses = new ArrayList<>(2);
                             addressesMap.put(msgId, addresses);
                         }
-                        addresses.put(addr);
+                        addresses.add(address);
                     }
                 }
             }
         } catch (Exception e) {
             e.printStackTrace();
         }
+    }
 
-        return addressesMap;
+    /**
+     * Cuts a body to at most {@code maxLength} chars without splitting a
+     * surrogate pair.
+     */
+    static String truncate(String text, int maxLength) {
+        if (text == null || text.length() <= maxLength) {
+            return text;
+        }
+        int end = Math.max(maxLength, 0);
+        if (end > 0 && Character.isHighSurrogate(text.charAt(end - 1))) {
+            end--;
+        }
+        return text.substring(0, end);
     }
 
-    private Map<String, String> getAllMmsTexts(Set<String> ids) {
+    /**
+     * Reads the text of each MMS, stopping once a message has {@code maxLength}
+     * chars so file-backed parts are not read past a preview.
+     */
+    private Map<String, String> getAllMmsTexts(String[] ids, int maxLength) {
+        long start = System.nanoTime();
         Map<String, String> textsMap = new HashMap<>();
 
         Uri partUri = Uri.parse("content://mms/part");
 
         String[] projection = {"mid", "_id", "ct", "_data", "text"};
 
-        String selection = "mid IN (" + makePlaceholders(ids.size()) + ")";
+        // Text parts in cursor order; a null text marks a part stored in a file
+        List<String> partMids = new ArrayList<>();
+        List<String> partIds = new ArrayList<>();
+        List<String> partTexts = new ArrayList<>();
+
+        for (List<String> chunk : SelectionChunks.split(Arrays.asList(ids), maxIdsPerQuery())) {
+            readMmsTextParts(partUri, projection, chunk.toArray(new String[0]), partMids, partIds, partTexts);
+        }
+
+        // Read the file-backed parts in one pass after the cursors are closed,
+        // sharing a single read buffer across all of them
+        char[] buffer = new char[PART_BUFFER_SIZE];
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < partMids.size(); i++) {
+            String mid = partMids.get(i);
+            String existingText = textsMap.get(mid);
+            if (existingText != null && existingText.length() >= maxLength) {
+                continue;
+            }
+
+            String text = partTexts.get(i);
+            if (text == null) {
+                sb.setLength(0);
+                text = getMmsPartText(partIds.get(i), buffer, sb, maxLength);
+            }
+
+            if (existingText == null) {
+                textsMap.put(mid, text);
+            } else {
+                textsMap.put(mid, existingText + text);
+            }
+        }
 
-        String[] selectionArgs = ids.toArray(new String[0]);
+        record(CallMetrics.MMS_TEXTS, start, ids.length);
+        return textsMap;
+    }
 
-        try (Cursor cursor = context.getContentResolver().query(partUri, projection, selection, selectionArgs, null)) {
+    private void readMmsTextParts(Uri partUri, String[] projection, String[] ids,
+                                  List<String> partMids, List<String> partIds, List<String> partTexts) {
+        String selection = "mid IN (" + makePlaceholders(ids.length) + ")";
+
+        try (Cursor cursor = query(partUri, projection, selection, ids, null)) {
             if (cursor != null) {
                 int midIndex = cursor.getColumnIndex("mid");
                 int idIndex = cursor.getColumnIndex("_id");
@@ -399,48 +2573,200 @@ public class MessageReader {
                 int textIndex = cursor.getColumnIndex("text");
 
                 while (cursor.moveToNext()) {
-                    String mid = cursor.getString(midIndex);
-                    String partId = cursor.getString(idIndex);
                     String type = cursor.getString(ctIndex);
 
-                    String data = cursor.getString(dataIndex);
-                    String text = "";
-
-                    if ("text/plain".equals(type) || "application/smil".equals(type)) {
-                        if (data != null) {
-                            text = getMmsPartText(partId);
-                        } else {
-                            text = cursor.getString(textIndex);
-                        }
-
-                        String existingText = textsMap.get(mid);
-                        if (existingText == null) {
-                            textsMap.put(mid, text);
-                        } else {
-                            textsMap.put(mid, existingText + text);
-                        }
+                    // SMIL parts only describe the slide layout
+                    if ("text/plain".equals(type)) {
+                        partMids.add(cursor.getString(midIndex));
+                        partIds.add(cursor.getString(idIndex));
+                        partTexts.add(cursor.isNull(dataIndex) ? cursor.getString(textIndex) : null);
                     }
                 }
             }
         } catch (Exception e) {
             e.printStackTrace();
         }
+    }
 
-        return textsMap;
+    /**
+     * Lists the parts of one MMS without reading their content.
+     */
+    public JSONArray getMessageParts(String mmsId) throws JSONException {
+        JSONArray parts = new JSONArray();
+        String[] projection = {"_id", "ct", "name", "cl", "_data"};
+        try (Cursor cursor = query(Uri.parse("content://mms/part"), projection, "mid = ?",
+                new String[]{mmsId}, "seq")) {
+            if (cursor == null) {
+                return parts;
+            }
+            while (cursor.moveToNext()) {
+                String contentType = cursor.getString(1);
+                if ("application/smil".equals(contentType)) {
+                    continue;
+                }
+                JSONObject part = new JSONObject();
+                part.put("partId", cursor.getString(0));
+                part.put("contentType", contentType);
+                String name = cursor.getString(2);
+                part.put("name", name != null ? name : cursor.getString(3));
+                part.put("stored", !cursor.isNull(4));
+                parts.put(part);
+            }
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+        return parts;
+    }
+
+    /**
+     * Reads a chunk of a single MMS part. Text parts are returned as
+     * {@code text}, with offset and length counted in characters, any other
+     * part as base64 {@code data}, counted in bytes. At most
+     * {@link #MAX_PART_CHUNK_SIZE} is read per call; {@code hasMore} tells
+     * whether the part continues past the chunk. Returns null if the part
+     * does not belong to the message.
+     */
+    public JSONObject getMessagePart(String mmsId, String partId, long offset, int length)
+            throws JSONException, IOException {
+        String contentType;
+        String inlineText;
+        boolean stored;
+        String[] projection = {"ct", "_data", "text"};
+        try (Cursor cursor = query(Uri.parse("content://mms/part"), projection, "_id = ? AND mid = ?",
+                new String[]{partId, mmsId}, null)) {
+            if (cursor == null || !cursor.moveToFirst()) {
+                return null;
+            }
+            contentType = cursor.getString(0);
+            stored = !cursor.isNull(1);
+            inlineText = cursor.getString(2);
+        }
+
+        int chunkSize = Math.max(Math.min(length, MAX_PART_CHUNK_SIZE), 0);
+        JSONObject part = new JSONObject();
+        part.put("partId", partId);
+        part.put("contentType", contentType);
+        part.put("offset", offset);
+
+        boolean hasMore;
+        boolean isText = contentType != null && contentType.startsWith("text/");
+        if (isText && !stored) {
+            String text = inlineText != null ? inlineText : "";
+            int from = (int) Math.min(offset, text.length());
+            int to = (int) Math.min((long) from + chunkSize, text.length());
+            part.put("text", text.substring(from, to));
+            hasMore = to < text.length();
+        } else if (isText) {
+            StringBuilder sb = new StringBuilder();
+            hasMore = readMmsPartText(partId, offset, chunkSize, sb);
+            part.put("text", sb.toString());
+        } else {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            hasMore = readMmsPartBytes(partId, offset, chunkSize, out);
+            part.put("data", Base64.encodeToString(out.toByteArray(), Base64.NO_WRAP));
+        }
+        part.put("hasMore", hasMore);
+        return part;
     }
 
-    private String getMmsPartText(String partId) {
+    /**
+     * Copies up to {@code length} bytes starting at {@code offset} into
+     * {@code out} and returns whether the part has bytes past them.
+     */
+    private boolean readMmsPartBytes(String partId, long offset, int length, ByteArrayOutputStream out)
+            throws IOException {
         Uri partUri = Uri.parse("content://mms/part/" + partId);
-        StringBuilder sb = new StringBuilder();
+        counters.onStreamOpen();
+        boolean hasMore;
+        try (InputStream is = context.getContentResolver().openInputStream(partUri)) {
+            if (is == null) {
+                throw new IOException("Cannot open part " + partId);
+            }
+            skipFully(is, offset);
+            byte[] buffer = new byte[PART_BUFFER_SIZE];
+            int n;
+            while (out.size() < length
+                    && (n = is.read(buffer, 0, Math.min(buffer.length, length - out.size()))) != -1) {
+                out.write(buffer, 0, n);
+            }
+            hasMore = is.read() != -1;
+        }
+        counters.onStreamRead(out.size());
+        return hasMore;
+    }
+
+    /**
+     * Appends up to {@code length} characters starting at {@code offset} to
+     * {@code sb} and returns whether the part has characters past them.
+     */
+    private boolean readMmsPartText(String partId, long offset, int length, StringBuilder sb)
+            throws IOException {
+        Uri partUri = Uri.parse("content://mms/part/" + partId);
+        counters.onStreamOpen();
+        boolean hasMore;
+        InputStream is = context.getContentResolver().openInputStream(partUri);
+        if (is == null) {
+            throw new IOException("Cannot open part " + partId);
+        }
+        try (Reader reader = new InputStreamReader(is, StandardCharsets.UTF_8)) {
+            long skipped = 0;
+            while (skipped < offset) {
+                long n = reader.skip(offset - skipped);
+                if (n <= 0) {
+                    break;
+                }
+                skipped += n;
+            }
+            char[] buffer = new char[PART_BUFFER_SIZE];
+            int n;
+            while (sb.length() < length
+                    && (n = reader.read(buffer, 0, Math.min(buffer.length, length - sb.length()))) != -1) {
+                sb.append(buffer, 0, n);
+            }
+            hasMore = reader.read() != -1;
+        }
+        counters.onStreamRead(sb.length());
+        return hasMore;
+    }
+
+    private static void skipFully(InputStream is, long count) throws IOException {
+        long skipped = 0;
+        while (skipped < count) {
+            long n = is.skip(count - skipped);
+            if (n <= 0) {
+                if (is.read() == -1) {
+                    return;
+                }
+                n = 1;
+            }
+            skipped += n;
+        }
+    }
+
+    private String getMmsPartText(String partId, char[] buffer, StringBuilder sb, int maxLength) {
+        long start = System.nanoTime();
+        Uri partUri = Uri.parse("content://mms/part/" + partId);
+        counters.onStreamOpen();
+        CallMetrics metrics = callMetrics.get();
+        if (metrics != null) {
+            metrics.onStreamOpen();
+        }
+        long read = 0;
         try (InputStream is = context.getContentResolver().openInputStream(partUri);
-             BufferedReader reader = new BufferedReader(new InputStreamReader(is))) {
-            String temp;
-            while ((temp = reader.readLine()) != null) {
-                sb.append(temp);
+             Reader reader = new InputStreamReader(is, StandardCharsets.UTF_8)) {
+            int n;
+            while (sb.length() < maxLength && (n = reader.read(buffer)) != -1) {
+                sb.append(buffer, 0, n);
+                read += n;
             }
         } catch (Exception e) {
             e.printStackTrace();
         }
+        counters.onStreamRead(read);
+        if (metrics != null) {
+            metrics.onStreamRead(read);
+            metrics.record(CallMetrics.PART_STREAMS, System.nanoTime() - start, 1);
+        }
         return sb.toString();
     }
 }
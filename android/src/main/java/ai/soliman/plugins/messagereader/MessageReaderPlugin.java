@@ -2,14 +2,34 @@ package ai.soliman.plugins.messagereader;
 
 import android.Manifest;
 import android.content.pm.PackageManager;
+import android.database.ContentObserver;
+import android.net.Uri;
+import android.provider.Telephony;
 
 import com.getcapacitor.*;
 import com.getcapacitor.annotation.CapacitorPlugin;
 import com.getcapacitor.annotation.Permission;
 
 import org.json.JSONArray;
+import org.json.JSONObject;
 import org.json.JSONException;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
 /**
  * This plugin provides functionality to read SMS messages on Android devices.
  */
@@ -21,11 +41,290 @@ import org.json.JSONException;
 )
 public class MessageReaderPlugin extends Plugin {
 
+    private static final int DEFAULT_STREAM_BATCH_SIZE = 50;
+    private static final int MAX_CONCURRENT_STREAMS = 2;
+    private static final int MAX_CONCURRENT_CALLS = 4;
+    private static final int DEFAULT_SEARCH_LIMIT = 50;
+    private static final int DEFAULT_CONVERSATION_LIMIT = 50;
+    private static final String MESSAGE_RECEIVED_EVENT = "messageReceived";
+    private static final String FORMAT_OBJECTS = "objects";
+    private static final String FORMAT_COMPACT = "compact";
+    private static final long MESSAGE_RECEIVED_DEBOUNCE_MS = 500;
+    /** How often an MMS whose text parts are not stored yet is read again. */
+    private static final long MMS_TEXT_RETRY_MS = 2000;
+    /** How long an MMS is held back for its text before it is reported without. */
+    private static final long MMS_TEXT_WAIT_MS = 60 * 1000;
+    /** What a messageReceived event carries, and so all a delivery reads. */
+    private static final List<String> MESSAGE_RECEIVED_FIELDS = Collections.unmodifiableList(
+            Arrays.asList("id", "sender", "body", "date", "messageType", "type", "subscriptionId"));
+
     private MessageReader messageReader;
+    private ExecutorService streamExecutor;
+    private ExecutorService callExecutor;
+    private final Map<String, AtomicBoolean> activeStreams = new ConcurrentHashMap<>();
+    private ContentObserver messageObserver;
+    private ExecutorService indexExecutor;
+    private final AtomicBoolean indexSyncPending = new AtomicBoolean(false);
+    private final AtomicBoolean indexSyncRunning = new AtomicBoolean(false);
+    private ScheduledExecutorService receivedExecutor;
+    private ContentObserver receivedObserver;
+    private final AtomicBoolean receivedDeliveryPending = new AtomicBoolean(false);
+    private volatile SyncWatermark receivedWatermark;
+    /** MMS held back until their text is stored, by id, with when they were first read. */
+    private final Map<Long, Long> pendingMms = new LinkedHashMap<>();
 
     @Override
     public void load() {
         messageReader = new MessageReader(getContext());
+        streamExecutor = Executors.newFixedThreadPool(MAX_CONCURRENT_STREAMS);
+        callExecutor = Executors.newFixedThreadPool(MAX_CONCURRENT_CALLS);
+        indexExecutor = Executors.newSingleThreadExecutor();
+        receivedExecutor = Executors.newSingleThreadScheduledExecutor();
+
+        messageObserver = new ContentObserver(null) {
+            @Override
+            public void onChange(boolean selfChange) {
+                messageReader.onMessagesChanged();
+                scheduleIndexSync();
+            }
+        };
+        try {
+            getContext().getContentResolver().registerContentObserver(Telephony.Sms.CONTENT_URI, true, messageObserver);
+            getContext().getContentResolver().registerContentObserver(Uri.parse("content://mms"), true, messageObserver);
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+    }
+
+    @Override
+    protected void handleOnDestroy() {
+        getContext().getContentResolver().unregisterContentObserver(messageObserver);
+        stopReceivedObserver();
+        receivedExecutor.shutdownNow();
+        for (AtomicBoolean cancelled : activeStreams.values()) {
+            cancelled.set(true);
+        }
+        streamExecutor.shutdown();
+        callExecutor.shutdown();
+        indexExecutor.shutdown();
+        MessageSearchIndex searchIndex = messageReader.getSearchIndex();
+        if (searchIndex != null) {
+            searchIndex.close();
+        }
+        MmsSnapshot mmsSnapshot = messageReader.getMmsSnapshot();
+        if (mmsSnapshot != null) {
+            mmsSnapshot.close();
+        }
+        messageReader.shutdown();
+    }
+
+    @Override
+    protected void handleOnResume() {
+        super.handleOnResume();
+        // Returning from a permission dialog or the settings: messages from
+        // now on are reported if listeners subscribed before READ_SMS was granted
+        startReceivedWatermark();
+    }
+
+    @Override
+    @PluginMethod(returnType = PluginMethod.RETURN_NONE)
+    public void addListener(PluginCall call) {
+        super.addListener(call);
+        updateReceivedObserver();
+    }
+
+    @Override
+    @PluginMethod(returnType = PluginMethod.RETURN_NONE)
+    public void removeListener(PluginCall call) {
+        super.removeListener(call);
+        updateReceivedObserver();
+    }
+
+    @Override
+    @PluginMethod
+    public void removeAllListeners(PluginCall call) {
+        super.removeAllListeners(call);
+        updateReceivedObserver();
+    }
+
+    /**
+     * Keeps a ContentObserver registered exactly while JS listens to
+     * messageReceived events.
+     */
+    private synchronized void updateReceivedObserver() {
+        boolean listening = hasListeners(MESSAGE_RECEIVED_EVENT);
+        if (listening && receivedObserver == null) {
+            receivedObserver = new ContentObserver(null) {
+                @Override
+                public void onChange(boolean selfChange) {
+                    scheduleReceivedDelivery();
+                }
+            };
+            try {
+                getContext().getContentResolver().registerContentObserver(Telephony.Sms.CONTENT_URI, true, receivedObserver);
+                getContext().getContentResolver().registerContentObserver(Uri.parse("content://mms"), true, receivedObserver);
+            } catch (Exception e) {
+                e.printStackTrace();
+            }
+            // Only messages arriving after the first listener are reported
+            startReceivedWatermark();
+        } else if (!listening) {
+            stopReceivedObserver();
+        }
+    }
+
+    /**
+     * Takes the watermark messageReceived events are reported from, unless
+     * one is already set or READ_SMS is not granted yet. Queued on the
+     * received executor, so it runs before any delivery scheduled after it.
+     */
+    private synchronized void startReceivedWatermark() {
+        if (receivedObserver == null || receivedWatermark != null) {
+            return;
+        }
+        receivedExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                if (receivedWatermark == null && hasListeners(MESSAGE_RECEIVED_EVENT)
+                        && getPermissionState("readSms") == PermissionState.GRANTED) {
+                    receivedWatermark = messageReader.getLatestWatermark();
+                }
+            }
+        });
+    }
+
+    private synchronized void stopReceivedObserver() {
+        if (receivedObserver != null) {
+            getContext().getContentResolver().unregisterContentObserver(receivedObserver);
+            receivedObserver = null;
+        }
+        receivedWatermark = null;
+    }
+
+    /**
+     * The watermark messageReceived events are reported from, or null until
+     * it is taken.
+     */
+    SyncWatermark getReceivedWatermark() {
+        return receivedWatermark;
+    }
+
+    private void scheduleReceivedDelivery() {
+        scheduleReceivedDelivery(MESSAGE_RECEIVED_DEBOUNCE_MS);
+    }
+
+    private void scheduleReceivedDelivery(long delayMs) {
+        // Coalesce a burst of change notifications into one delta read
+        if (!receivedDeliveryPending.compareAndSet(false, true)) {
+            return;
+        }
+        receivedExecutor.schedule(new Runnable() {
+            @Override
+            public void run() {
+                receivedDeliveryPending.set(false);
+                try {
+                    deliverReceivedMessages();
+                } catch (Exception e) {
+                    e.printStackTrace();
+                }
+            }
+        }, delayMs, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Reads the inbox rows above the watermark and emits them oldest first.
+     * An MMS is often added before its text parts are stored, so one without
+     * text is held back and read again until its text is there or
+     * {@link #MMS_TEXT_WAIT_MS} has passed.
+     * Runs on the single received executor, so deliveries never overlap.
+     */
+    private void deliverReceivedMessages() throws JSONException, TimeoutException {
+        SyncWatermark since = receivedWatermark;
+        if (since == null || !hasListeners(MESSAGE_RECEIVED_EVENT)
+                || getPermissionState("readSms") != PermissionState.GRANTED) {
+            // Without a baseline the latest watermark would already include
+            // the rows that triggered this change, so wait for startReceivedWatermark
+            pendingMms.clear();
+            return;
+        }
+
+        GetMessageFilterInput filter = new GetMessageFilterInput();
+        filter.setFields(MESSAGE_RECEIVED_FIELDS);
+        // Sent messages and drafts change the stores too, but were not received
+        filter.setBoxes(Collections.singletonList("inbox"));
+        long now = System.nanoTime();
+
+        // MMS held back by an earlier delivery, older than anything in the delta
+        Set<Long> retried = new HashSet<>();
+        if (!pendingMms.isEmpty()) {
+            List<String> ids = new ArrayList<>();
+            for (Long id : pendingMms.keySet()) {
+                ids.add(String.valueOf(id));
+            }
+            // SMS can share the ids, so leave room for them
+            GetMessageFilterInput retry = filter.withIds(ids);
+            retry.setLimit(2 * ids.size());
+            MessageRows messages = messageReader.getMessages(retry, MessageReader.DEFAULT_TIMEOUT_MS);
+            for (int i = messages.size() - 1; i >= 0; i--) {
+                if (messages.isMms(i) && pendingMms.containsKey(messages.getId(i))) {
+                    retried.add(messages.getId(i));
+                    emitReceivedMessage(messages, i, now);
+                }
+            }
+            // The rest were deleted or moved out of the inbox meanwhile
+            pendingMms.keySet().retainAll(retried);
+        }
+
+        SyncResult delta = messageReader.getMessagesSince(filter, since, null, null, MessageReader.DEFAULT_TIMEOUT_MS);
+        receivedWatermark = delta.getWatermark();
+        MessageRows messages = delta.getMessages();
+        for (int i = messages.size() - 1; i >= 0; i--) {
+            if (messages.isMms(i) && retried.contains(messages.getId(i))) {
+                continue;
+            }
+            // After a reset the delta is the whole store, restored messages
+            // included, so only those newer than the watermark are new
+            if (delta.isReset() && !isNewerThan(messages, i, since)) {
+                continue;
+            }
+            emitReceivedMessage(messages, i, now);
+        }
+
+        if (!pendingMms.isEmpty()) {
+            scheduleReceivedDelivery(MMS_TEXT_RETRY_MS);
+        }
+    }
+
+    /**
+     * Emits the row as a messageReceived event, or holds it back while it is
+     * an MMS without text that has not waited {@link #MMS_TEXT_WAIT_MS} yet.
+     */
+    private void emitReceivedMessage(MessageRows messages, int index, long now) throws JSONException {
+        if (messages.isMms(index) && MessageReader.MMS_NO_TEXT_BODY.equals(messages.getBody(index))) {
+            Long firstRead = pendingMms.get(messages.getId(index));
+            if (firstRead == null) {
+                pendingMms.put(messages.getId(index), now);
+                return;
+            }
+            if (now - firstRead < TimeUnit.MILLISECONDS.toNanos(MMS_TEXT_WAIT_MS)) {
+                return;
+            }
+        }
+        if (messages.isMms(index)) {
+            pendingMms.remove(messages.getId(index));
+        }
+        notifyListeners(MESSAGE_RECEIVED_EVENT, JSObject.fromJSONObject(messages.toJSON(index, MESSAGE_RECEIVED_FIELDS)));
+    }
+
+    /**
+     * Whether the row is dated after the newest row of its provider at the
+     * watermark. MMS dates are compared in seconds, as the provider stores them.
+     */
+    private static boolean isNewerThan(MessageRows messages, int index, SyncWatermark watermark) {
+        if (messages.isMms(index)) {
+            return messages.getDate(index) / 1000 > watermark.getMmsDate();
+        }
+        return messages.getDate(index) > watermark.getSmsDate();
     }
 
     /**
@@ -48,47 +347,822 @@ public class MessageReaderPlugin extends Plugin {
      * @param call The plugin call containing filter options.
      */
     @PluginMethod(returnType = PluginMethod.RETURN_CALLBACK)
-    private void fetchMessages(PluginCall call) {
+    private void fetchMessages(final PluginCall call) {
+        // Run off the plugin thread so concurrent calls do not wait on each other
+        callExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    GetMessageFilterInput filter = createFilterFromCall(call);
+                    long timeout = call.getLong("timeout", MessageReader.DEFAULT_TIMEOUT_MS);
+                    boolean compact = isCompactFormat(call.getString("format"));
+                    CallMetrics metrics = createCallMetrics(call);
+                    MessageRows messages = messageReader.getMessages(filter, timeout, metrics);
+                    long serializeStart = System.nanoTime();
+                    JSObject ret = new JSObject();
+                    putMessages(ret, messages, filter.getFields(), compact);
+                    String nextPageToken = messageReader.nextPageToken(filter, messages);
+                    if (nextPageToken != null) {
+                        ret.put("nextPageToken", nextPageToken);
+                    }
+                    if (messages.isTruncated()) {
+                        ret.put("truncated", true);
+                    }
+                    if (metrics != null) {
+                        metrics.recordSerialization(System.nanoTime() - serializeStart, messages.size());
+                        putDiagnostics(ret, metrics);
+                    }
+                    call.resolve(ret);
+                } catch (TimeoutException e) {
+                    call.reject("Timed out retrieving messages", "TIMEOUT", e);
+                } catch (Exception e) {
+                    call.reject("Failed to retrieve messages", e);
+                }
+            }
+        });
+    }
+
+    /**
+     * Runs several getMessages filters in one call. Filters that differ only
+     * in ids or only in senders share their provider queries. Results are
+     * returned in the order of the filters.
+     *
+     * @param call The plugin call containing the filters array and an optional timeout.
+     */
+    @PluginMethod
+    public void getMessagesBatch(PluginCall call) {
+        if (getPermissionState("readSms") != PermissionState.GRANTED) {
+            requestPermissionForAlias("readSms", call, "batchPermissionCallback");
+        } else {
+            fetchMessagesBatch(call);
+        }
+    }
+
+    private void fetchMessagesBatch(final PluginCall call) {
+        callExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    JSONArray options = call.getArray("filters");
+                    if (options == null) {
+                        call.reject("filters is required");
+                        return;
+                    }
+                    List<GetMessageFilterInput> filters = new ArrayList<>(options.length());
+                    for (int i = 0; i < options.length(); i++) {
+                        filters.add(createFilter(options.getJSONObject(i)));
+                    }
+
+                    long timeout = call.getLong("timeout", MessageReader.DEFAULT_TIMEOUT_MS);
+                    boolean compact = isCompactFormat(call.getString("format"));
+                    CallMetrics metrics = createCallMetrics(call);
+                    List<MessageRows> pages = messageReader.getMessagesBatch(filters, timeout, metrics);
+
+                    long serializeStart = System.nanoTime();
+                    long serializedRows = 0;
+                    JSArray results = new JSArray();
+                    for (int i = 0; i < pages.size(); i++) {
+                        GetMessageFilterInput filter = filters.get(i);
+                        MessageRows messages = pages.get(i);
+                        JSObject result = new JSObject();
+                        putMessages(result, messages, filter.getFields(), compact);
+                        String nextPageToken = messageReader.nextPageToken(filter, messages);
+                        if (nextPageToken != null) {
+                            result.put("nextPageToken", nextPageToken);
+                        }
+                        if (messages.isTruncated()) {
+                            result.put("truncated", true);
+                        }
+                        results.put(result);
+                        serializedRows += messages.size();
+                    }
+                    JSObject ret = new JSObject();
+                    ret.put("results", results);
+                    if (metrics != null) {
+                        metrics.recordSerialization(System.nanoTime() - serializeStart, serializedRows);
+                        putDiagnostics(ret, metrics);
+                    }
+                    call.resolve(ret);
+                } catch (TimeoutException e) {
+                    call.reject("Timed out retrieving messages", "TIMEOUT", e);
+                } catch (Exception e) {
+                    call.reject("Failed to retrieve messages", e);
+                }
+            }
+        });
+    }
+
+    /**
+     * Parses the format option: {@code objects} (the default) or {@code compact}.
+     *
+     * @throws IllegalArgumentException if the format is unknown.
+     */
+    private static boolean isCompactFormat(String format) {
+        if (format == null || FORMAT_OBJECTS.equals(format)) {
+            return false;
+        }
+        if (FORMAT_COMPACT.equals(format)) {
+            return true;
+        }
+        throw new IllegalArgumentException("Invalid format: " + format);
+    }
+
+    /**
+     * Puts a page into the result as an array of message objects or, in the
+     * compact format, as the field order plus a payload string of JSON arrays,
+     * which skips building a JSON object per message.
+     */
+    private static void putMessages(JSObject result, MessageRows messages, List<String> fields, boolean compact)
+            throws JSONException {
+        if (!compact) {
+            result.put("messages", messages.toJSON(fields));
+            return;
+        }
+        List<String> order = fields != null ? fields : MessageRows.FIELDS;
+        result.put("fields", new JSONArray(order));
+        result.put("payload", CompactRows.encode(messages, order));
+    }
+
+    /**
+     * Returns the metrics to fill for this call, or null when neither metrics
+     * mode nor the call's diagnostics option is on.
+     */
+    private CallMetrics createCallMetrics(PluginCall call) {
+        if (messageReader.getMetrics() != null || call.getBoolean("diagnostics", false)) {
+            return new CallMetrics();
+        }
+        return null;
+    }
+
+    /**
+     * Adds the call's metrics to the rolling windows and to the result.
+     */
+    private void putDiagnostics(JSObject ret, CallMetrics metrics) throws JSONException {
+        metrics.finish();
+        MessageMetrics rolling = messageReader.getMetrics();
+        if (rolling != null) {
+            rolling.add(metrics);
+        }
+        ret.put("diagnostics", metrics.toJSON());
+    }
+
+    private void batchPermissionCallback(PluginCall call) {
+        if (getPermissionState("readSms") == PermissionState.GRANTED) {
+            fetchMessagesBatch(call);
+        } else {
+            call.reject("Permissions not granted");
+        }
+    }
+
+    /**
+     * Retrieves the messages added since a watermark returned by a previous
+     * call, the new watermark, and which of the known ids were deleted.
+     *
+     * @param call The plugin call containing the watermark, known ids and filter options.
+     */
+    @PluginMethod
+    public void getMessagesSince(PluginCall call) {
+        if (getPermissionState("readSms") != PermissionState.GRANTED) {
+            requestPermissionForAlias("readSms", call, "syncPermissionCallback");
+        } else {
+            fetchMessagesSince(call);
+        }
+    }
+
+    private void fetchMessagesSince(final PluginCall call) {
+        callExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                readMessagesSince(call);
+            }
+        });
+    }
+
+    private void readMessagesSince(PluginCall call) {
         try {
             GetMessageFilterInput filter = createFilterFromCall(call);
-            JSONArray messages = messageReader.getMessages(filter);
+            SyncWatermark watermark = call.hasOption("watermark") ? SyncWatermark.parse(call.getString("watermark")) : null;
+            List<String> knownSmsIds = call.hasOption("knownSmsIds") ? call.getArray("knownSmsIds").<String>toList() : null;
+            List<String> knownMmsIds = call.hasOption("knownMmsIds") ? call.getArray("knownMmsIds").<String>toList() : null;
+
+            long timeout = call.getLong("timeout", MessageReader.DEFAULT_WALK_TIMEOUT_MS);
+
+            SyncResult result = messageReader.getMessagesSince(filter, watermark, knownSmsIds, knownMmsIds, timeout);
+
             JSObject ret = new JSObject();
-            ret.put("messages", messages);
+            ret.put("messages", result.getMessages().toJSON(filter.getFields()));
+            ret.put("watermark", result.getWatermark().toString());
+            ret.put("deletedSmsIds", new JSArray(result.getDeletedSmsIds()));
+            ret.put("deletedMmsIds", new JSArray(result.getDeletedMmsIds()));
+            ret.put("reset", result.isReset());
             call.resolve(ret);
+        } catch (TimeoutException e) {
+            call.reject("Timed out retrieving messages", "TIMEOUT", e);
+        } catch (Exception e) {
+            call.reject("Failed to retrieve messages", e);
+        }
+    }
+
+    private void syncPermissionCallback(PluginCall call) {
+        if (getPermissionState("readSms") == PermissionState.GRANTED) {
+            fetchMessagesSince(call);
+        } else {
+            call.reject("Permissions not granted");
+        }
+    }
+
+    /**
+     * Retrieves one page of conversations with their latest snippet, total
+     * and unread counts and recipients. Use the threadId filter of getMessages
+     * to page through the messages of one conversation.
+     *
+     * @param call The plugin call containing indexFrom and limit.
+     */
+    @PluginMethod
+    public void getConversations(PluginCall call) {
+        if (getPermissionState("readSms") != PermissionState.GRANTED) {
+            requestPermissionForAlias("readSms", call, "conversationsPermissionCallback");
+        } else {
+            fetchConversations(call);
+        }
+    }
+
+    private void fetchConversations(final PluginCall call) {
+        callExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    JSONArray conversations = messageReader.getConversations(
+                            call.getInt("indexFrom", 0), call.getInt("limit", DEFAULT_CONVERSATION_LIMIT));
+                    JSObject ret = new JSObject();
+                    ret.put("conversations", conversations);
+                    call.resolve(ret);
+                } catch (Exception e) {
+                    call.reject("Failed to retrieve conversations", e);
+                }
+            }
+        });
+    }
+
+    private void conversationsPermissionCallback(PluginCall call) {
+        if (getPermissionState("readSms") == PermissionState.GRANTED) {
+            fetchConversations(call);
+        } else {
+            call.reject("Permissions not granted");
+        }
+    }
+
+    /**
+     * Lists the parts of an MMS (id, content type and name) without reading them.
+     *
+     * @param call The plugin call containing the mmsId.
+     */
+    @PluginMethod
+    public void getMessageParts(PluginCall call) {
+        if (getPermissionState("readSms") != PermissionState.GRANTED) {
+            requestPermissionForAlias("readSms", call, "partsPermissionCallback");
+        } else {
+            fetchMessageParts(call);
+        }
+    }
+
+    private void fetchMessageParts(final PluginCall call) {
+        final String mmsId = call.getString("mmsId");
+        if (mmsId == null) {
+            call.reject("mmsId is required");
+            return;
+        }
+        callExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    JSObject ret = new JSObject();
+                    ret.put("parts", messageReader.getMessageParts(mmsId));
+                    call.resolve(ret);
+                } catch (Exception e) {
+                    call.reject("Failed to retrieve message parts", e);
+                }
+            }
+        });
+    }
+
+    private void partsPermissionCallback(PluginCall call) {
+        if (getPermissionState("readSms") == PermissionState.GRANTED) {
+            fetchMessageParts(call);
+        } else {
+            call.reject("Permissions not granted");
+        }
+    }
+
+    /**
+     * Reads a chunk of a single MMS part: text parts as text, others as base64
+     * data.
+     *
+     * @param call The plugin call containing the mmsId, partId, offset and length.
+     */
+    @PluginMethod
+    public void getMessagePart(PluginCall call) {
+        if (getPermissionState("readSms") != PermissionState.GRANTED) {
+            requestPermissionForAlias("readSms", call, "partPermissionCallback");
+        } else {
+            fetchMessagePart(call);
+        }
+    }
+
+    private void fetchMessagePart(final PluginCall call) {
+        final String mmsId = call.getString("mmsId");
+        final String partId = call.getString("partId");
+        if (mmsId == null || partId == null) {
+            call.reject("mmsId and partId are required");
+            return;
+        }
+        final long offset = call.getLong("offset", 0L);
+        final int length = call.getInt("length", MessageReader.MAX_PART_CHUNK_SIZE);
+        if (offset < 0 || length <= 0) {
+            call.reject("offset must not be negative and length must be positive");
+            return;
+        }
+        callExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    JSONObject part = messageReader.getMessagePart(mmsId, partId, offset, length);
+                    if (part == null) {
+                        call.reject("Part not found");
+                    } else {
+                        call.resolve(JSObject.fromJSONObject(part));
+                    }
+                } catch (Exception e) {
+                    call.reject("Failed to read message part", e);
+                }
+            }
+        });
+    }
+
+    private void partPermissionCallback(PluginCall call) {
+        if (getPermissionState("readSms") == PermissionState.GRANTED) {
+            fetchMessagePart(call);
+        } else {
+            call.reject("Permissions not granted");
+        }
+    }
+
+    /**
+     * Computes counts, the date range and optional per-sender and per-day
+     * buckets of the messages matching the filter options, without returning
+     * the messages themselves.
+     *
+     * @param call The plugin call containing filter options, bySender and byDay.
+     */
+    @PluginMethod
+    public void getMessageStats(PluginCall call) {
+        if (getPermissionState("readSms") != PermissionState.GRANTED) {
+            requestPermissionForAlias("readSms", call, "statsPermissionCallback");
+        } else {
+            fetchMessageStats(call);
+        }
+    }
+
+    private void fetchMessageStats(final PluginCall call) {
+        callExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    GetMessageFilterInput filter = createFilterFromCall(call);
+                    MessageStats stats = messageReader.getMessageStats(filter,
+                            call.getBoolean("bySender", true), call.getBoolean("byDay", true));
+                    call.resolve(JSObject.fromJSONObject(stats.toJSON()));
+                } catch (Exception e) {
+                    call.reject("Failed to compute message stats", e);
+                }
+            }
+        });
+    }
+
+    private void statsPermissionCallback(PluginCall call) {
+        if (getPermissionState("readSms") == PermissionState.GRANTED) {
+            fetchMessageStats(call);
+        } else {
+            call.reject("Permissions not granted");
+        }
+    }
+
+    /**
+     * Streams messages matching the filter options in batches. The callback
+     * receives {@code { streamId, messages, done }} for every batch, and a last
+     * result with {@code done: true} at the end of the stream.
+     *
+     * @param call The plugin call containing filter options and an optional batchSize.
+     */
+    @PluginMethod(returnType = PluginMethod.RETURN_CALLBACK)
+    public void streamMessages(PluginCall call) {
+        if (getPermissionState("readSms") != PermissionState.GRANTED) {
+            requestPermissionForAlias("readSms", call, "streamPermissionCallback");
+        } else {
+            startStream(call);
+        }
+    }
+
+    /**
+     * Cancels a running stream. The stream ends with a {@code done: true} result.
+     *
+     * @param call The plugin call containing the streamId.
+     */
+    @PluginMethod
+    public void cancelStream(PluginCall call) {
+        String streamId = call.getString("streamId");
+        AtomicBoolean cancelled = streamId != null ? activeStreams.get(streamId) : null;
+        if (cancelled != null) {
+            cancelled.set(true);
+        }
+        call.resolve();
+    }
+
+    private void startStream(final PluginCall call) {
+        final GetMessageFilterInput filter;
+        try {
+            filter = createFilterFromCall(call);
         } catch (Exception e) {
             call.reject("Failed to retrieve messages", e);
+            return;
+        }
+
+        final int batchSize = call.getInt("batchSize", DEFAULT_STREAM_BATCH_SIZE);
+        final long timeout = call.getLong("timeout", MessageReader.DEFAULT_WALK_TIMEOUT_MS);
+        final String streamId = call.getCallbackId();
+        final AtomicBoolean cancelled = new AtomicBoolean(false);
+
+        call.setKeepAlive(true);
+        activeStreams.put(streamId, cancelled);
+
+        streamExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                // Set once the call was rejected, so no later batch resolves it again
+                final boolean[] failed = {false};
+                try {
+                    messageReader.streamMessages(filter, batchSize, timeout, cancelled,
+                            new MessageReader.BatchListener() {
+                        @Override
+                        public void onBatch(MessageRows messages, boolean done) {
+                            if (failed[0]) {
+                                return;
+                            }
+                            JSObject ret = new JSObject();
+                            ret.put("streamId", streamId);
+                            try {
+                                ret.put("messages", messages.toJSON(filter.getFields()));
+                            } catch (JSONException e) {
+                                failed[0] = true;
+                                cancelled.set(true);
+                                call.reject("Failed to retrieve messages", e);
+                                return;
+                            }
+                            ret.put("done", done);
+                            if (done && cancelled.get()) {
+                                ret.put("cancelled", true);
+                            }
+                            call.resolve(ret);
+                        }
+                    });
+                } catch (TimeoutException e) {
+                    if (!failed[0]) {
+                        call.reject("Timed out retrieving messages", "TIMEOUT", e);
+                    }
+                } catch (Exception e) {
+                    call.reject("Failed to retrieve messages", e);
+                } finally {
+                    activeStreams.remove(streamId);
+                    getBridge().releaseCall(call);
+                }
+            }
+        });
+    }
+
+    private void streamPermissionCallback(PluginCall call) {
+        if (getPermissionState("readSms") == PermissionState.GRANTED) {
+            startStream(call);
+        } else {
+            call.reject("Permissions not granted");
         }
     }
 
     private GetMessageFilterInput createFilterFromCall(PluginCall call) throws JSONException {
+        return createFilter(call.getData());
+    }
+
+    private GetMessageFilterInput createFilter(JSONObject options) throws JSONException {
         GetMessageFilterInput filter = new GetMessageFilterInput();
 
-        if (call.hasOption("ids")) {
-            filter.setIds(call.getArray("ids").toList());
+        if (options.has("ids")) {
+            filter.setIds(toStringList(options.optJSONArray("ids")));
+        }
+        if (options.has("body")) {
+            filter.setBody(options.getString("body"));
+        }
+        if (options.has("bodyRegex")) {
+            filter.setBodyRegex(options.getString("bodyRegex"));
+        }
+        if (options.has("bodyAnyOf")) {
+            filter.setBodyAnyOf(toStringList(options.optJSONArray("bodyAnyOf")));
+        }
+        if (options.has("bodyAllOf")) {
+            filter.setBodyAllOf(toStringList(options.optJSONArray("bodyAllOf")));
+        }
+        filter.setCaptureGroups(options.optBoolean("captureGroups", false));
+        if (options.has("sender")) {
+            filter.setSender(options.getString("sender"));
+        }
+        if (options.has("senders")) {
+            filter.setSenders(toStringList(options.optJSONArray("senders")));
+        }
+        filter.setNormalizeSenders(options.optBoolean("normalizeSenders", false));
+        if (options.has("minDate")) {
+            filter.setMinDate(options.getLong("minDate"));
         }
-        if (call.hasOption("body")) {
-            filter.setBody(call.getString("body"));
+        if (options.has("maxDate")) {
+            filter.setMaxDate(options.getLong("maxDate"));
         }
-        if (call.hasOption("sender")) {
-            filter.setSender(call.getString("sender"));
+        if (options.has("indexFrom")) {
+            filter.setIndexFrom(options.getInt("indexFrom"));
         }
-        if (call.hasOption("minDate")) {
-            filter.setMinDate(call.getLong("minDate"));
+        if (options.has("limit")) {
+            filter.setLimit(options.getInt("limit"));
         }
-        if (call.hasOption("maxDate")) {
-            filter.setMaxDate(call.getLong("maxDate"));
+        if (options.has("maxRows")) {
+            filter.setMaxRows(options.getInt("maxRows"));
         }
-        if (call.hasOption("indexFrom")) {
-            filter.setIndexFrom(call.getInt("indexFrom"));
+        if (options.has("maxBytes")) {
+            filter.setMaxBytes(options.getLong("maxBytes"));
         }
-       
-        if (call.hasOption("limit")) {
-            filter.setLimit(call.getInt("limit"));
+        if (options.has("pageToken")) {
+            filter.setPageToken(PageToken.parse(options.getString("pageToken")));
+        }
+        if (options.has("threadId")) {
+            filter.setThreadId(options.getString("threadId"));
+        }
+        if (options.has("detail")) {
+            filter.setDetail(GetMessageFilterInput.Detail.parse(options.getString("detail")));
+        }
+        if (options.has("fields")) {
+            filter.setFields(toStringList(options.optJSONArray("fields")));
+        }
+        if (options.has("bodyPreviewLength")) {
+            filter.setBodyPreviewLength(Math.max(options.getInt("bodyPreviewLength"), 0));
+        }
+        if (options.has("boxes")) {
+            filter.setBoxes(toStringList(options.optJSONArray("boxes")));
+        }
+        if (options.has("subscriptionIds")) {
+            filter.setSubscriptionIds(toIntegerList(options.optJSONArray("subscriptionIds")));
         }
 
         return filter;
     }
 
+    private static List<Integer> toIntegerList(JSONArray array) throws JSONException {
+        if (array == null) {
+            return null;
+        }
+        List<Integer> values = new ArrayList<>(array.length());
+        for (int i = 0; i < array.length(); i++) {
+            values.add(array.getInt(i));
+        }
+        return values;
+    }
+
+    private static List<String> toStringList(JSONArray array) throws JSONException {
+        if (array == null) {
+            return null;
+        }
+        List<String> values = new ArrayList<>(array.length());
+        for (int i = 0; i < array.length(); i++) {
+            values.add(array.getString(i));
+        }
+        return values;
+    }
+
+    /**
+     * Enables, resizes or disables the in-memory result cache of getMessages.
+     * The cache is off by default and is dropped whenever SMS or MMS change.
+     *
+     * @param call The plugin call containing enabled, maxEntries and maxBytes.
+     */
+    @PluginMethod
+    public void configureCache(PluginCall call) {
+        if (call.getBoolean("enabled", true)) {
+            int maxEntries = call.getInt("maxEntries", MessageCache.DEFAULT_MAX_ENTRIES);
+            long maxBytes = call.getLong("maxBytes", MessageCache.DEFAULT_MAX_BYTES);
+            messageReader.setCache(new MessageCache(maxEntries, maxBytes));
+        } else {
+            messageReader.setCache(null);
+        }
+        call.resolve();
+    }
+
+    /**
+     * Returns hit, miss and eviction counts of the result cache.
+     *
+     * @param call The plugin call.
+     */
+    @PluginMethod
+    public void getCacheStats(PluginCall call) {
+        MessageCache cache = messageReader.getCache();
+        if (cache == null) {
+            JSObject ret = new JSObject();
+            ret.put("enabled", false);
+            call.resolve(ret);
+            return;
+        }
+        try {
+            JSObject ret = JSObject.fromJSONObject(cache.getStats());
+            ret.put("enabled", true);
+            call.resolve(ret);
+        } catch (JSONException e) {
+            call.reject("Failed to read cache stats", e);
+        }
+    }
+
+    /**
+     * Enables or disables the on-device full-text search index. Enabling it
+     * starts a background sync that indexes every message once; afterwards
+     * only new messages are indexed as the providers report changes.
+     *
+     * @param call The plugin call containing the enabled flag.
+     */
+    @PluginMethod
+    public void configureSearchIndex(PluginCall call) {
+        MessageSearchIndex current = messageReader.getSearchIndex();
+        if (call.getBoolean("enabled", true)) {
+            if (current == null) {
+                messageReader.setSearchIndex(new MessageSearchIndex(getContext()));
+            }
+            scheduleIndexSync();
+        } else if (current != null) {
+            messageReader.setSearchIndex(null);
+            current.close();
+        }
+        call.resolve();
+    }
+
+    /**
+     * Enables or disables the persistent MMS snapshot. While enabled, resolved
+     * MMS senders and bodies are kept in a private database that survives
+     * restarts, so only new or changed MMS are read from the addr and part
+     * tables. Disabling it deletes the database.
+     *
+     * @param call The plugin call containing the enabled flag.
+     */
+    @PluginMethod
+    public void configureMmsSnapshot(PluginCall call) {
+        MmsSnapshot current = messageReader.getMmsSnapshot();
+        if (call.getBoolean("enabled", true)) {
+            if (current == null) {
+                messageReader.setMmsSnapshot(new MmsSnapshot(getContext()));
+            }
+        } else if (current != null) {
+            messageReader.setMmsSnapshot(null);
+            current.delete();
+        }
+        call.resolve();
+    }
+
+    /**
+     * Searches message bodies and senders through the full-text index. The
+     * index holds message content, so it is only searched with READ_SMS.
+     *
+     * @param call The plugin call containing the query, a limit and the prefix flag.
+     */
+    @PluginMethod
+    public void searchMessages(PluginCall call) {
+        if (call.getString("query") == null) {
+            call.reject("Must provide a query");
+            return;
+        }
+        if (getPermissionState("readSms") != PermissionState.GRANTED) {
+            requestPermissionForAlias("readSms", call, "searchPermissionCallback");
+        } else {
+            fetchSearchResults(call);
+        }
+    }
+
+    private void fetchSearchResults(final PluginCall call) {
+        callExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    JSONArray messages = messageReader.searchMessages(call.getString("query"),
+                            call.getInt("limit", DEFAULT_SEARCH_LIMIT), call.getBoolean("prefix", true));
+                    JSObject ret = new JSObject();
+                    ret.put("messages", messages);
+                    ret.put("indexing", indexSyncPending.get() || indexSyncRunning.get());
+                    call.resolve(ret);
+                } catch (IllegalStateException e) {
+                    call.reject(e.getMessage());
+                } catch (Exception e) {
+                    call.reject("Failed to search messages", e);
+                }
+            }
+        });
+    }
+
+    private void searchPermissionCallback(PluginCall call) {
+        if (getPermissionState("readSms") == PermissionState.GRANTED) {
+            fetchSearchResults(call);
+        } else {
+            call.reject("Permissions not granted");
+        }
+    }
+
+    private void scheduleIndexSync() {
+        if (messageReader.getSearchIndex() == null || getPermissionState("readSms") != PermissionState.GRANTED) {
+            return;
+        }
+        // Coalesce bursts of changes into a single pending sync
+        if (!indexSyncPending.compareAndSet(false, true)) {
+            return;
+        }
+        indexExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                indexSyncRunning.set(true);
+                indexSyncPending.set(false);
+                try {
+                    messageReader.syncSearchIndex(MessageReader.DEFAULT_WALK_TIMEOUT_MS);
+                } catch (Exception e) {
+                    e.printStackTrace();
+                } finally {
+                    indexSyncRunning.set(false);
+                }
+            }
+        });
+    }
+
+    /**
+     * Returns the number of provider queries and part stream opens made so far,
+     * and the amount of characters read from part streams.
+     *
+     * @param call The plugin call, with an optional reset flag to clear the counters afterwards.
+     */
+    @PluginMethod
+    public void getQueryStats(PluginCall call) {
+        try {
+            QueryCounters counters = messageReader.getCounters();
+            JSObject ret = JSObject.fromJSONObject(counters.toJSON());
+            if (call.getBoolean("reset", false)) {
+                counters.reset();
+            }
+            call.resolve(ret);
+        } catch (JSONException e) {
+            call.reject("Failed to read query stats", e);
+        }
+    }
+
+    /**
+     * Enables or disables metrics mode. While enabled, getMessages and
+     * getMessagesBatch results carry per-stage diagnostics, and the timings
+     * are kept in rolling windows of windowSize calls for getMetrics.
+     *
+     * @param call The plugin call containing enabled and windowSize.
+     */
+    @PluginMethod
+    public void configureMetrics(PluginCall call) {
+        if (call.getBoolean("enabled", true)) {
+            int windowSize = call.getInt("windowSize", MessageMetrics.DEFAULT_WINDOW_SIZE);
+            messageReader.setMetrics(new MessageMetrics(windowSize));
+        } else {
+            messageReader.setMetrics(null);
+        }
+        call.resolve();
+    }
+
+    /**
+     * Returns p50/p90/p99/max durations per stage over the recent calls, and
+     * the rows, queries and stream reads counted since metrics were enabled.
+     *
+     * @param call The plugin call, with an optional reset flag to clear the metrics afterwards.
+     */
+    @PluginMethod
+    public void getMetrics(PluginCall call) {
+        MessageMetrics metrics = messageReader.getMetrics();
+        if (metrics == null) {
+            JSObject ret = new JSObject();
+            ret.put("enabled", false);
+            call.resolve(ret);
+            return;
+        }
+        try {
+            JSObject ret = JSObject.fromJSONObject(metrics.toJSON());
+            ret.put("enabled", true);
+            if (call.getBoolean("reset", false)) {
+                metrics.reset();
+            }
+            call.resolve(ret);
+        } catch (JSONException e) {
+            call.reject("Failed to read metrics", e);
+        }
+    }
+
     /**
      * Checks the current permission status for reading SMS messages.
      * 
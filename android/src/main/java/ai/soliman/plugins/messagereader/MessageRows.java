@@ -0,0 +1,242 @@
+package ai.soliman.plugins.messagereader;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * Compact, column-oriented list of messages. Ids and dates are kept in
+ * primitive arrays and sender strings are interned per container, so reading
+ * a page allocates a handful of arrays instead of one JSONObject per row.
+ * Rows are only turned into JSON once, at the bridge boundary.
+ */
+public class MessageRows {
+    public static final byte TYPE_SMS = 0;
+    public static final byte TYPE_MMS = 1;
+    public static final List<String> FIELDS = Collections.unmodifiableList(
+            Arrays.asList("id", "sender", "body", "date", "messageType", "type", "subscriptionId", "captures"));
+
+    /** Box of a message whose box was not read. Known boxes use the provider's type/msg_box codes. */
+    public static final byte BOX_UNKNOWN = 0;
+    /** Names of the boxes with codes 1 to 6, as in {@code Telephony.Sms.MESSAGE_TYPE_*}. */
+    public static final List<String> BOXES = Collections.unmodifiableList(
+            Arrays.asList("inbox", "sent", "draft", "outbox", "failed", "queued"));
+    /** Subscription id of a message whose subscription was not read. */
+    public static final int SUBSCRIPTION_UNKNOWN = Integer.MIN_VALUE;
+    /** Rough per-message overhead: one slot in each column plus String headers. */
+    public static final int MESSAGE_OVERHEAD_BYTES = 64;
+
+    private static final int INITIAL_CAPACITY = 16;
+
+    private int size;
+    private byte[] types;
+    private long[] ids;
+    private long[] dates;
+    private String[] senders;
+    private String[] bodies;
+    private byte[] boxes;
+    private int[] subscriptionIds;
+    private String[][] captures;
+    private final HashMap<String, String> senderPool = new HashMap<>();
+    private boolean truncated;
+
+    public MessageRows() {
+        this(INITIAL_CAPACITY);
+    }
+
+    public MessageRows(int capacity) {
+        int initial = Math.max(capacity, 1);
+        types = new byte[initial];
+        ids = new long[initial];
+        dates = new long[initial];
+        senders = new String[initial];
+        bodies = new String[initial];
+        boxes = new byte[initial];
+        subscriptionIds = new int[initial];
+        captures = new String[initial][];
+    }
+
+    public void add(byte type, long id, long date, String sender, String body) {
+        add(type, id, date, sender, body, BOX_UNKNOWN, SUBSCRIPTION_UNKNOWN);
+    }
+
+    public void add(byte type, long id, long date, String sender, String body, byte box, int subscriptionId) {
+        add(type, id, date, sender, body, box, subscriptionId, null);
+    }
+
+    public void add(byte type, long id, long date, String sender, String body, byte box, int subscriptionId,
+                    String[] captured) {
+        if (size == ids.length) {
+            grow();
+        }
+        types[size] = type;
+        ids[size] = id;
+        dates[size] = date;
+        senders[size] = intern(sender);
+        bodies[size] = body;
+        boxes[size] = box;
+        subscriptionIds[size] = subscriptionId;
+        captures[size] = captured;
+        size++;
+    }
+
+    /**
+     * Appends row {@code index} of another container.
+     */
+    public void add(MessageRows other, int index) {
+        add(other.types[index], other.ids[index], other.dates[index], other.senders[index], other.bodies[index],
+                other.boxes[index], other.subscriptionIds[index], other.captures[index]);
+    }
+
+    public int size() { return size; }
+
+    /**
+     * Whether the rows stop short of what was asked for because a row or byte
+     * budget ran out. More rows then follow the last one.
+     */
+    public boolean isTruncated() { return truncated; }
+    public void setTruncated(boolean truncated) { this.truncated = truncated; }
+
+    /**
+     * Returns the estimated heap size of one message: a fixed overhead plus two
+     * bytes per char of its sender and body.
+     */
+    public long estimateBytes(int index) {
+        long chars = (senders[index] != null ? senders[index].length() : 0)
+                + (bodies[index] != null ? bodies[index].length() : 0);
+        if (captures[index] != null) {
+            for (String capture : captures[index]) {
+                chars += capture != null ? capture.length() : 0;
+            }
+        }
+        return MESSAGE_OVERHEAD_BYTES + chars * 2;
+    }
+
+    public boolean isEmpty() { return size == 0; }
+
+    public byte getType(int index) { return types[index]; }
+
+    public boolean isMms(int index) { return types[index] == TYPE_MMS; }
+
+    public String getMessageType(int index) { return types[index] == TYPE_MMS ? "mms" : "sms"; }
+
+    public long getId(int index) { return ids[index]; }
+
+    public long getDate(int index) { return dates[index]; }
+
+    public String getSender(int index) { return senders[index]; }
+
+    public String getBody(int index) { return bodies[index]; }
+
+    public byte getBox(int index) { return boxes[index]; }
+
+    /**
+     * Returns the name of the message's box, or null if it is unknown.
+     */
+    public String getBoxName(int index) { return boxName(boxes[index]); }
+
+    public int getSubscriptionId(int index) { return subscriptionIds[index]; }
+
+    /**
+     * Returns the regex captures of the message's body, or null if none were asked for.
+     */
+    public String[] getCaptures(int index) { return captures[index]; }
+
+    static String boxName(int box) {
+        return box >= 1 && box <= BOXES.size() ? BOXES.get(box - 1) : null;
+    }
+
+    /**
+     * @throws IllegalArgumentException if the box name is unknown.
+     */
+    static byte parseBox(String name) {
+        int index = BOXES.indexOf(name);
+        if (index < 0) {
+            throw new IllegalArgumentException("Invalid box: " + name);
+        }
+        return (byte) (index + 1);
+    }
+
+    public JSONObject toJSON(int index) throws JSONException {
+        return toJSON(index, null);
+    }
+
+    /**
+     * Serializes one message with only the given fields, or all of them when
+     * {@code fields} is null. Null senders and bodies, and boxes and
+     * subscriptions that were not read, are left out.
+     */
+    public JSONObject toJSON(int index, List<String> fields) throws JSONException {
+        JSONObject message = new JSONObject();
+        if (fields == null || fields.contains("id")) {
+            message.put("id", String.valueOf(ids[index]));
+        }
+        if (fields == null || fields.contains("sender")) {
+            message.put("sender", senders[index]);
+        }
+        if (fields == null || fields.contains("body")) {
+            message.put("body", bodies[index]);
+        }
+        if (fields == null || fields.contains("date")) {
+            message.put("date", dates[index]);
+        }
+        if (fields == null || fields.contains("messageType")) {
+            message.put("messageType", getMessageType(index));
+        }
+        if ((fields == null || fields.contains("type")) && boxes[index] != BOX_UNKNOWN) {
+            message.put("type", getBoxName(index));
+        }
+        if ((fields == null || fields.contains("subscriptionId")) && subscriptionIds[index] != SUBSCRIPTION_UNKNOWN) {
+            message.put("subscriptionId", subscriptionIds[index]);
+        }
+        if ((fields == null || fields.contains("captures")) && captures[index] != null) {
+            JSONArray captured = new JSONArray();
+            for (String capture : captures[index]) {
+                captured.put(capture != null ? capture : JSONObject.NULL);
+            }
+            message.put("captures", captured);
+        }
+        return message;
+    }
+
+    public JSONArray toJSON() throws JSONException {
+        return toJSON((List<String>) null);
+    }
+
+    public JSONArray toJSON(List<String> fields) throws JSONException {
+        JSONArray messages = new JSONArray();
+        for (int i = 0; i < size; i++) {
+            messages.put(toJSON(i, fields));
+        }
+        return messages;
+    }
+
+    private String intern(String sender) {
+        if (sender == null) {
+            return null;
+        }
+        String pooled = senderPool.get(sender);
+        if (pooled == null) {
+            senderPool.put(sender, sender);
+            pooled = sender;
+        }
+        return pooled;
+    }
+
+    private void grow() {
+        int capacity = ids.length * 2;
+        types = Arrays.copyOf(types, capacity);
+        ids = Arrays.copyOf(ids, capacity);
+        dates = Arrays.copyOf(dates, capacity);
+        senders = Arrays.copyOf(senders, capacity);
+        bodies = Arrays.copyOf(bodies, capacity);
+        boxes = Arrays.copyOf(boxes, capacity);
+        subscriptionIds = Arrays.copyOf(subscriptionIds, capacity);
+        captures = Arrays.copyOf(captures, capacity);
+    }
+}
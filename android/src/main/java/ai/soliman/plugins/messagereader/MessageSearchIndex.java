@@ -0,0 +1,291 @@
+package ai.soliman.plugins.messagereader;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteOpenHelper;
+import android.database.sqlite.SQLiteStatement;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+
+/**
+ * On-device full-text index of message bodies and senders, kept in a private
+ * SQLite database with an FTS4 table. Rows are keyed by a docid that encodes
+ * both the provider id and the message type, so SMS and MMS ids never clash.
+ */
+public class MessageSearchIndex extends SQLiteOpenHelper {
+    private static final String DATABASE_NAME = "message_reader_search.db";
+    private static final int DATABASE_VERSION = 2;
+
+    private static final String TABLE_FTS = "messages_fts";
+    private static final String TABLE_STATE = "index_state";
+
+    /** Column weights for ranking: a sender hit counts more than a body hit. */
+    private static final double BODY_WEIGHT = 1.0;
+    private static final double SENDER_WEIGHT = 2.0;
+    /** Most matches ranked per search, newest first; older matches are not scored. */
+    static final int MAX_RANKED_CANDIDATES = 1000;
+
+    public MessageSearchIndex(Context context) {
+        super(context, DATABASE_NAME, null, DATABASE_VERSION);
+    }
+
+    @Override
+    public void onCreate(SQLiteDatabase db) {
+        db.execSQL("CREATE VIRTUAL TABLE " + TABLE_FTS + " USING fts4("
+                + "body, sender, id, message_type, date, "
+                + "notindexed=id, notindexed=message_type, notindexed=date)");
+        db.execSQL("CREATE TABLE " + TABLE_STATE + " (provider TEXT PRIMARY KEY, max_id INTEGER NOT NULL, "
+                + "max_date INTEGER NOT NULL)");
+    }
+
+    @Override
+    public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
+        db.execSQL("DROP TABLE IF EXISTS " + TABLE_FTS);
+        db.execSQL("DROP TABLE IF EXISTS " + TABLE_STATE);
+        onCreate(db);
+    }
+
+    static long docId(String messageType, long id) {
+        return "mms".equals(messageType) ? id * 2 + 1 : id * 2;
+    }
+
+    /**
+     * Adds or replaces the given messages in one transaction.
+     */
+    public void addAll(MessageRows messages) {
+        if (messages.isEmpty()) {
+            return;
+        }
+        SQLiteDatabase db = getWritableDatabase();
+        db.beginTransaction();
+        try (SQLiteStatement delete = db.compileStatement("DELETE FROM " + TABLE_FTS + " WHERE docid = ?");
+             SQLiteStatement insert = db.compileStatement("INSERT INTO " + TABLE_FTS
+                     + " (docid, body, sender, id, message_type, date) VALUES (?, ?, ?, ?, ?, ?)")) {
+            for (int i = 0; i < messages.size(); i++) {
+                String messageType = messages.getMessageType(i);
+                long docId = docId(messageType, messages.getId(i));
+
+                delete.bindLong(1, docId);
+                delete.executeUpdateDelete();
+
+                insert.bindLong(1, docId);
+                // The placeholder of MMS without text is not searchable text
+                String body = messages.getBody(i);
+                bindNullable(insert, 2, MessageReader.MMS_NO_TEXT_BODY.equals(body) ? null : body);
+                bindNullable(insert, 3, messages.getSender(i));
+                insert.bindString(4, String.valueOf(messages.getId(i)));
+                insert.bindString(5, messageType);
+                insert.bindLong(6, messages.getDate(i));
+                insert.executeInsert();
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+    }
+
+    private static void bindNullable(SQLiteStatement statement, int index, String value) {
+        if (value != null) {
+            statement.bindString(index, value);
+        } else {
+            statement.bindNull(index);
+        }
+    }
+
+    public void remove(String messageType, String id) {
+        getWritableDatabase().delete(TABLE_FTS, "docid = ?",
+                new String[]{String.valueOf(docId(messageType, Long.parseLong(id)))});
+    }
+
+    public void clear() {
+        SQLiteDatabase db = getWritableDatabase();
+        db.delete(TABLE_FTS, null, null);
+        db.delete(TABLE_STATE, null, null);
+    }
+
+    /**
+     * Returns the watermark of the last sync: the highest provider ids
+     * already indexed and the dates of those rows.
+     */
+    public SyncWatermark getWatermark() {
+        long smsId = 0;
+        long mmsId = 0;
+        long smsDate = SyncWatermark.DATE_UNKNOWN;
+        long mmsDate = SyncWatermark.DATE_UNKNOWN;
+        try (Cursor cursor = getReadableDatabase().query(TABLE_STATE,
+                new String[]{"provider", "max_id", "max_date"}, null, null, null, null, null)) {
+            while (cursor.moveToNext()) {
+                if ("sms".equals(cursor.getString(0))) {
+                    smsId = cursor.getLong(1);
+                    smsDate = cursor.getLong(2);
+                } else {
+                    mmsId = cursor.getLong(1);
+                    mmsDate = cursor.getLong(2);
+                }
+            }
+        }
+        return new SyncWatermark(smsId, mmsId, smsDate, mmsDate);
+    }
+
+    public void setWatermark(SyncWatermark watermark) {
+        SQLiteDatabase db = getWritableDatabase();
+        db.execSQL("INSERT OR REPLACE INTO " + TABLE_STATE + " (provider, max_id, max_date) VALUES ('sms', ?, ?)",
+                new Object[]{watermark.getSmsId(), watermark.getSmsDate()});
+        db.execSQL("INSERT OR REPLACE INTO " + TABLE_STATE + " (provider, max_id, max_date) VALUES ('mms', ?, ?)",
+                new Object[]{watermark.getMmsId(), watermark.getMmsDate()});
+    }
+
+    /**
+     * Searches bodies and senders for messages containing every token of the
+     * query, ranked by how characteristic the matched tokens are (rare tokens
+     * and sender hits rank higher), then by date. Only the newest
+     * {@code MAX_RANKED_CANDIDATES} matches (or {@code limit}, if larger) are
+     * ranked, and only the top {@code limit} are kept while ranking.
+     *
+     * @param prefix When true, each token also matches longer words it starts.
+     */
+    public JSONArray search(String query, int limit, boolean prefix) throws JSONException {
+        JSONArray results = new JSONArray();
+        String match = toMatchExpression(query, prefix);
+        if (match == null || limit <= 0) {
+            return results;
+        }
+
+        SQLiteDatabase db = getReadableDatabase();
+
+        // FTS4 has no rank function and custom SQL functions need API 30, so
+        // SQLite caps the candidates and matchinfo is only computed for them
+        final Comparator<Hit> worstFirst = new Comparator<Hit>() {
+            @Override
+            public int compare(Hit a, Hit b) {
+                int byRank = Double.compare(a.rank, b.rank);
+                return byRank != 0 ? byRank : Long.compare(a.date, b.date);
+            }
+        };
+        PriorityQueue<Hit> top = new PriorityQueue<>(Math.min(limit, MAX_RANKED_CANDIDATES) + 1, worstFirst);
+        int candidates = Math.max(limit, MAX_RANKED_CANDIDATES);
+        try (Cursor cursor = db.rawQuery("SELECT docid, date, matchinfo(" + TABLE_FTS + ", 'pcx') FROM "
+                + TABLE_FTS + " WHERE " + TABLE_FTS + " MATCH ? AND docid IN (SELECT docid FROM " + TABLE_FTS
+                + " WHERE " + TABLE_FTS + " MATCH ? ORDER BY date DESC LIMIT " + candidates + ")",
+                new String[]{match, match})) {
+            while (cursor.moveToNext()) {
+                top.add(new Hit(cursor.getLong(0), cursor.getLong(1), rank(cursor.getBlob(2))));
+                if (top.size() > limit) {
+                    top.poll();
+                }
+            }
+        }
+        List<Hit> hits = new ArrayList<>(top);
+        Collections.sort(hits, Collections.reverseOrder(worstFirst));
+
+        int count = Math.min(limit, hits.size());
+        if (count == 0) {
+            return results;
+        }
+        String[] docIds = new String[count];
+        StringBuilder placeholders = new StringBuilder();
+        for (int i = 0; i < count; i++) {
+            docIds[i] = String.valueOf(hits.get(i).docId);
+            placeholders.append(i == 0 ? "?" : ",?");
+        }
+
+        JSONObject[] ranked = new JSONObject[count];
+        try (Cursor cursor = db.rawQuery("SELECT docid, id, message_type, date, sender, body FROM " + TABLE_FTS
+                + " WHERE docid IN (" + placeholders + ")", docIds)) {
+            while (cursor.moveToNext()) {
+                long docId = cursor.getLong(0);
+                for (int i = 0; i < count; i++) {
+                    Hit hit = hits.get(i);
+                    if (hit.docId == docId) {
+                        JSONObject message = new JSONObject();
+                        message.put("id", cursor.getString(1));
+                        message.put("messageType", cursor.getString(2));
+                        message.put("date", cursor.getLong(3));
+                        message.put("sender", cursor.getString(4));
+                        String body = cursor.getString(5);
+                        message.put("body", body != null ? body : MessageReader.MMS_NO_TEXT_BODY);
+                        message.put("score", hit.rank);
+                        ranked[i] = message;
+                        break;
+                    }
+                }
+            }
+        }
+        for (JSONObject message : ranked) {
+            if (message != null) {
+                results.put(message);
+            }
+        }
+        return results;
+    }
+
+    /**
+     * Turns free text into an FTS query: every token quoted (so user input
+     * cannot inject FTS operators) and implicitly AND-ed together.
+     */
+    static String toMatchExpression(String query, boolean prefix) {
+        if (query == null) {
+            return null;
+        }
+        StringBuilder match = new StringBuilder();
+        for (String token : query.split("[^\\p{L}\\p{N}]+")) {
+            if (token.isEmpty()) {
+                continue;
+            }
+            if (match.length() > 0) {
+                match.append(' ');
+            }
+            match.append('"').append(token).append('"');
+            if (prefix) {
+                match.append('*');
+            }
+        }
+        return match.length() > 0 ? match.toString() : null;
+    }
+
+    /**
+     * Scores a row from its matchinfo 'pcx' blob: for every phrase and indexed
+     * column, the share of all the phrase's hits that fall in this row.
+     */
+    private static double rank(byte[] matchInfo) {
+        ByteBuffer buffer = ByteBuffer.wrap(matchInfo).order(ByteOrder.nativeOrder());
+        int phrases = buffer.getInt(0);
+        int columns = buffer.getInt(4);
+        double score = 0;
+        for (int phrase = 0; phrase < phrases; phrase++) {
+            for (int column = 0; column < 2 && column < columns; column++) {
+                int offset = 8 + 12 * (phrase * columns + column);
+                int hitsInRow = buffer.getInt(offset);
+                int hitsInAllRows = buffer.getInt(offset + 4);
+                if (hitsInRow > 0) {
+                    double weight = column == 0 ? BODY_WEIGHT : SENDER_WEIGHT;
+                    score += weight * hitsInRow / hitsInAllRows;
+                }
+            }
+        }
+        return score;
+    }
+
+    private static class Hit {
+        final long docId;
+        final long date;
+        final double rank;
+
+        Hit(long docId, long date, double rank) {
+            this.docId = docId;
+            this.date = date;
+            this.rank = rank;
+        }
+    }
+}
@@ -0,0 +1,148 @@
+package ai.soliman.plugins.messagereader;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TimeZone;
+
+/**
+ * Message counts, date range and optional per-sender and per-day buckets,
+ * accumulated one row at a time so a whole inbox can be summarized without
+ * holding it in memory. Days are bucketed in the device's time zone.
+ */
+public class MessageStats {
+    private static final long DAY_MS = 24L * 60 * 60 * 1000;
+
+    private final boolean bySender;
+    private final boolean byDay;
+    private final TimeZone timeZone = TimeZone.getDefault();
+    private final Map<String, long[]> senders = new HashMap<>();
+    private final Map<Long, long[]> days = new HashMap<>();
+    private long smsCount;
+    private long mmsCount;
+    private long minDate = Long.MAX_VALUE;
+    private long maxDate = Long.MIN_VALUE;
+
+    public MessageStats(boolean bySender, boolean byDay) {
+        this.bySender = bySender;
+        this.byDay = byDay;
+    }
+
+    public boolean isBySender() { return bySender; }
+
+    public boolean isByDay() { return byDay; }
+
+    public boolean hasBuckets() {
+        return bySender || byDay;
+    }
+
+    public long getTotal() { return smsCount + mmsCount; }
+
+    public void add(int messageType, String sender, long date) {
+        addAggregate(messageType, 1, date, date);
+
+        if (bySender) {
+            String key = sender != null ? sender : "";
+            long[] bucket = senders.get(key);
+            if (bucket == null) {
+                bucket = new long[]{0, date};
+                senders.put(key, bucket);
+            }
+            bucket[0]++;
+            bucket[1] = Math.max(bucket[1], date);
+        }
+
+        if (byDay) {
+            long local = date + timeZone.getOffset(date);
+            Long day = local >= 0 ? local / DAY_MS : (local + 1) / DAY_MS - 1;
+            long[] bucket = days.get(day);
+            if (bucket == null) {
+                bucket = new long[1];
+                days.put(day, bucket);
+            }
+            bucket[0]++;
+        }
+    }
+
+    public void addAll(MessageRows rows) {
+        for (int i = 0; i < rows.size(); i++) {
+            add(rows.getType(i), rows.getSender(i), rows.getDate(i));
+        }
+    }
+
+    /**
+     * Adds a count and date range computed by the provider.
+     */
+    public void addAggregate(int messageType, long count, long min, long max) {
+        if (count <= 0) {
+            return;
+        }
+        if (messageType == MessageRows.TYPE_MMS) {
+            mmsCount += count;
+        } else {
+            smsCount += count;
+        }
+        minDate = Math.min(minDate, min);
+        maxDate = Math.max(maxDate, max);
+    }
+
+    public JSONObject toJSON() throws JSONException {
+        JSONObject stats = new JSONObject();
+        stats.put("total", getTotal());
+        stats.put("smsCount", smsCount);
+        stats.put("mmsCount", mmsCount);
+        if (getTotal() > 0) {
+            stats.put("minDate", minDate);
+            stats.put("maxDate", maxDate);
+        }
+
+        if (bySender) {
+            List<Map.Entry<String, long[]>> entries = new ArrayList<>(senders.entrySet());
+            Collections.sort(entries, new Comparator<Map.Entry<String, long[]>>() {
+                @Override
+                public int compare(Map.Entry<String, long[]> a, Map.Entry<String, long[]> b) {
+                    int byCount = Long.compare(b.getValue()[0], a.getValue()[0]);
+                    return byCount != 0 ? byCount : a.getKey().compareTo(b.getKey());
+                }
+            });
+            JSONArray bySenderJson = new JSONArray();
+            for (Map.Entry<String, long[]> entry : entries) {
+                JSONObject bucket = new JSONObject();
+                bucket.put("sender", entry.getKey());
+                bucket.put("count", entry.getValue()[0]);
+                bucket.put("lastDate", entry.getValue()[1]);
+                bySenderJson.put(bucket);
+            }
+            stats.put("bySender", bySenderJson);
+        }
+
+        if (byDay) {
+            List<Long> keys = new ArrayList<>(days.keySet());
+            Collections.sort(keys);
+            Calendar calendar = Calendar.getInstance(TimeZone.getTimeZone("UTC"), Locale.US);
+            JSONArray byDayJson = new JSONArray();
+            for (Long day : keys) {
+                calendar.setTimeInMillis(day * DAY_MS);
+                JSONObject bucket = new JSONObject();
+                bucket.put("day", String.format(Locale.US, "%04d-%02d-%02d",
+                        calendar.get(Calendar.YEAR),
+                        calendar.get(Calendar.MONTH) + 1,
+                        calendar.get(Calendar.DAY_OF_MONTH)));
+                bucket.put("count", days.get(day)[0]);
+                byDayJson.put(bucket);
+            }
+            stats.put("byDay", byDayJson);
+        }
+
+        return stats;
+    }
+}
@@ -0,0 +1,230 @@
+package ai.soliman.plugins.messagereader;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteOpenHelper;
+import android.database.sqlite.SQLiteStatement;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Already resolved MMS senders and bodies, kept in a private SQLite database
+ * so reads after a restart only go to the addr and part tables for MMS that
+ * are new or changed. Rows are keyed by the MMS {@code _id} and are only
+ * trusted while their date still matches the provider's; the whole snapshot
+ * is dropped when the provider's newest MMS shows the store was recreated.
+ */
+public class MmsSnapshot extends SQLiteOpenHelper {
+    private static final String DATABASE_NAME = "message_reader_mms_snapshot.db";
+    private static final int DATABASE_VERSION = 1;
+
+    private static final String TABLE_MMS = "mms_snapshot";
+    private static final String TABLE_STATE = "snapshot_state";
+    private static final String ADDRESS_SEPARATOR = "\n";
+    /** Well below SQLite's limit of 999 bound arguments. */
+    private static final int MAX_IDS_PER_QUERY = 500;
+
+    private final Context context;
+
+    public MmsSnapshot(Context context) {
+        super(context, DATABASE_NAME, null, DATABASE_VERSION);
+        this.context = context;
+    }
+
+    @Override
+    public void onCreate(SQLiteDatabase db) {
+        // A null column has not been resolved yet; an empty one has nothing
+        db.execSQL("CREATE TABLE " + TABLE_MMS + " (_id INTEGER PRIMARY KEY, date INTEGER NOT NULL, "
+                + "addresses TEXT, body TEXT, body_complete INTEGER NOT NULL DEFAULT 0)");
+        db.execSQL("CREATE TABLE " + TABLE_STATE + " (name TEXT PRIMARY KEY, value INTEGER NOT NULL)");
+    }
+
+    @Override
+    public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
+        db.execSQL("DROP TABLE IF EXISTS " + TABLE_MMS);
+        db.execSQL("DROP TABLE IF EXISTS " + TABLE_STATE);
+        onCreate(db);
+    }
+
+    /**
+     * The resolved sender addresses and body of one MMS.
+     */
+    static final class Entry {
+        final long id;
+        final long date;
+        /** Addresses of the message, or null if they were never resolved. */
+        final List<String> addresses;
+        /** Text of the message, or null if it was never resolved. */
+        final String body;
+        /** False when the body was read only up to a preview length. */
+        final boolean bodyComplete;
+
+        Entry(long id, long date, List<String> addresses, String body, boolean bodyComplete) {
+            this.id = id;
+            this.date = date;
+            this.addresses = addresses;
+            this.body = body;
+            this.bodyComplete = body != null && bodyComplete;
+        }
+
+        /**
+         * Whether the stored body can answer a read that stops at {@code maxLength} chars.
+         */
+        boolean coversBody(int maxLength) {
+            return body != null && (bodyComplete || body.length() >= maxLength);
+        }
+    }
+
+    /**
+     * Checks the snapshot against the provider's newest MMS and clears it when
+     * that message is older than the newest one snapshotted, or has the same
+     * id but another date: the message store was then recreated and ids may
+     * have been reused.
+     */
+    public void validate(long providerMaxId, long providerMaxDate) {
+        SQLiteDatabase db = getWritableDatabase();
+        long maxId = -1;
+        long maxDate = -1;
+        try (Cursor cursor = db.query(TABLE_STATE, new String[]{"name", "value"}, null, null, null, null, null)) {
+            while (cursor.moveToNext()) {
+                if ("max_id".equals(cursor.getString(0))) {
+                    maxId = cursor.getLong(1);
+                } else if ("max_date".equals(cursor.getString(0))) {
+                    maxDate = cursor.getLong(1);
+                }
+            }
+        }
+
+        db.beginTransaction();
+        try {
+            if (providerMaxId < maxId || (providerMaxId == maxId && providerMaxDate != maxDate)) {
+                db.delete(TABLE_MMS, null, null);
+            }
+            db.execSQL("INSERT OR REPLACE INTO " + TABLE_STATE + " (name, value) VALUES ('max_id', ?)",
+                    new Object[]{providerMaxId});
+            db.execSQL("INSERT OR REPLACE INTO " + TABLE_STATE + " (name, value) VALUES ('max_date', ?)",
+                    new Object[]{providerMaxDate});
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+    }
+
+    /**
+     * Returns the snapshotted entries of the first {@code count} ids whose date
+     * still matches, keyed by id.
+     */
+    Map<Long, Entry> getAll(long[] ids, long[] dates, int count) {
+        Map<Long, Long> expectedDates = new HashMap<>();
+        List<String> idArgs = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            expectedDates.put(ids[i], dates[i]);
+            idArgs.add(String.valueOf(ids[i]));
+        }
+        if (idArgs.isEmpty()) {
+            return Collections.emptyMap();
+        }
+
+        Map<Long, Entry> entries = new HashMap<>();
+        SQLiteDatabase db = getReadableDatabase();
+        String[] projection = {"_id", "date", "addresses", "body", "body_complete"};
+        for (List<String> chunk : SelectionChunks.split(idArgs, MAX_IDS_PER_QUERY)) {
+            StringBuilder placeholders = new StringBuilder();
+            for (int i = 0; i < chunk.size(); i++) {
+                placeholders.append(i == 0 ? "?" : ",?");
+            }
+            String selection = "_id IN (" + placeholders + ")";
+            try (Cursor cursor = db.query(TABLE_MMS, projection, selection, chunk.toArray(new String[0]),
+                    null, null, null)) {
+                while (cursor.moveToNext()) {
+                    long id = cursor.getLong(0);
+                    long date = cursor.getLong(1);
+                    Long expected = expectedDates.get(id);
+                    if (expected == null || expected != date) {
+                        continue;
+                    }
+                    List<String> addresses = null;
+                    if (!cursor.isNull(2)) {
+                        String joined = cursor.getString(2);
+                        addresses = joined.isEmpty()
+                                ? Collections.<String>emptyList()
+                                : Arrays.asList(joined.split(ADDRESS_SEPARATOR));
+                    }
+                    entries.put(id, new Entry(id, date, addresses, cursor.getString(3), cursor.getInt(4) != 0));
+                }
+            }
+        }
+        return entries;
+    }
+
+    /**
+     * Adds or replaces the given entries in one transaction.
+     */
+    void putAll(List<Entry> entries) {
+        if (entries.isEmpty()) {
+            return;
+        }
+        SQLiteDatabase db = getWritableDatabase();
+        db.beginTransaction();
+        try (SQLiteStatement insert = db.compileStatement("INSERT OR REPLACE INTO " + TABLE_MMS
+                + " (_id, date, addresses, body, body_complete) VALUES (?, ?, ?, ?, ?)")) {
+            for (Entry entry : entries) {
+                insert.bindLong(1, entry.id);
+                insert.bindLong(2, entry.date);
+                if (entry.addresses != null) {
+                    insert.bindString(3, joinAddresses(entry.addresses));
+                } else {
+                    insert.bindNull(3);
+                }
+                if (entry.body != null) {
+                    insert.bindString(4, entry.body);
+                } else {
+                    insert.bindNull(4);
+                }
+                insert.bindLong(5, entry.bodyComplete ? 1 : 0);
+                insert.executeInsert();
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+    }
+
+    private static String joinAddresses(List<String> addresses) {
+        StringBuilder joined = new StringBuilder();
+        for (String address : addresses) {
+            if (joined.length() > 0) {
+                joined.append(ADDRESS_SEPARATOR);
+            }
+            joined.append(address);
+        }
+        return joined.toString();
+    }
+
+    public long size() {
+        try (Cursor cursor = getReadableDatabase().rawQuery("SELECT COUNT(*) FROM " + TABLE_MMS, null)) {
+            return cursor.moveToFirst() ? cursor.getLong(0) : 0;
+        }
+    }
+
+    public void clear() {
+        SQLiteDatabase db = getWritableDatabase();
+        db.delete(TABLE_MMS, null, null);
+        db.delete(TABLE_STATE, null, null);
+    }
+
+    /**
+     * Closes the snapshot and deletes its file, so no message content is left
+     * behind once it is disabled.
+     */
+    public void delete() {
+        close();
+        context.deleteDatabase(DATABASE_NAME);
+    }
+}
@@ -0,0 +1,74 @@
+package ai.soliman.plugins.messagereader;
+
+/**
+ * Row and byte budget of one getMessages page. Sizes are the estimates of
+ * {@link MessageRows#estimateBytes(int)}, the same ones the cache is bounded by.
+ * A page always gets its first message, so paging makes progress; when that
+ * message alone is over the byte budget its body is cut to fit.
+ */
+final class PageBudget {
+    private final int maxRows;
+    private final long maxBytes;
+    private long bytes;
+
+    PageBudget(int maxRows, long maxBytes) {
+        this.maxRows = Math.max(maxRows, 1);
+        this.maxBytes = Math.max(maxBytes, 0);
+    }
+
+    long getMaxBytes() { return maxBytes; }
+
+    /**
+     * Returns how many rows to read for a page of {@code limit} messages: one
+     * more than the row budget when the limit is above it, so that the page is
+     * only marked truncated when rows are actually left out.
+     */
+    int rowsToRead(int limit) {
+        if (limit <= maxRows) {
+            return limit;
+        }
+        return maxRows < Integer.MAX_VALUE ? maxRows + 1 : maxRows;
+    }
+
+    /**
+     * Returns the longest body a single message can have within the byte budget.
+     */
+    int maxBodyLength() {
+        long chars = (maxBytes - MessageRows.MESSAGE_OVERHEAD_BYTES) / 2;
+        return (int) Math.min(Math.max(chars, 0), Integer.MAX_VALUE);
+    }
+
+    /**
+     * Appends row {@code index} of {@code source} to the page if it fits.
+     *
+     * @return false once the budget is used up; the page is then marked
+     *         truncated and the row is not added.
+     */
+    boolean add(MessageRows page, MessageRows source, int index, boolean keepSender) {
+        if (page.size() >= maxRows) {
+            page.setTruncated(true);
+            return false;
+        }
+        String sender = keepSender ? source.getSender(index) : null;
+        String body = source.getBody(index);
+        long size = source.estimateBytes(index);
+        if (!keepSender && source.getSender(index) != null) {
+            size -= 2L * source.getSender(index).length();
+        }
+        if (bytes + size > maxBytes) {
+            if (!page.isEmpty()) {
+                page.setTruncated(true);
+                return false;
+            }
+            long left = maxBytes - (size - 2L * (body != null ? body.length() : 0));
+            body = MessageReader.truncate(body, (int) Math.max(left / 2, 0));
+            // The rest of the body is left out, so the page counts as truncated
+            page.setTruncated(true);
+            size = maxBytes;
+        }
+        page.add(source.getType(index), source.getId(index), source.getDate(index), sender, body,
+                source.getBox(index), source.getSubscriptionId(index), source.getCaptures(index));
+        bytes += size;
+        return true;
+    }
+}
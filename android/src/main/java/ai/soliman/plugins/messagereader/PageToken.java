@@ -0,0 +1,58 @@
+package ai.soliman.plugins.messagereader;
+
+/**
+ * Continuation position for keyset pagination. Identifies the last message of
+ * a page by its (date, messageType, id) tuple, which is also the merge order
+ * used by {@link MessageReader}: date DESC, SMS before MMS on equal dates,
+ * then id DESC.
+ */
+public class PageToken {
+    private static final String SEPARATOR = ":";
+
+    private final long date;
+    private final String messageType;
+    private final long id;
+
+    public PageToken(long date, String messageType, long id) {
+        this.date = date;
+        this.messageType = messageType;
+        this.id = id;
+    }
+
+    public long getDate() { return date; }
+
+    public String getMessageType() { return messageType; }
+
+    public long getId() { return id; }
+
+    public boolean isSms() { return "sms".equals(messageType); }
+
+    /**
+     * Builds the token that resumes right after row {@code index}.
+     */
+    public static PageToken after(MessageRows messages, int index) {
+        return new PageToken(messages.getDate(index), messages.getMessageType(index), messages.getId(index));
+    }
+
+    /**
+     * Parses a token previously produced by {@link #toString()}.
+     *
+     * @throws IllegalArgumentException if the token is malformed.
+     */
+    public static PageToken parse(String token) {
+        String[] parts = token != null ? token.split(SEPARATOR) : new String[0];
+        if (parts.length != 3 || !("sms".equals(parts[1]) || "mms".equals(parts[1]))) {
+            throw new IllegalArgumentException("Invalid page token: " + token);
+        }
+        try {
+            return new PageToken(Long.parseLong(parts[0]), parts[1], Long.parseLong(parts[2]));
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Invalid page token: " + token, e);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return date + SEPARATOR + messageType + SEPARATOR + id;
+    }
+}
@@ -0,0 +1,48 @@
+package ai.soliman.plugins.messagereader;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Running totals of the provider work done by a {@link MessageReader}, used
+ * to measure how many queries and part streams a read path costs.
+ */
+public class QueryCounters {
+    private final AtomicLong providerQueries = new AtomicLong();
+    private final AtomicLong streamOpens = new AtomicLong();
+    private final AtomicLong streamChars = new AtomicLong();
+
+    void onQuery() {
+        providerQueries.incrementAndGet();
+    }
+
+    void onStreamOpen() {
+        streamOpens.incrementAndGet();
+    }
+
+    void onStreamRead(long chars) {
+        streamChars.addAndGet(chars);
+    }
+
+    public long getProviderQueries() { return providerQueries.get(); }
+
+    public long getStreamOpens() { return streamOpens.get(); }
+
+    public long getStreamChars() { return streamChars.get(); }
+
+    public void reset() {
+        providerQueries.set(0);
+        streamOpens.set(0);
+        streamChars.set(0);
+    }
+
+    public JSONObject toJSON() throws JSONException {
+        JSONObject counters = new JSONObject();
+        counters.put("providerQueries", getProviderQueries());
+        counters.put("streamOpens", getStreamOpens());
+        counters.put("streamChars", getStreamChars());
+        return counters;
+    }
+}
@@ -0,0 +1,82 @@
+package ai.soliman.plugins.messagereader;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Splits id and address lists bound into {@code IN (...)} clauses so that a
+ * single provider query never exceeds SQLite's bound-parameter limit.
+ */
+final class SelectionChunks {
+    /** SQLITE_MAX_VARIABLE_NUMBER before SQLite 3.32. */
+    static final int LEGACY_MAX_VARIABLES = 999;
+    /** SQLITE_MAX_VARIABLE_NUMBER since SQLite 3.32 (Android 12). */
+    static final int MAX_VARIABLES = 32766;
+    /** Room kept for the few fixed arguments of an id lookup (type, thread, read flag...). */
+    static final int RESERVED_VARIABLES = 32;
+
+    private SelectionChunks() {
+    }
+
+    /**
+     * Returns SQLite's bound-parameter limit on the device.
+     *
+     * @param sdkInt The device API level; SQLite 3.32 ships with API 31.
+     */
+    static int maxVariables(int sdkInt) {
+        return sdkInt >= 31 ? MAX_VARIABLES : LEGACY_MAX_VARIABLES;
+    }
+
+    /**
+     * Returns the largest number of ids that can be bound in one id lookup.
+     * Selections with other list arguments size their chunks from
+     * {@link #maxVariables(int)} and their actual argument count instead.
+     *
+     * @param sdkInt The device API level; SQLite 3.32 ships with API 31.
+     */
+    static int maxIdsPerQuery(int sdkInt) {
+        return maxVariables(sdkInt) - RESERVED_VARIABLES;
+    }
+
+    /**
+     * Returns how many of {@code free} variables a chunk of the second list
+     * may use, leaving the rest to chunks of the first. The second list gets
+     * whatever the first does not need, but at least half.
+     */
+    static int secondListShare(int firstSize, int secondSize, int free) {
+        if (firstSize == 0) {
+            return free;
+        }
+        return Math.min(secondSize, Math.max(free / 2, free - firstSize));
+    }
+
+    /**
+     * Returns the list without duplicates, keeping the first occurrence.
+     * Chunks of a distinct list select disjoint rows.
+     */
+    static List<String> distinct(List<String> values) {
+        Set<String> seen = new LinkedHashSet<>(values);
+        return seen.size() == values.size() ? values : new ArrayList<>(seen);
+    }
+
+    /**
+     * Splits ids into consecutive chunks of at most {@code maxPerChunk} ids.
+     * Short lists (including empty ones) come back as a single chunk.
+     */
+    static List<List<String>> split(List<String> ids, int maxPerChunk) {
+        if (maxPerChunk < 1) {
+            throw new IllegalArgumentException("maxPerChunk must be positive");
+        }
+        if (ids.size() <= maxPerChunk) {
+            return Collections.singletonList(ids);
+        }
+        List<List<String>> chunks = new ArrayList<>((ids.size() + maxPerChunk - 1) / maxPerChunk);
+        for (int from = 0; from < ids.size(); from += maxPerChunk) {
+            chunks.add(ids.subList(from, Math.min(from + maxPerChunk, ids.size())));
+        }
+        return chunks;
+    }
+}
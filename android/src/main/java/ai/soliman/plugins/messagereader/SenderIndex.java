@@ -0,0 +1,88 @@
+package ai.soliman.plugins.messagereader;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Maps normalized phone numbers to the raw addresses stored by the providers,
+ * so "+1 555 123 4567", "5551234567" and "(555) 123-4567" can be matched with
+ * an indexed {@code address IN (...)} instead of a LIKE scan. Built from the
+ * canonical address table, which holds one row per distinct address.
+ */
+final class SenderIndex {
+    /**
+     * Trailing digits compared. Long enough to tell national numbers apart,
+     * short enough to ignore country and trunk prefixes.
+     */
+    static final int MATCH_DIGITS = 10;
+
+    private final Map<String, List<String>> addresses = new HashMap<>();
+
+    void add(String address) {
+        if (address == null || address.isEmpty()) {
+            return;
+        }
+        String key = normalize(address);
+        List<String> raw = addresses.get(key);
+        if (raw == null) {
+            raw = new ArrayList<>(2);
+            addresses.put(key, raw);
+        }
+        if (!raw.contains(address)) {
+            raw.add(address);
+        }
+    }
+
+    /**
+     * Returns every stored address equivalent to one of the given senders. The
+     * senders themselves are always included, so exact matches still work for
+     * addresses missing from the index.
+     */
+    List<String> resolve(Collection<String> senders) {
+        Set<String> resolved = new LinkedHashSet<>();
+        for (String sender : senders) {
+            resolved.add(sender);
+            List<String> raw = addresses.get(normalize(sender));
+            if (raw != null) {
+                resolved.addAll(raw);
+            }
+        }
+        return new ArrayList<>(resolved);
+    }
+
+    int size() {
+        return addresses.size();
+    }
+
+    /**
+     * Reduces a phone number to its last {@link #MATCH_DIGITS} digits.
+     * Alphanumeric senders and e-mail addresses are only trimmed and lower-cased.
+     */
+    static String normalize(String address) {
+        if (address == null) {
+            return "";
+        }
+        StringBuilder digits = new StringBuilder(address.length());
+        for (int i = 0; i < address.length(); i++) {
+            char c = address.charAt(i);
+            if (c >= '0' && c <= '9') {
+                digits.append(c);
+            } else if (Character.isLetter(c) || c == '@') {
+                return address.trim().toLowerCase(Locale.ROOT);
+            }
+        }
+        if (digits.length() == 0) {
+            return address.trim().toLowerCase(Locale.ROOT);
+        }
+        if (digits.length() > MATCH_DIGITS) {
+            return digits.substring(digits.length() - MATCH_DIGITS);
+        }
+        return digits.toString();
+    }
+}
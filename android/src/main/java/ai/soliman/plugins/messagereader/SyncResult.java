@@ -0,0 +1,42 @@
+package ai.soliman.plugins.messagereader;
+
+import java.util.List;
+
+/**
+ * Result of {@link MessageReader#getMessagesSince}.
+ */
+public class SyncResult {
+    private final MessageRows messages;
+    private final SyncWatermark watermark;
+    private final List<String> deletedSmsIds;
+    private final List<String> deletedMmsIds;
+    private final boolean reset;
+
+    public SyncResult(MessageRows messages, SyncWatermark watermark, List<String> deletedSmsIds,
+                      List<String> deletedMmsIds, boolean reset) {
+        this.messages = messages;
+        this.watermark = watermark;
+        this.deletedSmsIds = deletedSmsIds;
+        this.deletedMmsIds = deletedMmsIds;
+        this.reset = reset;
+    }
+
+    /** Messages added since the previous watermark, newest first. */
+    public MessageRows getMessages() { return messages; }
+
+    /** Watermark to persist and pass to the next sync. */
+    public SyncWatermark getWatermark() { return watermark; }
+
+    /** Known SMS ids that no longer exist. */
+    public List<String> getDeletedSmsIds() { return deletedSmsIds; }
+
+    /** Known MMS ids that no longer exist. */
+    public List<String> getDeletedMmsIds() { return deletedMmsIds; }
+
+    /**
+     * True when no row seen by the previous sync is left in a provider, as
+     * after its table was recreated, so the client should drop its copy.
+     * Deleting the newest rows alone is not a reset.
+     */
+    public boolean isReset() { return reset; }
+}
@@ -0,0 +1,70 @@
+package ai.soliman.plugins.messagereader;
+
+/**
+ * Position of an incremental sync: the highest SMS and MMS {@code _id} the
+ * client has already seen, with the provider {@code date} of those rows.
+ * The telephony tables do not use AUTOINCREMENT, so deleting the newest rows
+ * lowers the highest id and hands the freed ids out again. The dates tell
+ * whether the row at the watermark is still the one the client saw; see
+ * {@link MessageReader#getMessagesSince}.
+ */
+public class SyncWatermark {
+    /** Date of a watermark row that was not recorded, as in watermarks of older versions. */
+    public static final long DATE_UNKNOWN = -1;
+
+    private static final String SEPARATOR = ":";
+
+    private final long smsId;
+    private final long mmsId;
+    private final long smsDate;
+    private final long mmsDate;
+
+    public SyncWatermark(long smsId, long mmsId) {
+        this(smsId, mmsId, DATE_UNKNOWN, DATE_UNKNOWN);
+    }
+
+    public SyncWatermark(long smsId, long mmsId, long smsDate, long mmsDate) {
+        this.smsId = smsId;
+        this.mmsId = mmsId;
+        this.smsDate = smsDate;
+        this.mmsDate = mmsDate;
+    }
+
+    public long getSmsId() { return smsId; }
+
+    public long getMmsId() { return mmsId; }
+
+    /** Provider date of the SMS at {@link #getSmsId()}, or {@link #DATE_UNKNOWN}. */
+    public long getSmsDate() { return smsDate; }
+
+    /** Provider date of the MMS at {@link #getMmsId()}, in seconds, or {@link #DATE_UNKNOWN}. */
+    public long getMmsDate() { return mmsDate; }
+
+    /**
+     * Parses a watermark previously produced by {@link #toString()}. Watermarks
+     * of older versions, without dates, are accepted too.
+     *
+     * @throws IllegalArgumentException if the watermark is malformed.
+     */
+    public static SyncWatermark parse(String watermark) {
+        String[] parts = watermark != null ? watermark.split(SEPARATOR) : new String[0];
+        if (parts.length != 2 && parts.length != 4) {
+            throw new IllegalArgumentException("Invalid watermark: " + watermark);
+        }
+        try {
+            long smsId = Long.parseLong(parts[0]);
+            long mmsId = Long.parseLong(parts[1]);
+            if (parts.length == 2) {
+                return new SyncWatermark(smsId, mmsId);
+            }
+            return new SyncWatermark(smsId, mmsId, Long.parseLong(parts[2]), Long.parseLong(parts[3]));
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Invalid watermark: " + watermark, e);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return smsId + SEPARATOR + mmsId + SEPARATOR + smsDate + SEPARATOR + mmsDate;
+    }
+}
@@ -0,0 +1,31 @@
+package ai.soliman.plugins.messagereader;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+public class BodyMatcherTest {
+
+    @Test
+    public void requiredLiteralsAreContainedInEveryMatch() {
+        assertEquals("code", BodyMatcher.requiredLiteral("code:? (\\d{6})"));
+        assertEquals("colo", BodyMatcher.requiredLiteral("colou?r"));
+        assertEquals("ab", BodyMatcher.requiredLiteral("ab+c"));
+        assertEquals("verification code", BodyMatcher.requiredLiteral("\\bverification code\\b [0-9]{4}"));
+        assertEquals("yz", BodyMatcher.requiredLiteral("x(ab|cd)yz"));
+    }
+
+    @Test
+    public void unclearRegexesHaveNoPrefilter() {
+        assertNull(BodyMatcher.requiredLiteral("invoice|receipt"));
+        assertNull(BodyMatcher.requiredLiteral("(?i)hello world"));
+        assertNull(BodyMatcher.requiredLiteral("\\Qa.b\\E"));
+        assertNull(BodyMatcher.requiredLiteral("[a-z&&[^b]]+"));
+        assertNull(BodyMatcher.requiredLiteral("\\d{6}"));
+    }
+
+    @Test
+    public void patternsAreCompiledOnce() {
+        assertSame(BodyMatcher.compile("code (\\d+)"), BodyMatcher.compile("code (\\d+)"));
+    }
+}
@@ -0,0 +1,48 @@
+package ai.soliman.plugins.messagereader;
+
+import static org.junit.Assert.*;
+
+import java.util.Arrays;
+import java.util.List;
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+@RunWith(RobolectricTestRunner.class)
+public class CompactRowsTest {
+
+    @Test
+    public void compactRowsDecodeToTheSameMessagesAsObjects() throws Exception {
+        MessageRows rows = new MessageRows();
+        rows.add(MessageRows.TYPE_SMS, 12, 1700000000000L, "+15551234567",
+                "quote \" backslash \\ newline \n tab \t bell \u0007 accent \u00e9 euro \u20ac emoji \ud83d\ude00");
+        rows.add(MessageRows.TYPE_MMS, 3, 1700000001000L, null, "");
+        rows.add(MessageRows.TYPE_SMS, 4, 0, "x", "lone \ud800 surrogate");
+
+        JSONArray objects = rows.toJSON();
+        JSONArray compact = new JSONArray(CompactRows.encode(rows, MessageRows.FIELDS));
+
+        assertEquals(objects.length(), compact.length());
+        for (int i = 0; i < objects.length(); i++) {
+            JSONObject expected = objects.getJSONObject(i);
+            JSONArray actual = compact.getJSONArray(i);
+            assertEquals(expected.getString("id"), String.valueOf(actual.getLong(0)));
+            assertEquals(expected.optString("sender", null), actual.isNull(1) ? null : actual.getString(1));
+            assertEquals(expected.getLong("date"), actual.getLong(3));
+            assertEquals(expected.getString("messageType"), actual.getString(4));
+        }
+        assertEquals(rows.getBody(0), compact.getJSONArray(0).getString(2));
+        assertEquals("lone \ufffd surrogate", compact.getJSONArray(2).getString(2));
+    }
+
+    @Test
+    public void valuesFollowTheRequestedFieldOrder() throws Exception {
+        MessageRows rows = new MessageRows();
+        rows.add(MessageRows.TYPE_MMS, 7, 42, "+1555", "hi");
+        List<String> fields = Arrays.asList("date", "id");
+
+        assertEquals("[[42,7]]", CompactRows.encode(rows, fields));
+    }
+}
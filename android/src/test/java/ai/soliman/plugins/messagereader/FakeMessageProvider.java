@@ -0,0 +1,195 @@
+package ai.soliman.plugins.messagereader;
+
+import android.content.ContentProvider;
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteQueryBuilder;
+import android.net.Uri;
+import android.os.ParcelFileDescriptor;
+
+import org.robolectric.Robolectric;
+import org.robolectric.shadows.ShadowContentResolver;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Serves a {@link MessageFixture} under the {@code sms}, {@code mms} and
+ * {@code mms-sms} authorities, with the URIs {@link MessageReader} queries.
+ * Selections, projections and sort orders are passed to SQLite as the
+ * telephony provider would, and the {@code limit} query parameter is honored
+ * except on the threads table, whose provider ignores it. Parts stored in
+ * {@code _data} files are opened through {@code content://mms/part/<id>}.
+ * Counts queries per table so tests can assert which tables a read touched.
+ * Subqueries in selections, and clauses appended to the selection or sort
+ * order, can be rejected to exercise the fallbacks for providers that do
+ * not accept them.
+ */
+public class FakeMessageProvider extends ContentProvider {
+    private final Map<String, Integer> queriesByTable = new HashMap<>();
+    private SQLiteDatabase database;
+    private volatile boolean rejectSubqueries;
+    private volatile boolean rejectAppendedClauses;
+    private int rejectedQueries;
+
+    /**
+     * Registers a provider serving the fixture for all three authorities.
+     */
+    static FakeMessageProvider install(MessageFixture fixture) {
+        FakeMessageProvider provider = Robolectric.setupContentProvider(FakeMessageProvider.class, "sms");
+        ShadowContentResolver.registerProviderInternal("mms", provider);
+        ShadowContentResolver.registerProviderInternal("mms-sms", provider);
+        provider.setDatabase(fixture.getDatabase());
+        return provider;
+    }
+
+    void setDatabase(SQLiteDatabase database) {
+        this.database = database;
+    }
+
+    synchronized int getQueries(String table) {
+        Integer count = queriesByTable.get(table);
+        return count != null ? count : 0;
+    }
+
+    synchronized void resetQueries() {
+        queriesByTable.clear();
+        rejectedQueries = 0;
+    }
+
+    /**
+     * Makes queries whose selection holds an {@code IN (SELECT ...)} subquery
+     * throw, as providers with a strict selection grammar do.
+     */
+    void setRejectSubqueries(boolean rejectSubqueries) {
+        this.rejectSubqueries = rejectSubqueries;
+    }
+
+    /**
+     * Makes queries throw when a {@code GROUP BY} closes their selection or a
+     * {@code LIMIT} follows their sort order, as providers that validate
+     * those arguments do.
+     */
+    void setRejectAppendedClauses(boolean rejectAppendedClauses) {
+        this.rejectAppendedClauses = rejectAppendedClauses;
+    }
+
+    /**
+     * Number of queries rejected since the last {@link #resetQueries()}.
+     */
+    synchronized int getRejectedQueries() {
+        return rejectedQueries;
+    }
+
+    @Override
+    public boolean onCreate() {
+        return true;
+    }
+
+    @Override
+    public Cursor query(Uri uri, String[] projection, String selection, String[] selectionArgs, String sortOrder) {
+        String table = tableFor(uri);
+        synchronized (this) {
+            Integer count = queriesByTable.get(table);
+            queriesByTable.put(table, count != null ? count + 1 : 1);
+        }
+        if (rejectSubqueries && selection != null
+                && selection.toUpperCase(Locale.US).contains("IN (SELECT")) {
+            reject();
+        }
+        if (rejectAppendedClauses && (selection != null && selection.toUpperCase(Locale.US).contains("GROUP BY")
+                || sortOrder != null && sortOrder.toUpperCase(Locale.US).contains("LIMIT"))) {
+            reject();
+        }
+        // Like the telephony providers, build through SQLiteQueryBuilder, which
+        // wraps the selection in parentheses and appends the sort order as is
+        SQLiteQueryBuilder builder = new SQLiteQueryBuilder();
+        builder.setTables(table);
+        String limit = "threads".equals(table) ? null : uri.getQueryParameter("limit");
+        return builder.query(database, projection, selection, selectionArgs, null, null, sortOrder, limit);
+    }
+
+    /**
+     * Opens the file of a part, counted as a query on {@code part_file}.
+     */
+    @Override
+    public ParcelFileDescriptor openFile(Uri uri, String mode) throws FileNotFoundException {
+        List<String> path = uri.getPathSegments();
+        if (!"mms".equals(uri.getAuthority()) || path.size() != 2 || !"part".equals(path.get(0))) {
+            throw new FileNotFoundException("Unsupported URI: " + uri);
+        }
+        synchronized (this) {
+            Integer count = queriesByTable.get("part_file");
+            queriesByTable.put("part_file", count != null ? count + 1 : 1);
+        }
+        String data = null;
+        try (Cursor cursor = database.rawQuery("SELECT _data FROM part WHERE _id = ?",
+                new String[]{path.get(1)})) {
+            if (cursor.moveToFirst()) {
+                data = cursor.getString(0);
+            }
+        }
+        if (data == null) {
+            throw new FileNotFoundException("No file for " + uri);
+        }
+        return ParcelFileDescriptor.open(new File(data), ParcelFileDescriptor.MODE_READ_ONLY);
+    }
+
+    private synchronized void reject() {
+        rejectedQueries++;
+        throw new IllegalArgumentException("Invalid token");
+    }
+
+    private static String tableFor(Uri uri) {
+        String authority = uri.getAuthority();
+        List<String> path = uri.getPathSegments();
+        if ("sms".equals(authority) && path.isEmpty()) {
+            return "sms";
+        }
+        if ("mms".equals(authority)) {
+            if (path.isEmpty()) {
+                return "pdu";
+            }
+            if ("addr".equals(path.get(0))) {
+                return "addr";
+            }
+            if ("part".equals(path.get(0)) && path.size() == 1) {
+                return "part";
+            }
+        }
+        if ("mms-sms".equals(authority) && path.size() == 1) {
+            if ("canonical-addresses".equals(path.get(0))) {
+                return "canonical_addresses";
+            }
+            if ("conversations".equals(path.get(0))) {
+                return "threads";
+            }
+        }
+        throw new IllegalArgumentException("Unsupported URI: " + uri);
+    }
+
+    @Override
+    public String getType(Uri uri) {
+        return null;
+    }
+
+    @Override
+    public Uri insert(Uri uri, ContentValues values) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public int delete(Uri uri, String selection, String[] selectionArgs) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public int update(Uri uri, ContentValues values, String selection, String[] selectionArgs) {
+        throw new UnsupportedOperationException();
+    }
+}
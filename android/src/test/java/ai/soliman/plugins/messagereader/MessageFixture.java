@@ -0,0 +1,283 @@
+package ai.soliman.plugins.messagereader;
+
+import android.content.ContentValues;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * A synthetic SMS/MMS store laid out like the telephony provider's
+ * mmssms.db: {@code sms}, {@code pdu}, {@code addr}, {@code part},
+ * {@code canonical_addresses} and {@code threads}. Generation is
+ * deterministic for a given seed.
+ */
+final class MessageFixture {
+    static final String OWN_NUMBER = "+15550000000";
+    static final long START_DATE = 1700000000000L;
+
+    private static final String[] WORDS = {
+            "hello", "meeting", "tomorrow", "invoice", "package", "delivered", "call", "me", "when",
+            "you", "can", "thanks", "see", "soon", "code", "is", "your", "verification", "dinner", "tonight"
+    };
+
+    private final SQLiteDatabase database;
+    private final List<File> files = new ArrayList<>();
+    private final List<String> senders;
+    private final Map<String, Integer> countsBySender;
+    private final Map<String, Integer> countsByBoxAndSubscription;
+    private final int smsCount;
+    private final int mmsCount;
+
+    private MessageFixture(SQLiteDatabase database, List<String> senders, Map<String, Integer> countsBySender,
+                           Map<String, Integer> countsByBoxAndSubscription, int smsCount, int mmsCount) {
+        this.database = database;
+        this.senders = senders;
+        this.countsBySender = countsBySender;
+        this.countsByBoxAndSubscription = countsByBoxAndSubscription;
+        this.smsCount = smsCount;
+        this.mmsCount = mmsCount;
+    }
+
+    SQLiteDatabase getDatabase() { return database; }
+
+    int getSmsCount() { return smsCount; }
+
+    int getMmsCount() { return mmsCount; }
+
+    int getTotal() { return smsCount + mmsCount; }
+
+    List<String> getSenders() { return senders; }
+
+    /**
+     * Number of messages from the sender, SMS and MMS combined.
+     */
+    int countFrom(String sender) {
+        Integer count = countsBySender.get(sender);
+        return count != null ? count : 0;
+    }
+
+    /**
+     * Number of messages in the box (1 inbox, 2 sent) on the subscription,
+     * SMS and MMS combined.
+     */
+    int countIn(int box, int subscriptionId) {
+        Integer count = countsByBoxAndSubscription.get(box + ":" + subscriptionId);
+        return count != null ? count : 0;
+    }
+
+    /**
+     * Adds a part whose content is stored in a file, as the provider does for
+     * attachments and for text it did not inline, and returns its id.
+     */
+    long addFilePart(long mmsId, int seq, String contentType, byte[] content) throws IOException {
+        File file = File.createTempFile("part", null);
+        files.add(file);
+        try (FileOutputStream out = new FileOutputStream(file)) {
+            out.write(content);
+        }
+        ContentValues part = new ContentValues();
+        part.put("mid", mmsId);
+        part.put("seq", seq);
+        part.put("ct", contentType);
+        part.put("name", "part_" + seq);
+        part.put("_data", file.getAbsolutePath());
+        return database.insert("part", null, part);
+    }
+
+    void close() {
+        database.close();
+        for (File file : files) {
+            file.delete();
+        }
+    }
+
+    static Builder builder() {
+        return new Builder();
+    }
+
+    static final class Builder {
+        private int messages = 1000;
+        private double mmsRatio = 0.2;
+        private int partsPerMessage = 1;
+        private int senders = 50;
+        private long seed = 42;
+
+        Builder messages(int messages) {
+            this.messages = messages;
+            return this;
+        }
+
+        Builder mmsRatio(double mmsRatio) {
+            this.mmsRatio = mmsRatio;
+            return this;
+        }
+
+        Builder partsPerMessage(int partsPerMessage) {
+            this.partsPerMessage = partsPerMessage;
+            return this;
+        }
+
+        Builder senders(int senders) {
+            this.senders = senders;
+            return this;
+        }
+
+        Builder seed(long seed) {
+            this.seed = seed;
+            return this;
+        }
+
+        MessageFixture build() {
+            Random random = new Random(seed);
+            SQLiteDatabase db = SQLiteDatabase.create(null);
+            createTables(db);
+
+            List<String> addresses = new ArrayList<>(senders);
+            for (int i = 0; i < senders; i++) {
+                addresses.add(String.format(Locale.US, "+1555%07d", 1000000 + i));
+            }
+
+            Map<String, Integer> counts = new HashMap<>();
+            Map<String, Integer> boxCounts = new HashMap<>();
+            int sms = 0;
+            int mms = 0;
+
+            db.beginTransaction();
+            try {
+                for (int i = 0; i < addresses.size(); i++) {
+                    ContentValues address = new ContentValues();
+                    address.put("_id", i + 1);
+                    address.put("address", addresses.get(i));
+                    db.insert("canonical_addresses", null, address);
+                }
+
+                SQLiteStatement insertSms = db.compileStatement("INSERT INTO sms "
+                        + "(_id, thread_id, address, body, date, type, read, sub_id) VALUES (?, ?, ?, ?, ?, ?, ?, ?)");
+                SQLiteStatement insertPdu = db.compileStatement(
+                        "INSERT INTO pdu (_id, thread_id, date, msg_box, read, sub_id) VALUES (?, ?, ?, ?, ?, ?)");
+                SQLiteStatement insertAddr = db.compileStatement(
+                        "INSERT INTO addr (msg_id, address, type) VALUES (?, ?, ?)");
+                SQLiteStatement insertPart = db.compileStatement(
+                        "INSERT INTO part (mid, seq, ct, name, text) VALUES (?, ?, ?, ?, ?)");
+
+                long date = START_DATE;
+                for (int i = 0; i < messages; i++) {
+                    // Every tenth message shares its timestamp with the previous one
+                    if (i % 10 != 0) {
+                        date += 1000 * (1 + random.nextInt(600));
+                    }
+                    int senderIndex = random.nextInt(addresses.size());
+                    String sender = addresses.get(senderIndex);
+                    long threadId = senderIndex + 1;
+                    boolean read = random.nextInt(10) != 0;
+                    Integer count = counts.get(sender);
+                    counts.put(sender, count != null ? count + 1 : 1);
+                    // Every fourth message was sent; SIMs alternate, without touching the random sequence
+                    int box = i % 4 == 3 ? 2 : 1;
+                    int subscriptionId = 1 + i % 2;
+                    Integer boxCount = boxCounts.get(box + ":" + subscriptionId);
+                    boxCounts.put(box + ":" + subscriptionId, boxCount != null ? boxCount + 1 : 1);
+
+                    if (random.nextDouble() < mmsRatio) {
+                        mms++;
+                        // MMS dates are stored in seconds
+                        long mmsDate = date / 1000;
+                        insertPdu.bindLong(1, mms);
+                        insertPdu.bindLong(2, threadId);
+                        insertPdu.bindLong(3, mmsDate);
+                        insertPdu.bindLong(4, box);
+                        insertPdu.bindLong(5, read ? 1 : 0);
+                        insertPdu.bindLong(6, subscriptionId);
+                        insertPdu.executeInsert();
+
+                        insertAddress(insertAddr, mms, sender, 137);
+                        insertAddress(insertAddr, mms, OWN_NUMBER, 151);
+
+                        insertPart.bindLong(1, mms);
+                        insertPart.bindLong(2, -1);
+                        insertPart.bindString(3, "application/smil");
+                        insertPart.bindString(4, "smil.xml");
+                        insertPart.bindString(5, "<smil><body><par><text src=\"text_0.txt\"/></par></body></smil>");
+                        insertPart.executeInsert();
+                        for (int part = 0; part < partsPerMessage; part++) {
+                            insertPart.bindLong(1, mms);
+                            insertPart.bindLong(2, part);
+                            insertPart.bindString(3, "text/plain");
+                            insertPart.bindString(4, "text_" + part + ".txt");
+                            insertPart.bindString(5, body(random));
+                            insertPart.executeInsert();
+                        }
+                    } else {
+                        sms++;
+                        insertSms.bindLong(1, sms);
+                        insertSms.bindLong(2, threadId);
+                        insertSms.bindString(3, sender);
+                        insertSms.bindString(4, body(random));
+                        insertSms.bindLong(5, date);
+                        insertSms.bindLong(6, box);
+                        insertSms.bindLong(7, read ? 1 : 0);
+                        insertSms.bindLong(8, subscriptionId);
+                        insertSms.executeInsert();
+                    }
+                }
+
+                db.execSQL("INSERT INTO threads (_id, date, message_count, read, snippet, recipient_ids) "
+                        + "SELECT thread_id, MAX(date), COUNT(*), MIN(read), MAX(body), thread_id FROM "
+                        + "(SELECT thread_id, date, read, body FROM sms "
+                        + "UNION ALL SELECT thread_id, date * 1000, read, '' FROM pdu) GROUP BY thread_id");
+                db.setTransactionSuccessful();
+            } finally {
+                db.endTransaction();
+            }
+
+            return new MessageFixture(db, addresses, counts, boxCounts, sms, mms);
+        }
+
+        private static void insertAddress(SQLiteStatement insertAddr, long msgId, String address, int type) {
+            insertAddr.bindLong(1, msgId);
+            insertAddr.bindString(2, address);
+            insertAddr.bindLong(3, type);
+            insertAddr.executeInsert();
+        }
+
+        private static String body(Random random) {
+            // Mostly short texts with an occasional long one
+            int words = random.nextInt(20) == 0 ? 150 + random.nextInt(100) : 3 + random.nextInt(30);
+            StringBuilder body = new StringBuilder();
+            for (int i = 0; i < words; i++) {
+                if (i > 0) {
+                    body.append(' ');
+                }
+                body.append(WORDS[random.nextInt(WORDS.length)]);
+            }
+            return body.toString();
+        }
+
+        private static void createTables(SQLiteDatabase db) {
+            db.execSQL("CREATE TABLE sms (_id INTEGER PRIMARY KEY, thread_id INTEGER, address TEXT, body TEXT, "
+                    + "date INTEGER, type INTEGER, read INTEGER DEFAULT 0, sub_id INTEGER DEFAULT -1)");
+            db.execSQL("CREATE TABLE pdu (_id INTEGER PRIMARY KEY, thread_id INTEGER, date INTEGER, "
+                    + "msg_box INTEGER, read INTEGER DEFAULT 0, sub_id INTEGER DEFAULT -1)");
+            db.execSQL("CREATE TABLE addr (_id INTEGER PRIMARY KEY, msg_id INTEGER, address TEXT, type INTEGER)");
+            db.execSQL("CREATE TABLE part (_id INTEGER PRIMARY KEY, mid INTEGER, seq INTEGER DEFAULT 0, ct TEXT, "
+                    + "name TEXT, cl TEXT, _data TEXT, text TEXT)");
+            db.execSQL("CREATE TABLE canonical_addresses (_id INTEGER PRIMARY KEY, address TEXT)");
+            db.execSQL("CREATE TABLE threads (_id INTEGER PRIMARY KEY, date INTEGER, message_count INTEGER, "
+                    + "read INTEGER, snippet TEXT, recipient_ids TEXT)");
+            // The same lookup indexes as the telephony provider
+            db.execSQL("CREATE INDEX part_mid ON part (mid)");
+            db.execSQL("CREATE INDEX addr_msg_id ON addr (msg_id)");
+            db.execSQL("CREATE INDEX sms_thread_id ON sms (thread_id)");
+            db.execSQL("CREATE INDEX pdu_thread_id ON pdu (thread_id)");
+        }
+    }
+}
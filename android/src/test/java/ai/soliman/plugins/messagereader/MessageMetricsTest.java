@@ -0,0 +1,46 @@
+package ai.soliman.plugins.messagereader;
+
+import static org.junit.Assert.*;
+
+import org.json.JSONObject;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+@RunWith(RobolectricTestRunner.class)
+public class MessageMetricsTest {
+
+    @Test
+    public void percentilesUseNearestRank() {
+        long[] sorted = new long[100];
+        for (int i = 0; i < sorted.length; i++) {
+            sorted[i] = i + 1;
+        }
+        assertEquals(50, MessageMetrics.percentile(sorted, 0.50));
+        assertEquals(90, MessageMetrics.percentile(sorted, 0.90));
+        assertEquals(99, MessageMetrics.percentile(sorted, 0.99));
+        assertEquals(7, MessageMetrics.percentile(new long[]{7}, 0.99));
+    }
+
+    @Test
+    public void windowsKeepOnlyTheMostRecentCalls() throws Exception {
+        MessageMetrics metrics = new MessageMetrics(4);
+        for (int call = 1; call <= 10; call++) {
+            CallMetrics callMetrics = new CallMetrics();
+            callMetrics.record(CallMetrics.SMS_QUERY, call * 1000000L, 0);
+            callMetrics.onQuery();
+            metrics.add(callMetrics);
+        }
+
+        JSONObject json = metrics.toJSON();
+        JSONObject smsQuery = json.getJSONObject("stages").getJSONObject(CallMetrics.SMS_QUERY);
+        assertEquals(4, smsQuery.getInt("samples"));
+        assertEquals(10.0, smsQuery.getDouble("maxMs"), 0.0);
+        assertEquals(8.0, smsQuery.getDouble("p50Ms"), 0.0);
+        assertEquals(10, json.getLong("calls"));
+        assertEquals(10, json.getLong("providerQueries"));
+
+        metrics.reset();
+        assertEquals(0, metrics.toJSON().getLong("calls"));
+    }
+}
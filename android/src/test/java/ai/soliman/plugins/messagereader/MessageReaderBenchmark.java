@@ -0,0 +1,415 @@
+package ai.soliman.plugins.messagereader;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeoutException;
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+
+/**
+ * Times {@link MessageReader#getMessages} over synthetic stores of growing
+ * size and writes one JSON record per volume and filter shape, so CI can keep
+ * the numbers and compare runs. Volumes and store shape are read from system
+ * properties set in build.gradle:
+ * {@code messageReader.benchmark.volumes} (e.g. "1000,10000,500000"),
+ * {@code messageReader.benchmark.mmsRatio}, {@code messageReader.benchmark.partsPerMessage}
+ * and {@code messageReader.benchmark.output}. The row container and
+ * serialization comparisons use {@code messageReader.benchmark.containerRows}
+ * and {@code messageReader.benchmark.serializationRows} messages. The
+ * benchmarks only run when {@code messageReader.benchmark.enabled} is true,
+ * which {@code ./gradlew test -PrunBenchmarks} sets.
+ */
+@RunWith(RobolectricTestRunner.class)
+public class MessageReaderBenchmark {
+    private static final int WARMUP_RUNS = 2;
+    private static final int MEASURED_RUNS = 5;
+
+    private static final List<String> SHAPES = Arrays.asList(
+            "firstPage", "headersPage", "deepPageToken", "senderFilter", "normalizedSender",
+            "bodyFilter", "idList", "batchOfSenders");
+
+    private interface Shape {
+        void run(MessageReader reader, MessageFixture fixture) throws Exception;
+    }
+
+    @Before
+    public void requireBenchmarksEnabled() {
+        Assume.assumeTrue("benchmarks run with -PrunBenchmarks",
+                Boolean.getBoolean("messageReader.benchmark.enabled"));
+    }
+
+    @Test
+    public void benchmarkGetMessages() throws Exception {
+        List<Integer> volumes = new ArrayList<>();
+        for (String volume : System.getProperty("messageReader.benchmark.volumes", "1000,10000,50000").split(",")) {
+            volumes.add(Integer.parseInt(volume.trim()));
+        }
+        double mmsRatio = Double.parseDouble(System.getProperty("messageReader.benchmark.mmsRatio", "0.2"));
+        int partsPerMessage = Integer.parseInt(System.getProperty("messageReader.benchmark.partsPerMessage", "1"));
+
+        JSONArray results = new JSONArray();
+        for (int volume : volumes) {
+            MessageFixture fixture = MessageFixture.builder()
+                    .messages(volume)
+                    .mmsRatio(mmsRatio)
+                    .partsPerMessage(partsPerMessage)
+                    .senders(Math.max(volume / 100, 10))
+                    .build();
+            FakeMessageProvider.install(fixture);
+            MessageReader reader = new MessageReader(RuntimeEnvironment.getApplication());
+            try {
+                for (String name : SHAPES) {
+                    results.put(measure(name, shape(name), reader, fixture, volume, mmsRatio, partsPerMessage));
+                }
+            } finally {
+                reader.shutdown();
+                fixture.close();
+            }
+        }
+
+        String report = results.toString(2);
+        write(new File(System.getProperty("messageReader.benchmark.output",
+                "build/reports/message-reader-benchmark.json")), report);
+    }
+
+    private static Shape shape(String name) {
+        switch (name) {
+            case "firstPage":
+                return new Shape() {
+                    @Override
+                    public void run(MessageReader reader, MessageFixture fixture) throws Exception {
+                        read(reader, filter(100));
+                    }
+                };
+            case "headersPage":
+                return new Shape() {
+                    @Override
+                    public void run(MessageReader reader, MessageFixture fixture) throws Exception {
+                        GetMessageFilterInput filter = filter(100);
+                        filter.setDetail(GetMessageFilterInput.Detail.HEADERS);
+                        read(reader, filter);
+                    }
+                };
+            case "deepPageToken":
+                return new Shape() {
+                    @Override
+                    public void run(MessageReader reader, MessageFixture fixture) throws Exception {
+                        GetMessageFilterInput filter = filter(100);
+                        for (int page = 0; page < 10; page++) {
+                            MessageRows rows = read(reader, filter);
+                            String token = reader.nextPageToken(filter, rows);
+                            if (token == null) {
+                                break;
+                            }
+                            filter.setPageToken(PageToken.parse(token));
+                        }
+                    }
+                };
+            case "senderFilter":
+                return new Shape() {
+                    @Override
+                    public void run(MessageReader reader, MessageFixture fixture) throws Exception {
+                        GetMessageFilterInput filter = filter(100);
+                        filter.setSender(fixture.getSenders().get(0));
+                        read(reader, filter);
+                    }
+                };
+            case "normalizedSender":
+                return new Shape() {
+                    @Override
+                    public void run(MessageReader reader, MessageFixture fixture) throws Exception {
+                        GetMessageFilterInput filter = filter(100);
+                        filter.setSender(fixture.getSenders().get(0).substring(2));
+                        filter.setNormalizeSenders(true);
+                        read(reader, filter);
+                    }
+                };
+            case "bodyFilter":
+                return new Shape() {
+                    @Override
+                    public void run(MessageReader reader, MessageFixture fixture) throws Exception {
+                        GetMessageFilterInput filter = filter(100);
+                        filter.setBody("verification");
+                        read(reader, filter);
+                    }
+                };
+            case "idList":
+                return new Shape() {
+                    @Override
+                    public void run(MessageReader reader, MessageFixture fixture) throws Exception {
+                        List<String> ids = new ArrayList<>();
+                        for (int id = 1; id <= 2000; id++) {
+                            ids.add(String.valueOf(id));
+                        }
+                        GetMessageFilterInput filter = filter(100);
+                        filter.setIds(ids);
+                        read(reader, filter);
+                    }
+                };
+            case "batchOfSenders":
+                return new Shape() {
+                    @Override
+                    public void run(MessageReader reader, MessageFixture fixture) throws Exception {
+                        List<GetMessageFilterInput> filters = new ArrayList<>();
+                        for (String sender : fixture.getSenders().subList(0, 8)) {
+                            GetMessageFilterInput filter = filter(20);
+                            filter.setSender(sender);
+                            filters.add(filter);
+                        }
+                        reader.getMessagesBatch(filters, MessageReader.DEFAULT_TIMEOUT_MS);
+                    }
+                };
+            default:
+                throw new IllegalArgumentException(name);
+        }
+    }
+
+    /**
+     * Compares holding one large page as a JSONObject per row, as pages were
+     * built before {@link MessageRows}, with holding it in MessageRows. Both
+     * read the same page; the objects variant then copies every row into its
+     * own JSONObject.
+     */
+    @Test
+    public void benchmarkRowContainers() throws Exception {
+        int volume = Integer.parseInt(System.getProperty("messageReader.benchmark.containerRows", "50000"));
+        MessageFixture fixture = MessageFixture.builder().messages(volume).senders(Math.max(volume / 100, 10)).build();
+        FakeMessageProvider.install(fixture);
+        MessageReader reader = new MessageReader(RuntimeEnvironment.getApplication());
+        final GetMessageFilterInput filter = filter(volume);
+        filter.setMaxRows(volume);
+        filter.setMaxBytes(Long.MAX_VALUE);
+
+        JSONArray results = new JSONArray();
+        try {
+            results.put(measureContainer("jsonObjects", volume, reader, new Container() {
+                @Override
+                public int fill(MessageReader reader) throws Exception {
+                    MessageRows rows = read(reader, filter);
+                    List<JSONObject> objects = new ArrayList<>(rows.size());
+                    for (int i = 0; i < rows.size(); i++) {
+                        objects.add(rows.toJSON(i));
+                    }
+                    return objects.size();
+                }
+            }));
+            results.put(measureContainer("messageRows", volume, reader, new Container() {
+                @Override
+                public int fill(MessageReader reader) throws Exception {
+                    return read(reader, filter).size();
+                }
+            }));
+        } finally {
+            reader.shutdown();
+            fixture.close();
+        }
+
+        write(new File(System.getProperty("messageReader.benchmark.containerOutput",
+                "build/reports/message-reader-container-benchmark.json")), results.toString(2));
+    }
+
+    private interface Container {
+        /** Reads the page into the container and returns its row count. */
+        int fill(MessageReader reader) throws Exception;
+    }
+
+    private static JSONObject measureContainer(String container, int volume, MessageReader reader,
+                                               Container fill) throws Exception {
+        for (int i = 0; i < WARMUP_RUNS; i++) {
+            fill.fill(reader);
+        }
+
+        List<Long> nanos = new ArrayList<>();
+        long allocated = 0;
+        int rows = 0;
+        for (int i = 0; i < MEASURED_RUNS; i++) {
+            long allocatedBefore = allocatedBytes();
+            long start = System.nanoTime();
+            rows = fill.fill(reader);
+            nanos.add(System.nanoTime() - start);
+            allocated += allocatedBytes() - allocatedBefore;
+        }
+        Collections.sort(nanos);
+
+        JSONObject result = new JSONObject();
+        result.put("container", container);
+        result.put("messages", volume);
+        result.put("rows", rows);
+        result.put("medianMs", nanos.get(nanos.size() / 2) / 1e6);
+        result.put("allocatedBytes", allocated / MEASURED_RUNS);
+        result.put("allocatedBytesPerRow", rows > 0 ? allocated / MEASURED_RUNS / rows : 0);
+        return result;
+    }
+
+    /**
+     * Compares building the objects format with the compact wire format for
+     * one large page, up to the JSON text the bridge sends.
+     */
+    @Test
+    public void benchmarkSerialization() throws Exception {
+        int volume = Integer.parseInt(System.getProperty("messageReader.benchmark.serializationRows", "10000"));
+        MessageFixture fixture = MessageFixture.builder().messages(volume).mmsRatio(0).build();
+        FakeMessageProvider.install(fixture);
+        MessageReader reader = new MessageReader(RuntimeEnvironment.getApplication());
+        final MessageRows rows;
+        try {
+            GetMessageFilterInput filter = filter(volume);
+            filter.setMaxRows(volume);
+            filter.setMaxBytes(Long.MAX_VALUE);
+            rows = read(reader, filter);
+        } finally {
+            reader.shutdown();
+            fixture.close();
+        }
+
+        JSONObject objects = measureSerialization("objects", rows, new Serializer() {
+            @Override
+            public int serialize(MessageRows messages) throws Exception {
+                JSONObject result = new JSONObject();
+                result.put("messages", messages.toJSON());
+                return result.toString().length();
+            }
+        });
+        JSONObject compact = measureSerialization("compact", rows, new Serializer() {
+            @Override
+            public int serialize(MessageRows messages) throws Exception {
+                JSONObject result = new JSONObject();
+                result.put("fields", new JSONArray(MessageRows.FIELDS));
+                result.put("payload", CompactRows.encode(messages, MessageRows.FIELDS));
+                return result.toString().length();
+            }
+        });
+        // Shares of the objects format, the figures the README points to
+        compact.put("timeVsObjects", compact.getDouble("medianMs") / objects.getDouble("medianMs"));
+        compact.put("allocatedVsObjects",
+                (double) compact.getLong("allocatedBytes") / objects.getLong("allocatedBytes"));
+        compact.put("charsVsObjects", (double) compact.getLong("chars") / objects.getLong("chars"));
+
+        JSONArray results = new JSONArray();
+        results.put(objects);
+        results.put(compact);
+
+        String report = results.toString(2);
+        write(new File(System.getProperty("messageReader.benchmark.serializationOutput",
+                "build/reports/message-reader-serialization-benchmark.json")), report);
+    }
+
+    private interface Serializer {
+        /** Returns the length of the serialized page. */
+        int serialize(MessageRows messages) throws Exception;
+    }
+
+    private static JSONObject measureSerialization(String format, MessageRows rows, Serializer serializer)
+            throws Exception {
+        for (int i = 0; i < WARMUP_RUNS; i++) {
+            serializer.serialize(rows);
+        }
+
+        List<Long> nanos = new ArrayList<>();
+        long allocated = 0;
+        int chars = 0;
+        for (int i = 0; i < MEASURED_RUNS; i++) {
+            long allocatedBefore = allocatedBytes();
+            long start = System.nanoTime();
+            chars = serializer.serialize(rows);
+            nanos.add(System.nanoTime() - start);
+            allocated += allocatedBytes() - allocatedBefore;
+        }
+        Collections.sort(nanos);
+
+        JSONObject result = new JSONObject();
+        result.put("format", format);
+        result.put("messages", rows.size());
+        result.put("medianMs", nanos.get(nanos.size() / 2) / 1e6);
+        result.put("allocatedBytes", allocated / MEASURED_RUNS);
+        result.put("chars", chars);
+        return result;
+    }
+
+    private static JSONObject measure(String name, Shape shape, MessageReader reader, MessageFixture fixture,
+                                      int volume, double mmsRatio, int partsPerMessage) throws Exception {
+        for (int i = 0; i < WARMUP_RUNS; i++) {
+            shape.run(reader, fixture);
+        }
+
+        List<Long> nanos = new ArrayList<>();
+        long allocated = 0;
+        long queries = 0;
+        for (int i = 0; i < MEASURED_RUNS; i++) {
+            reader.getCounters().reset();
+            long allocatedBefore = allocatedBytes();
+            long start = System.nanoTime();
+            shape.run(reader, fixture);
+            nanos.add(System.nanoTime() - start);
+            allocated += allocatedBytes() - allocatedBefore;
+            queries += reader.getCounters().getProviderQueries();
+        }
+        Collections.sort(nanos);
+
+        JSONObject result = new JSONObject();
+        result.put("shape", name);
+        result.put("messages", volume);
+        result.put("mmsRatio", mmsRatio);
+        result.put("partsPerMessage", partsPerMessage);
+        result.put("medianMs", nanos.get(nanos.size() / 2) / 1e6);
+        result.put("maxMs", nanos.get(nanos.size() - 1) / 1e6);
+        result.put("allocatedBytes", allocated / MEASURED_RUNS);
+        result.put("providerQueries", queries / MEASURED_RUNS);
+        return result;
+    }
+
+    /**
+     * Bytes allocated so far by all live threads, reading pages included, or
+     * 0 when the JVM cannot tell.
+     */
+    private static long allocatedBytes() {
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        if (!(threads instanceof com.sun.management.ThreadMXBean)) {
+            return 0;
+        }
+        com.sun.management.ThreadMXBean hotspot = (com.sun.management.ThreadMXBean) threads;
+        long total = 0;
+        for (long bytes : hotspot.getThreadAllocatedBytes(threads.getAllThreadIds())) {
+            if (bytes > 0) {
+                total += bytes;
+            }
+        }
+        return total;
+    }
+
+    private static MessageRows read(MessageReader reader, GetMessageFilterInput filter) throws TimeoutException {
+        return reader.getMessages(filter, MessageReader.DEFAULT_TIMEOUT_MS);
+    }
+
+    private static GetMessageFilterInput filter(int limit) {
+        GetMessageFilterInput filter = new GetMessageFilterInput();
+        filter.setLimit(limit);
+        return filter;
+    }
+
+    private static void write(File file, String report) throws IOException {
+        File parent = file.getParentFile();
+        if (parent != null) {
+            parent.mkdirs();
+        }
+        try (Writer writer = new OutputStreamWriter(new FileOutputStream(file), StandardCharsets.UTF_8)) {
+            writer.write(report);
+        }
+    }
+}
@@ -0,0 +1,246 @@
+package ai.soliman.plugins.messagereader;
+
+import static org.junit.Assert.*;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.net.Uri;
+import android.provider.Telephony;
+
+import com.getcapacitor.JSObject;
+import com.getcapacitor.PermissionState;
+import com.getcapacitor.PluginCall;
+
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+
+@RunWith(RobolectricTestRunner.class)
+public class MessageReaderPluginTest {
+
+    private MessageFixture fixture;
+    private TestPlugin plugin;
+
+    @Before
+    public void setUp() {
+        fixture = MessageFixture.builder().messages(200).mmsRatio(0.3).senders(10).build();
+        FakeMessageProvider.install(fixture);
+        plugin = new TestPlugin();
+        plugin.load();
+    }
+
+    @After
+    public void tearDown() {
+        plugin.handleOnDestroy();
+        fixture.close();
+    }
+
+    @Test
+    public void searchWaitsForTheReadSmsPermission() throws Exception {
+        plugin.permission = PermissionState.PROMPT;
+        RecordingCall call = call("searchMessages", "query", "invoice");
+
+        plugin.searchMessages(call);
+
+        assertEquals("searchPermissionCallback", plugin.requestedCallback);
+        assertFalse(call.await(200));
+    }
+
+    @Test
+    public void searchRunsOnceTheReadSmsPermissionIsGranted() throws Exception {
+        RecordingCall call = call("searchMessages", "query", "invoice");
+
+        plugin.searchMessages(call);
+
+        assertNull(plugin.requestedCallback);
+        assertTrue(call.await(5000));
+        // The index was never enabled, so the search itself is rejected
+        assertEquals("Search index is not enabled", call.rejection);
+    }
+
+    @Test
+    public void onlyIncomingMessagesAreReported() throws Exception {
+        listen();
+        long date = System.currentTimeMillis();
+        insertSms(fixture.getSmsCount() + 1, 2, "sent reply", date);
+        insertSms(fixture.getSmsCount() + 2, 1, "incoming hello", date + 1000);
+        notifyChange(Telephony.Sms.CONTENT_URI);
+
+        JSObject event = plugin.events.poll(5, TimeUnit.SECONDS);
+        assertNotNull(event);
+        assertEquals("incoming hello", event.getString("body"));
+        assertNull(plugin.events.poll(1, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void mmsAreReportedOnceTheirTextIsStored() throws Exception {
+        listen();
+        long mmsId = fixture.getMmsCount() + 1;
+        insertMms(mmsId, System.currentTimeMillis() / 1000);
+        notifyChange(Uri.parse("content://mms"));
+
+        // Read after the debounce, but held back while it has no text
+        assertNull(plugin.events.poll(1500, TimeUnit.MILLISECONDS));
+
+        ContentValues part = new ContentValues();
+        part.put("mid", mmsId);
+        part.put("seq", 0);
+        part.put("ct", "text/plain");
+        part.put("text", "picture caption");
+        fixture.getDatabase().insert("part", null, part);
+        notifyChange(Uri.parse("content://mms/part"));
+
+        JSObject event = plugin.events.poll(5, TimeUnit.SECONDS);
+        assertNotNull(event);
+        assertEquals("mms", event.getString("messageType"));
+        assertEquals(String.valueOf(mmsId), event.getString("id"));
+        assertEquals("picture caption", event.getString("body"));
+        assertNull(plugin.events.poll(1, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void messagesAddedAfterAResetAreReported() throws Exception {
+        listen();
+        // The store is recreated from a backup: no row seen before is left
+        for (String table : new String[]{"sms", "pdu", "addr", "part"}) {
+            fixture.getDatabase().delete(table, null, null);
+        }
+        insertSms(1, 1, "restored message", MessageFixture.START_DATE);
+        insertSms(2, 1, "arrived after the restore", System.currentTimeMillis());
+        notifyChange(Telephony.Sms.CONTENT_URI);
+
+        JSObject event = plugin.events.poll(5, TimeUnit.SECONDS);
+        assertNotNull(event);
+        assertEquals("arrived after the restore", event.getString("body"));
+        assertNull(plugin.events.poll(1, TimeUnit.SECONDS));
+    }
+
+    /**
+     * Subscribes to messageReceived and waits until the baseline is taken,
+     * so the messages a test adds afterwards are new.
+     */
+    private void listen() throws InterruptedException {
+        plugin.listening = true;
+        plugin.addListener(call("addListener", "eventName", "messageReceived"));
+        long deadline = System.currentTimeMillis() + 5000;
+        while (plugin.getReceivedWatermark() == null) {
+            assertTrue("No baseline was taken", System.currentTimeMillis() < deadline);
+            Thread.sleep(10);
+        }
+    }
+
+    private void insertSms(long id, int box, String body, long date) {
+        ContentValues sms = new ContentValues();
+        sms.put("_id", id);
+        sms.put("thread_id", 1);
+        sms.put("address", fixture.getSenders().get(0));
+        sms.put("body", body);
+        sms.put("date", date);
+        sms.put("type", box);
+        sms.put("sub_id", 1);
+        fixture.getDatabase().insert("sms", null, sms);
+    }
+
+    private void insertMms(long id, long dateSeconds) {
+        ContentValues pdu = new ContentValues();
+        pdu.put("_id", id);
+        pdu.put("thread_id", 1);
+        pdu.put("date", dateSeconds);
+        pdu.put("msg_box", 1);
+        pdu.put("sub_id", 1);
+        fixture.getDatabase().insert("pdu", null, pdu);
+        ContentValues addr = new ContentValues();
+        addr.put("msg_id", id);
+        addr.put("address", fixture.getSenders().get(0));
+        addr.put("type", 137);
+        fixture.getDatabase().insert("addr", null, addr);
+    }
+
+    private static void notifyChange(Uri uri) {
+        RuntimeEnvironment.getApplication().getContentResolver().notifyChange(uri, null);
+    }
+
+    private static RecordingCall call(String method, String key, String value) {
+        JSObject data = new JSObject();
+        data.put(key, value);
+        return new RecordingCall(method, data);
+    }
+
+    /**
+     * Runs the plugin without a bridge: the permission state and listeners
+     * are set by the test, and permission requests and events are only
+     * recorded.
+     */
+    static class TestPlugin extends MessageReaderPlugin {
+        volatile PermissionState permission = PermissionState.GRANTED;
+        volatile String requestedCallback;
+        volatile boolean listening;
+        final BlockingQueue<JSObject> events = new LinkedBlockingQueue<>();
+
+        @Override
+        public Context getContext() {
+            return RuntimeEnvironment.getApplication();
+        }
+
+        @Override
+        public PermissionState getPermissionState(String alias) {
+            return permission;
+        }
+
+        @Override
+        protected void requestPermissionForAlias(String alias, PluginCall call, String callbackName) {
+            requestedCallback = callbackName;
+        }
+
+        @Override
+        protected boolean hasListeners(String eventName) {
+            return listening;
+        }
+
+        @Override
+        protected void notifyListeners(String eventName, JSObject data) {
+            events.add(data);
+        }
+    }
+
+    /**
+     * A call that records how it was settled instead of answering a bridge.
+     */
+    static class RecordingCall extends PluginCall {
+        private final CountDownLatch settled = new CountDownLatch(1);
+        volatile JSObject result;
+        volatile String rejection;
+
+        RecordingCall(String method, JSObject data) {
+            super(null, "MessageReader", "test", method, data);
+        }
+
+        @Override
+        public void resolve(JSObject data) {
+            result = data;
+            settled.countDown();
+        }
+
+        @Override
+        public void resolve() {
+            resolve(new JSObject());
+        }
+
+        @Override
+        public void reject(String msg, String code, Exception ex, JSObject data) {
+            rejection = msg;
+            settled.countDown();
+        }
+
+        boolean await(long timeoutMs) throws InterruptedException {
+            return settled.await(timeoutMs, TimeUnit.MILLISECONDS);
+        }
+    }
+}
@@ -0,0 +1,1123 @@
+package ai.soliman.plugins.messagereader;
+
+import static org.junit.Assert.*;
+
+import android.database.Cursor;
+import android.util.Base64;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+
+@RunWith(RobolectricTestRunner.class)
+public class MessageReaderTest {
+
+    private MessageFixture fixture;
+    private FakeMessageProvider provider;
+    private MessageReader reader;
+
+    @Before
+    public void setUp() {
+        fixture = MessageFixture.builder().messages(600).mmsRatio(0.3).partsPerMessage(2).senders(20).build();
+        provider = FakeMessageProvider.install(fixture);
+        reader = new MessageReader(RuntimeEnvironment.getApplication());
+    }
+
+    @After
+    public void tearDown() {
+        MessageSearchIndex searchIndex = reader.getSearchIndex();
+        if (searchIndex != null) {
+            searchIndex.close();
+        }
+        reader.shutdown();
+        fixture.close();
+    }
+
+    @Test
+    public void pagesAreNewestFirstAcrossSmsAndMms() {
+        MessageRows page = read(filter(200));
+
+        assertEquals(200, page.size());
+        boolean sawSms = false;
+        boolean sawMms = false;
+        for (int i = 0; i < page.size(); i++) {
+            if (i > 0) {
+                assertTrue(page.getDate(i - 1) >= page.getDate(i));
+            }
+            sawSms |= !page.isMms(i);
+            sawMms |= page.isMms(i);
+        }
+        assertTrue(sawSms && sawMms);
+    }
+
+    @Test
+    public void mergeBreaksDateTiesBySmsThenNewestId() {
+        MessageRows all = read(filter(10000));
+
+        assertEquals(fixture.getTotal(), all.size());
+        assertEquals(fixture.getTotal(), new HashSet<>(keys(all)).size());
+        for (int i = 1; i < all.size(); i++) {
+            if (all.getDate(i - 1) != all.getDate(i)) {
+                assertTrue(all.getDate(i - 1) > all.getDate(i));
+            } else if (all.isMms(i - 1) == all.isMms(i)) {
+                assertTrue(all.getId(i - 1) > all.getId(i));
+            } else {
+                assertFalse(all.isMms(i - 1));
+            }
+        }
+    }
+
+    @Test
+    public void offsetPagesAreSlicesOfTheMergedOrder() {
+        List<String> all = keys(read(filter(10000)));
+
+        GetMessageFilterInput filter = filter(40);
+        filter.setIndexFrom(95);
+        assertEquals(all.subList(95, 135), keys(read(filter)));
+    }
+
+    @Test
+    public void pageTokensWalkTheSameRowsAsOffsets() {
+        List<String> byToken = new ArrayList<>();
+        GetMessageFilterInput filter = filter(50);
+        for (int pages = 0; pages < 6; pages++) {
+            MessageRows page = read(filter);
+            byToken.addAll(keys(page));
+            String token = reader.nextPageToken(filter, page);
+            assertNotNull(token);
+            filter.setPageToken(PageToken.parse(token));
+        }
+
+        GetMessageFilterInput offsets = filter(300);
+        assertEquals(keys(read(offsets)), byToken);
+    }
+
+    @Test
+    public void pageTokensSkipMessagesThatArriveBetweenPages() {
+        GetMessageFilterInput filter = filter(50);
+        MessageRows first = read(filter);
+        String token = reader.nextPageToken(filter, first);
+        assertEquals(token, PageToken.parse(token).toString());
+
+        fixture.getDatabase().execSQL("INSERT INTO sms (thread_id, address, body, date, type, read, sub_id) "
+                + "VALUES (1, '" + fixture.getSenders().get(0) + "', 'new', " + (first.getDate(0) + 1000)
+                + ", 1, 0, 1)");
+        filter.setPageToken(PageToken.parse(token));
+        MessageRows second = read(filter);
+
+        List<String> expected = keys(read(filter(101))).subList(51, 101);
+        assertEquals(expected, keys(second));
+    }
+
+    @Test
+    public void malformedPageTokensAreRejected() {
+        for (String token : Arrays.asList("", "1700000000000:sms", "1700000000000:fax:12", "date:sms:12")) {
+            try {
+                PageToken.parse(token);
+                fail(token);
+            } catch (IllegalArgumentException expected) {
+                // Rejected as it should be
+            }
+        }
+    }
+
+    @Test
+    public void streamedBatchesConcatenateToThePage() throws Exception {
+        final List<String> streamed = new ArrayList<>();
+        final List<Boolean> done = new ArrayList<>();
+        reader.streamMessages(filter(250), 60, MessageReader.DEFAULT_TIMEOUT_MS, new AtomicBoolean(false), new MessageReader.BatchListener() {
+            @Override
+            public void onBatch(MessageRows messages, boolean last) {
+                assertTrue(messages.size() <= 60);
+                streamed.addAll(keys(messages));
+                done.add(last);
+            }
+        });
+
+        assertEquals(keys(read(filter(250))), streamed);
+        assertEquals(5, done.size());
+        assertEquals(Arrays.asList(false, false, false, false, true), done);
+    }
+
+    @Test
+    public void cancelledStreamsStopAndReportDone() throws Exception {
+        final AtomicBoolean cancelled = new AtomicBoolean(false);
+        final List<Integer> sizes = new ArrayList<>();
+        final List<Boolean> done = new ArrayList<>();
+        GetMessageFilterInput filter = new GetMessageFilterInput();
+        reader.streamMessages(filter, 50, MessageReader.DEFAULT_TIMEOUT_MS, cancelled, new MessageReader.BatchListener() {
+            @Override
+            public void onBatch(MessageRows messages, boolean last) {
+                sizes.add(messages.size());
+                done.add(last);
+                cancelled.set(true);
+            }
+        });
+
+        assertEquals(Arrays.asList(50, 0), sizes);
+        assertEquals(Arrays.asList(false, true), done);
+    }
+
+    @Test
+    public void walksGiveUpOnceTheirTimeoutPasses() {
+        final List<Boolean> done = new ArrayList<>();
+        try {
+            reader.streamMessages(filter(250), 60, 0, new AtomicBoolean(false), new MessageReader.BatchListener() {
+                @Override
+                public void onBatch(MessageRows messages, boolean last) {
+                    done.add(last);
+                }
+            });
+            fail("stream");
+        } catch (TimeoutException expected) {
+            assertFalse(done.contains(true));
+        }
+        try {
+            reader.getMessagesSince(null, null, null, null, 0);
+            fail("sync");
+        } catch (TimeoutException expected) {
+            // Nothing was returned
+        }
+    }
+
+    @Test
+    public void byteBudgetsTruncatePagesWithoutLosingRows() {
+        List<String> budgeted = new ArrayList<>();
+        GetMessageFilterInput filter = filter(300);
+        filter.setMaxBytes(4096L);
+        while (budgeted.size() < 300) {
+            MessageRows page = read(filter);
+            assertTrue(page.isTruncated());
+            assertFalse(page.isEmpty());
+            long bytes = 0;
+            for (int i = 0; i < page.size(); i++) {
+                bytes += page.estimateBytes(i);
+            }
+            assertTrue(bytes <= 4096);
+            budgeted.addAll(keys(page));
+            filter.setPageToken(PageToken.parse(reader.nextPageToken(filter, page)));
+        }
+
+        assertEquals(keys(read(filter(300))), budgeted.subList(0, 300));
+    }
+
+    @Test
+    public void rowBudgetsCapLargeLimits() {
+        GetMessageFilterInput filter = filter(10000);
+        filter.setMaxRows(120);
+
+        MessageRows page = read(filter);
+
+        assertEquals(120, page.size());
+        assertTrue(page.isTruncated());
+        assertNotNull(reader.nextPageToken(filter, page));
+
+        filter.setMaxRows(600);
+        assertFalse(read(filter).isTruncated());
+    }
+
+    @Test
+    public void cachedPagesAreDroppedWhenMessagesChange() {
+        reader.setCache(new MessageCache(MessageCache.DEFAULT_MAX_ENTRIES, MessageCache.DEFAULT_MAX_BYTES));
+        MessageRows first = read(filter(50));
+        provider.resetQueries();
+        assertSame(first, read(filter(50)));
+        assertEquals(0, provider.getQueries("sms"));
+
+        fixture.getDatabase().execSQL("INSERT INTO sms (thread_id, address, body, date, type, read, sub_id) "
+                + "VALUES (1, '" + fixture.getSenders().get(0) + "', 'new', " + (first.getDate(0) + 1000)
+                + ", 1, 0, 1)");
+        reader.onMessagesChanged();
+        MessageRows second = read(filter(50));
+
+        assertNotSame(first, second);
+        assertEquals("new", second.getBody(0));
+        assertEquals(keys(first).subList(0, 49), keys(second).subList(1, 50));
+    }
+
+    @Test
+    public void pagesReadBeforeAnInvalidationAreNotCached() {
+        MessageCache cache = new MessageCache(MessageCache.DEFAULT_MAX_ENTRIES, MessageCache.DEFAULT_MAX_BYTES);
+        long generation = cache.getGeneration();
+        MessageRows stale = read(filter(50));
+
+        cache.invalidate();
+        cache.put(filter(50).cacheKey(), stale, generation);
+
+        assertNull(cache.get(filter(50).cacheKey()));
+        cache.put(filter(50).cacheKey(), stale, cache.getGeneration());
+        assertSame(stale, cache.get(filter(50).cacheKey()));
+    }
+
+    @Test
+    public void syncReturnsOnlyTheDeltaSinceTheWatermark() throws Exception {
+        SyncResult full = reader.getMessagesSince(null, null, null, null, MessageReader.DEFAULT_TIMEOUT_MS);
+        assertEquals(fixture.getTotal(), full.getMessages().size());
+        assertFalse(full.isReset());
+
+        fixture.getDatabase().execSQL("INSERT INTO sms (thread_id, address, body, date, type, read, sub_id) "
+                + "VALUES (1, '" + fixture.getSenders().get(0) + "', 'new', " + MessageFixture.START_DATE
+                + ", 1, 0, 1)");
+        fixture.getDatabase().execSQL("DELETE FROM sms WHERE _id = 2");
+        SyncResult delta = reader.getMessagesSince(null, full.getWatermark(), Arrays.asList("1", "2"),
+                Arrays.asList("1"), MessageReader.DEFAULT_TIMEOUT_MS);
+
+        assertEquals(1, delta.getMessages().size());
+        assertEquals("new", delta.getMessages().getBody(0));
+        assertEquals(fixture.getSmsCount() + 1, delta.getWatermark().getSmsId());
+        assertEquals(full.getWatermark().getMmsId(), delta.getWatermark().getMmsId());
+        assertEquals(Arrays.asList("2"), delta.getDeletedSmsIds());
+        assertTrue(delta.getDeletedMmsIds().isEmpty());
+
+        SyncResult unchanged = reader.getMessagesSince(null, delta.getWatermark(), null, null,
+                MessageReader.DEFAULT_TIMEOUT_MS);
+        assertTrue(unchanged.getMessages().isEmpty());
+    }
+
+    @Test
+    public void syncTreatsALowerNewestIdAsADeletion() throws Exception {
+        SyncWatermark ahead = new SyncWatermark(fixture.getSmsCount() + 100, fixture.getMmsCount());
+
+        SyncResult result = reader.getMessagesSince(null, ahead, null, null, MessageReader.DEFAULT_TIMEOUT_MS);
+
+        assertFalse(result.isReset());
+        assertTrue(result.getMessages().isEmpty());
+        assertEquals(fixture.getSmsCount(), result.getWatermark().getSmsId());
+    }
+
+    @Test
+    public void syncReturnsAMessageThatReusesTheIdOfTheDeletedNewestSms() throws Exception {
+        SyncResult full = reader.getMessagesSince(null, null, null, null, MessageReader.DEFAULT_TIMEOUT_MS);
+        long newest = full.getWatermark().getSmsId();
+
+        fixture.getDatabase().execSQL("DELETE FROM sms WHERE _id = " + newest);
+        SyncResult afterDelete = reader.getMessagesSince(null, full.getWatermark(),
+                Arrays.asList(String.valueOf(newest)), null, MessageReader.DEFAULT_TIMEOUT_MS);
+
+        assertFalse(afterDelete.isReset());
+        assertTrue(afterDelete.getMessages().isEmpty());
+        assertEquals(Arrays.asList(String.valueOf(newest)), afterDelete.getDeletedSmsIds());
+        assertEquals(newest - 1, afterDelete.getWatermark().getSmsId());
+
+        // Without AUTOINCREMENT the next row gets the freed id
+        fixture.getDatabase().execSQL("INSERT INTO sms (thread_id, address, body, date, type, read, sub_id) "
+                + "VALUES (1, '" + fixture.getSenders().get(0) + "', 'new', "
+                + (full.getWatermark().getSmsDate() + 1000) + ", 1, 0, 1)");
+
+        for (SyncWatermark watermark : Arrays.asList(full.getWatermark(), afterDelete.getWatermark())) {
+            SyncResult delta = reader.getMessagesSince(null, watermark, null, null, MessageReader.DEFAULT_TIMEOUT_MS);
+            assertFalse(delta.isReset());
+            assertEquals(1, delta.getMessages().size());
+            assertEquals(newest, delta.getMessages().getId(0));
+            assertEquals("new", delta.getMessages().getBody(0));
+            assertEquals(newest, delta.getWatermark().getSmsId());
+        }
+    }
+
+    @Test
+    public void syncResetsOnlyWhenNoSeenMessageIsLeft() throws Exception {
+        SyncResult full = reader.getMessagesSince(null, null, null, null, MessageReader.DEFAULT_TIMEOUT_MS);
+
+        fixture.getDatabase().execSQL("DELETE FROM sms");
+        fixture.getDatabase().execSQL("INSERT INTO sms (thread_id, address, body, date, type, read, sub_id) "
+                + "VALUES (1, '" + fixture.getSenders().get(0) + "', 'new', "
+                + (full.getWatermark().getSmsDate() + 1000) + ", 1, 0, 1)");
+        SyncResult result = reader.getMessagesSince(null, full.getWatermark(), null, null,
+                MessageReader.DEFAULT_TIMEOUT_MS);
+
+        assertTrue(result.isReset());
+        assertEquals(fixture.getMmsCount() + 1, result.getMessages().size());
+    }
+
+    @Test
+    public void watermarksRoundTripWithAndWithoutDates() {
+        SyncWatermark watermark = new SyncWatermark(12, 3, 1700000000000L, 1700000000L);
+        SyncWatermark parsed = SyncWatermark.parse(watermark.toString());
+        assertEquals(12, parsed.getSmsId());
+        assertEquals(3, parsed.getMmsId());
+        assertEquals(1700000000000L, parsed.getSmsDate());
+        assertEquals(1700000000L, parsed.getMmsDate());
+
+        SyncWatermark legacy = SyncWatermark.parse("12:3");
+        assertEquals(12, legacy.getSmsId());
+        assertEquals(SyncWatermark.DATE_UNKNOWN, legacy.getSmsDate());
+    }
+
+    @Test
+    public void normalizedSendersMatchEveryFormatting() {
+        String stored = fixture.getSenders().get(3);
+        String formatted = "(" + stored.substring(2, 5) + ") " + stored.substring(5, 8) + "-" + stored.substring(8);
+
+        GetMessageFilterInput filter = filter(10000);
+        filter.setSender(formatted);
+        assertEquals(0, read(filter).size());
+
+        filter.setNormalizeSenders(true);
+        MessageRows page = read(filter);
+        assertEquals(fixture.countFrom(stored), page.size());
+        for (int i = 0; i < page.size(); i++) {
+            assertEquals(stored, page.getSender(i));
+        }
+    }
+
+    @Test
+    public void mmsSenderAndBodyFiltersMatchTheUnfilteredRead() {
+        String sender = fixture.getSenders().get(5);
+        List<String> expected = new ArrayList<>();
+        MessageRows all = read(filter(10000));
+        for (int i = 0; i < all.size(); i++) {
+            if (sender.equals(all.getSender(i)) && all.getBody(i).contains("invoice")) {
+                expected.add(all.getMessageType(i) + ":" + all.getId(i));
+            }
+        }
+        assertFalse(expected.isEmpty());
+
+        GetMessageFilterInput filter = filter(10000);
+        filter.setSender(sender);
+        filter.setBody("invoice");
+        provider.resetQueries();
+        MessageRows page = read(filter);
+
+        assertEquals(expected, keys(page));
+        // Both filters run inside the pdu query, so addr and part are only
+        // read for the MMS that are returned
+        int batches = (page.size() + 49) / 50;
+        assertTrue(provider.getQueries("addr") <= batches);
+        assertTrue(provider.getQueries("part") <= batches);
+    }
+
+    @Test
+    public void mmsFiltersFallBackToIdLookupsWhenSubqueriesAreRejected() {
+        GetMessageFilterInput filter = filter(10000);
+        filter.setSender(fixture.getSenders().get(5));
+        filter.setBody("invoice");
+        List<String> pushedDown = keys(read(filter));
+        assertFalse(pushedDown.isEmpty());
+
+        provider.setRejectSubqueries(true);
+        provider.resetQueries();
+        MessageReader fallback = new MessageReader(RuntimeEnvironment.getApplication());
+        try {
+            assertEquals(pushedDown, keys(read(fallback, filter)));
+            assertEquals(1, provider.getRejectedQueries());
+
+            // The rejection is remembered, so later reads go straight to the lookups
+            assertEquals(pushedDown, keys(read(fallback, filter)));
+            assertEquals(1, provider.getRejectedQueries());
+        } finally {
+            fallback.shutdown();
+        }
+    }
+
+    @Test
+    public void headerPagesNeverReadTheMmsPartTable() {
+        GetMessageFilterInput filter = filter(100);
+        filter.setDetail(GetMessageFilterInput.Detail.HEADERS);
+        provider.resetQueries();
+
+        MessageRows page = read(filter);
+
+        assertEquals(100, page.size());
+        assertEquals(0, provider.getQueries("part"));
+        assertNull(page.getBody(0));
+    }
+
+    @Test
+    public void mmsBodiesLeaveOutTheSmilLayout() {
+        MessageRows page = read(filter(200));
+        for (int i = 0; i < page.size(); i++) {
+            assertFalse(page.getBody(i).contains("<smil>"));
+        }
+    }
+
+    @Test
+    public void mmsBodiesConcatenateTheirTextPartsAsIs() {
+        fixture.getDatabase().execSQL("UPDATE part SET text = 'line one' || char(10) || 'line two' "
+                + "WHERE mid = 1 AND seq = 0");
+        Cursor cursor = fixture.getDatabase().rawQuery(
+                "SELECT text FROM part WHERE mid = 1 AND ct = 'text/plain' ORDER BY _id", null);
+        StringBuilder expected = new StringBuilder();
+        while (cursor.moveToNext()) {
+            expected.append(cursor.getString(0));
+        }
+        cursor.close();
+
+        GetMessageFilterInput filter = filter(10);
+        filter.setIds(Arrays.asList("1"));
+        MessageRows page = read(filter);
+
+        String body = null;
+        for (int i = 0; i < page.size(); i++) {
+            if (page.isMms(i)) {
+                body = page.getBody(i);
+            }
+        }
+        assertEquals(expected.toString(), body);
+        assertTrue(body.startsWith("line one\nline two"));
+    }
+
+    @Test
+    public void fileBackedTextPartsAreReadIntoTheBody() throws Exception {
+        // Longer than the shared read buffer, so the second part reuses a full buffer
+        StringBuilder longText = new StringBuilder();
+        while (longText.length() < 10000) {
+            longText.append("stored text ").append(longText.length()).append('\n');
+        }
+        Map<String, String> expected = new HashMap<>();
+        for (String mid : Arrays.asList("1", "2")) {
+            Cursor cursor = fixture.getDatabase().rawQuery(
+                    "SELECT text FROM part WHERE mid = ? AND ct = 'text/plain' ORDER BY _id", new String[]{mid});
+            StringBuilder body = new StringBuilder();
+            while (cursor.moveToNext()) {
+                body.append(cursor.getString(0));
+            }
+            cursor.close();
+            String stored = mid + ":" + longText;
+            fixture.addFilePart(Long.parseLong(mid), 5, "text/plain", stored.getBytes(StandardCharsets.UTF_8));
+            expected.put(mid, body.append(stored).toString());
+        }
+        provider.resetQueries();
+        reader.getCounters().reset();
+
+        GetMessageFilterInput filter = filter(10);
+        filter.setIds(Arrays.asList("1", "2"));
+        MessageRows page = read(filter);
+
+        Map<String, String> bodies = new HashMap<>();
+        for (int i = 0; i < page.size(); i++) {
+            if (page.isMms(i)) {
+                bodies.put(String.valueOf(page.getId(i)), page.getBody(i));
+            }
+        }
+        assertEquals(expected, bodies);
+        assertEquals(1, provider.getQueries("part"));
+        assertEquals(2, provider.getQueries("part_file"));
+        assertEquals(2, reader.getCounters().getStreamOpens());
+    }
+
+    @Test
+    public void mmsTextsAreReadInOnePartQueryPerBatch() {
+        provider.resetQueries();
+        reader.getCounters().reset();
+
+        MessageRows page = read(filter(10000));
+
+        assertEquals(fixture.getTotal(), page.size());
+        int batches = (fixture.getMmsCount() + 49) / 50;
+        assertTrue(provider.getQueries("part") <= batches);
+        assertTrue(provider.getQueries("addr") <= batches);
+        assertEquals(0, reader.getCounters().getStreamOpens());
+    }
+
+    @Test
+    public void largeTextPartsAreReadInChunks() throws Exception {
+        StringBuilder text = new StringBuilder();
+        while (text.length() < MessageReader.MAX_PART_CHUNK_SIZE + 1000) {
+            text.append("chunk ").append(text.length()).append(' ');
+        }
+        String partId = String.valueOf(fixture.addFilePart(1, 5, "text/plain",
+                text.toString().getBytes(StandardCharsets.UTF_8)));
+
+        // Ask for more than a chunk: the reader caps it
+        JSONObject first = reader.getMessagePart("1", partId, 0, Integer.MAX_VALUE);
+        String firstText = first.getString("text");
+        assertEquals(MessageReader.MAX_PART_CHUNK_SIZE, firstText.length());
+        assertTrue(first.getBoolean("hasMore"));
+
+        JSONObject second = reader.getMessagePart("1", partId, firstText.length(), Integer.MAX_VALUE);
+        assertEquals(firstText.length(), second.getLong("offset"));
+        assertFalse(second.getBoolean("hasMore"));
+        assertEquals(text.toString(), firstText + second.getString("text"));
+        assertEquals(2, provider.getQueries("part_file"));
+    }
+
+    @Test
+    public void binaryPartChunksJoinToTheFile() throws Exception {
+        byte[] content = new byte[10000];
+        for (int i = 0; i < content.length; i++) {
+            content[i] = (byte) (i * 31);
+        }
+        String partId = String.valueOf(fixture.addFilePart(1, 5, "image/jpeg", content));
+
+        ByteArrayOutputStream joined = new ByteArrayOutputStream();
+        long offset = 0;
+        int chunks = 0;
+        boolean hasMore = true;
+        while (hasMore) {
+            JSONObject chunk = reader.getMessagePart("1", partId, offset, 4096);
+            byte[] data = Base64.decode(chunk.getString("data"), Base64.NO_WRAP);
+            joined.write(data, 0, data.length);
+            offset += data.length;
+            hasMore = chunk.getBoolean("hasMore");
+            chunks++;
+        }
+        assertEquals(3, chunks);
+        assertArrayEquals(content, joined.toByteArray());
+    }
+
+    @Test
+    public void partChunksStopAtTheEndOfThePart() throws Exception {
+        String partId = String.valueOf(fixture.addFilePart(1, 5, "image/jpeg", new byte[100]));
+
+        JSONObject tail = reader.getMessagePart("1", partId, 90, 50);
+        assertEquals(10, Base64.decode(tail.getString("data"), Base64.NO_WRAP).length);
+        assertFalse(tail.getBoolean("hasMore"));
+
+        JSONObject pastTheEnd = reader.getMessagePart("1", partId, 500, 50);
+        assertEquals("", pastTheEnd.getString("data"));
+        assertFalse(pastTheEnd.getBoolean("hasMore"));
+
+        Cursor cursor = fixture.getDatabase().rawQuery(
+                "SELECT _id, text FROM part WHERE mid = 1 AND ct = 'text/plain' ORDER BY _id LIMIT 1", null);
+        cursor.moveToFirst();
+        String inlineId = cursor.getString(0);
+        String inlineText = cursor.getString(1);
+        cursor.close();
+
+        JSONObject inline = reader.getMessagePart("1", inlineId, 2, 5);
+        assertEquals(inlineText.substring(2, 7), inline.getString("text"));
+        assertEquals(inlineText.length() > 7, inline.getBoolean("hasMore"));
+        assertEquals("", reader.getMessagePart("1", inlineId, inlineText.length() + 10, 5).getString("text"));
+    }
+
+    @Test
+    public void unknownPartsAreNotFound() throws Exception {
+        String partId = String.valueOf(fixture.addFilePart(1, 5, "image/jpeg", new byte[100]));
+
+        assertNull(reader.getMessagePart("1", "999999", 0, 100));
+        // A part is only found through the message it belongs to
+        assertNull(reader.getMessagePart("2", partId, 0, 100));
+        assertEquals(0, provider.getQueries("part_file"));
+    }
+
+    @Test
+    public void firstPageCostsAFixedNumberOfQueries() {
+        reader.getCounters().reset();
+        read(filter(100));
+        // sms + pdu, then one addr and one part lookup per MMS batch
+        assertTrue(reader.getCounters().getProviderQueries() <= 8);
+    }
+
+    @Test
+    public void batchedFiltersMatchSeparateCalls() {
+        List<GetMessageFilterInput> filters = new ArrayList<>();
+        for (String sender : fixture.getSenders().subList(0, 4)) {
+            GetMessageFilterInput filter = filter(15);
+            filter.setSender(sender);
+            filters.add(filter);
+        }
+
+        List<MessageRows> batch;
+        try {
+            batch = reader.getMessagesBatch(filters, MessageReader.DEFAULT_TIMEOUT_MS);
+        } catch (Exception e) {
+            throw new AssertionError(e);
+        }
+
+        assertEquals(filters.size(), batch.size());
+        for (int i = 0; i < filters.size(); i++) {
+            assertEquals(keys(read(filters.get(i))), keys(batch.get(i)));
+        }
+    }
+
+    @Test
+    public void batchedIdFiltersMatchSeparateCalls() {
+        MessageRows all = read(filter(120));
+        List<GetMessageFilterInput> filters = new ArrayList<>();
+        for (int start = 0; start < 120; start += 30) {
+            List<String> ids = new ArrayList<>();
+            for (int i = start; i < start + 30; i++) {
+                ids.add(String.valueOf(all.getId(i)));
+            }
+            GetMessageFilterInput filter = filter(10 + start / 10);
+            filter.setIds(ids);
+            filter.setIndexFrom(start / 30);
+            filters.add(filter);
+        }
+
+        List<MessageRows> batch = batch(filters);
+
+        assertEquals(filters.size(), batch.size());
+        for (int i = 0; i < filters.size(); i++) {
+            assertEquals(keys(read(filters.get(i))), keys(batch.get(i)));
+        }
+    }
+
+    @Test
+    public void mixedBatchesKeepTheOrderOfTheirFilters() {
+        List<String> senders = fixture.getSenders();
+        MessageRows recent = read(filter(20));
+
+        List<GetMessageFilterInput> filters = new ArrayList<>();
+        GetMessageFilterInput bySender = filter(10);
+        bySender.setSender(senders.get(0));
+        filters.add(bySender);
+        GetMessageFilterInput byIds = filter(5);
+        byIds.setIds(Arrays.asList(String.valueOf(recent.getId(0)), String.valueOf(recent.getId(3))));
+        filters.add(byIds);
+        filters.add(filter(25));
+        GetMessageFilterInput bySenders = filter(10);
+        bySenders.setSenders(Arrays.asList(senders.get(1), senders.get(2)));
+        filters.add(bySenders);
+        // Restricts both ids and senders, so it cannot join either group
+        GetMessageFilterInput byBoth = filter(5);
+        byBoth.setIds(byIds.getIds());
+        byBoth.setSender(senders.get(0));
+        filters.add(byBoth);
+        GetMessageFilterInput idsOnly = filter(10);
+        idsOnly.setSender(senders.get(3));
+        idsOnly.setDetail(GetMessageFilterInput.Detail.IDS);
+        filters.add(idsOnly);
+
+        List<MessageRows> batch = batch(filters);
+
+        assertEquals(filters.size(), batch.size());
+        for (int i = 0; i < filters.size(); i++) {
+            assertEquals(keys(read(filters.get(i))), keys(batch.get(i)));
+        }
+    }
+
+    @Test
+    public void coalescedSenderFiltersShareTheirQueries() {
+        List<GetMessageFilterInput> filters = new ArrayList<>();
+        for (String sender : fixture.getSenders().subList(0, 8)) {
+            GetMessageFilterInput filter = filter(10);
+            filter.setSender(sender);
+            filters.add(filter);
+        }
+
+        provider.resetQueries();
+        for (GetMessageFilterInput filter : filters) {
+            read(filter);
+        }
+        int separateSms = provider.getQueries("sms");
+        int separateMms = provider.getQueries("pdu") + provider.getQueries("addr");
+
+        provider.resetQueries();
+        batch(filters);
+
+        assertTrue(provider.getQueries("sms") < separateSms);
+        assertTrue(provider.getQueries("pdu") + provider.getQueries("addr") < separateMms);
+    }
+
+    @Test
+    public void conversationPagesAreSlicesOfTheNewestFirstOrder() throws Exception {
+        JSONArray all = reader.getConversations(0, 100);
+        assertEquals(fixture.getSenders().size(), all.length());
+        for (int i = 1; i < all.length(); i++) {
+            assertTrue(all.getJSONObject(i - 1).getLong("date") >= all.getJSONObject(i).getLong("date"));
+        }
+
+        provider.resetQueries();
+        JSONArray page = reader.getConversations(5, 4);
+
+        assertEquals(4, page.length());
+        for (int i = 0; i < page.length(); i++) {
+            assertEquals(all.getJSONObject(5 + i).getString("threadId"), page.getJSONObject(i).getString("threadId"));
+        }
+        assertEquals(1, provider.getQueries("threads"));
+    }
+
+    @Test
+    public void conversationUnreadCountsMatchTheStore() throws Exception {
+        Map<String, Integer> expected = new HashMap<>();
+        Cursor cursor = fixture.getDatabase().rawQuery("SELECT thread_id, COUNT(*) FROM (SELECT thread_id FROM sms "
+                + "WHERE read = 0 UNION ALL SELECT thread_id FROM pdu WHERE read = 0) GROUP BY thread_id", null);
+        while (cursor.moveToNext()) {
+            expected.put(cursor.getString(0), cursor.getInt(1));
+        }
+        cursor.close();
+
+        provider.resetQueries();
+        JSONArray conversations = reader.getConversations(0, 100);
+
+        for (int i = 0; i < conversations.length(); i++) {
+            JSONObject conversation = conversations.getJSONObject(i);
+            Integer unread = expected.get(conversation.getString("threadId"));
+            assertEquals(unread != null ? unread.intValue() : 0, conversation.getInt("unreadCount"));
+            assertEquals(1, conversation.getJSONArray("recipients").length());
+        }
+        // One grouped count per provider, however many unread messages there are
+        assertEquals(1, provider.getQueries("sms"));
+        assertEquals(1, provider.getQueries("pdu"));
+    }
+
+    @Test
+    public void conversationsFallBackWhenPagingAndGroupingAreRejected() throws Exception {
+        String expected = reader.getConversations(5, 4).toString();
+
+        provider.setRejectAppendedClauses(true);
+        provider.resetQueries();
+        MessageReader fallback = new MessageReader(RuntimeEnvironment.getApplication());
+        try {
+            assertEquals(expected, fallback.getConversations(5, 4).toString());
+            // The paged threads query and the first grouped count
+            assertEquals(2, provider.getRejectedQueries());
+
+            // The rejections are remembered, so later pages go straight to the fallbacks
+            provider.resetQueries();
+            assertEquals(expected, fallback.getConversations(5, 4).toString());
+            assertEquals(0, provider.getRejectedQueries());
+            assertEquals(1, provider.getQueries("threads"));
+            assertEquals(1, provider.getQueries("sms"));
+            assertEquals(1, provider.getQueries("pdu"));
+        } finally {
+            fallback.shutdown();
+        }
+    }
+
+    @Test
+    public void statsCountEveryMessage() {
+        MessageStats totals = reader.getMessageStats(null, false, false);
+        assertEquals(fixture.getTotal(), totals.getTotal());
+
+        MessageStats buckets = reader.getMessageStats(null, true, true);
+        assertEquals(fixture.getTotal(), buckets.getTotal());
+    }
+
+    @Test
+    public void statsMatchTheRowsTheyCount() throws Exception {
+        MessageRows all = read(filter(10000));
+        JSONObject totals = reader.getMessageStats(null, false, false).toJSON();
+        assertEquals(fixture.getSmsCount(), totals.getLong("smsCount"));
+        assertEquals(fixture.getMmsCount(), totals.getLong("mmsCount"));
+        assertEquals(all.getDate(all.size() - 1), totals.getLong("minDate"));
+        assertEquals(all.getDate(0), totals.getLong("maxDate"));
+
+        JSONObject buckets = reader.getMessageStats(null, true, true).toJSON();
+        JSONArray senders = buckets.getJSONArray("bySender");
+        assertEquals(fixture.getSenders().size(), senders.length());
+        for (int i = 0; i < senders.length(); i++) {
+            JSONObject bucket = senders.getJSONObject(i);
+            assertEquals(fixture.countFrom(bucket.getString("sender")), bucket.getLong("count"));
+        }
+        long days = 0;
+        JSONArray byDay = buckets.getJSONArray("byDay");
+        for (int i = 0; i < byDay.length(); i++) {
+            days += byDay.getJSONObject(i).getLong("count");
+        }
+        assertEquals(fixture.getTotal(), days);
+    }
+
+    @Test
+    public void filteredStatsCountOnlyMatchingMessages() {
+        String sender = fixture.getSenders().get(7);
+        GetMessageFilterInput filter = filter(10);
+        filter.setSender(sender);
+        assertEquals(fixture.countFrom(sender), reader.getMessageStats(filter, false, false).getTotal());
+        assertEquals(fixture.countFrom(sender), reader.getMessageStats(filter, true, false).getTotal());
+
+        GetMessageFilterInput boxes = filter(10);
+        boxes.setBoxes(Arrays.asList("inbox"));
+        boxes.setSubscriptionIds(Arrays.asList(1));
+        assertEquals(fixture.countIn(1, 1), reader.getMessageStats(boxes, false, false).getTotal());
+    }
+
+    @Test
+    public void metricsRecordEveryStageOfARead() throws Exception {
+        CallMetrics metrics = new CallMetrics();
+        MessageRows page = reader.getMessages(filter(100), MessageReader.DEFAULT_TIMEOUT_MS, metrics);
+        metrics.finish();
+
+        Set<String> stages = metrics.getStageNanos().keySet();
+        for (String stage : Arrays.asList(CallMetrics.SMS_QUERY, CallMetrics.SMS_PIPELINE, CallMetrics.MMS_QUERY,
+                CallMetrics.MMS_ADDRESSES, CallMetrics.MMS_TEXTS, CallMetrics.MMS_PIPELINE, CallMetrics.MERGE,
+                CallMetrics.TOTAL)) {
+            assertTrue(stage, stages.contains(stage));
+        }
+        assertEquals(page.size(), metrics.getRows());
+        assertTrue(metrics.getProviderQueries() > 0);
+    }
+
+    @Test
+    public void snapshotServesKnownMmsAfterARestart() {
+        MmsSnapshot snapshot = new MmsSnapshot(RuntimeEnvironment.getApplication());
+        reader.setMmsSnapshot(snapshot);
+        MessageReader restarted = new MessageReader(RuntimeEnvironment.getApplication());
+        try {
+            MessageRows first = read(filter(200));
+
+            restarted.setMmsSnapshot(snapshot);
+            provider.resetQueries();
+            MessageRows second = read(restarted, filter(200));
+
+            assertEquals(0, provider.getQueries("addr"));
+            assertEquals(0, provider.getQueries("part"));
+            assertEquals(keys(first), keys(second));
+            for (int i = 0; i < first.size(); i++) {
+                assertEquals(first.getSender(i), second.getSender(i));
+                assertEquals(first.getBody(i), second.getBody(i));
+            }
+        } finally {
+            restarted.shutdown();
+            snapshot.delete();
+        }
+    }
+
+    @Test
+    public void boxAndSubscriptionFiltersArePartOfTheQuery() {
+        GetMessageFilterInput filter = filter(10000);
+        filter.setBoxes(Arrays.asList("sent"));
+        filter.setSubscriptionIds(Arrays.asList(2));
+
+        MessageRows page = read(filter);
+
+        assertEquals(fixture.countIn(2, 2), page.size());
+        for (int i = 0; i < page.size(); i++) {
+            assertEquals("sent", page.getBoxName(i));
+            assertEquals(2, page.getSubscriptionId(i));
+        }
+    }
+
+    @Test
+    public void regexAndTermFiltersMatchNativelyAndReturnCaptures() {
+        Pattern pattern = Pattern.compile("code is (\\w+)");
+        Map<String, String> expected = new LinkedHashMap<>();
+        MessageRows all = read(filter(10000));
+        for (int i = 0; i < all.size(); i++) {
+            String body = all.getBody(i).toLowerCase(Locale.ROOT);
+            Matcher matcher = pattern.matcher(all.getBody(i));
+            if ((body.contains("invoice") || body.contains("dinner")) && matcher.find()) {
+                expected.put(all.getMessageType(i) + ":" + all.getId(i), matcher.group(1));
+            }
+        }
+        assertFalse(expected.isEmpty());
+
+        GetMessageFilterInput filter = filter(10000);
+        filter.setBodyRegex("code is (\\w+)");
+        filter.setBodyAnyOf(Arrays.asList("INVOICE", "Dinner"));
+        filter.setCaptureGroups(true);
+        filter.setFields(Arrays.asList("id", "messageType", "captures"));
+        MessageRows page = read(filter);
+
+        Map<String, String> captured = new LinkedHashMap<>();
+        for (int i = 0; i < page.size(); i++) {
+            assertNull(page.getBody(i));
+            assertEquals(1, page.getCaptures(i).length);
+            captured.put(page.getMessageType(i) + ":" + page.getId(i), page.getCaptures(i)[0]);
+        }
+        assertEquals(expected, captured);
+    }
+
+    @Test
+    public void idFiltersReturnOnlyTheRequestedRows() {
+        GetMessageFilterInput filter = filter(100);
+        filter.setIds(Arrays.asList("1", "2", "3"));
+        MessageRows page = read(filter);
+
+        Set<String> ids = new HashSet<>();
+        for (int i = 0; i < page.size(); i++) {
+            ids.add(String.valueOf(page.getId(i)));
+        }
+        assertEquals(new HashSet<>(Arrays.asList("1", "2", "3")), ids);
+    }
+
+    @Test
+    @Config(sdk = 28) // SQLite before 3.32 binds at most 999 variables
+    public void largeIdAndSenderListsAreSplitUnderTheVariableLimit() {
+        List<String> ids = new ArrayList<>();
+        for (int i = 0; i < 10000; i++) {
+            // Every id twice, so chunks have to drop duplicates
+            ids.add(String.valueOf(i % 5000 + 1));
+        }
+        List<String> senders = new ArrayList<>(fixture.getSenders().subList(0, 10));
+        for (int i = 0; i < 3000; i++) {
+            senders.add(String.format(Locale.US, "+1666%07d", i));
+        }
+        int expected = 0;
+        for (String sender : fixture.getSenders().subList(0, 10)) {
+            expected += fixture.countFrom(sender);
+        }
+
+        GetMessageFilterInput filter = filter(10000);
+        filter.setIds(ids);
+        filter.setSenders(senders);
+        MessageRows page = read(filter);
+
+        GetMessageFilterInput bySender = filter(10000);
+        bySender.setSenders(fixture.getSenders().subList(0, 10));
+        assertEquals(expected, page.size());
+        assertEquals(keys(read(bySender)), keys(page));
+        assertEquals(expected, reader.getMessageStats(filter, false, false).getTotal());
+    }
+
+    private MessageRows read(GetMessageFilterInput filter) {
+        return read(reader, filter);
+    }
+
+    private static MessageRows read(MessageReader reader, GetMessageFilterInput filter) {
+        try {
+            return reader.getMessages(filter, MessageReader.DEFAULT_TIMEOUT_MS);
+        } catch (TimeoutException e) {
+            throw new AssertionError(e);
+        }
+    }
+
+    @Test
+    public void searchIndexSyncFindsEveryMessageContainingTheWord() throws Exception {
+        reader.setSearchIndex(new MessageSearchIndex(RuntimeEnvironment.getApplication()));
+        reader.syncSearchIndex(MessageReader.DEFAULT_TIMEOUT_MS);
+
+        Set<String> expected = new HashSet<>();
+        MessageRows all = read(filter(10000));
+        for (int i = 0; i < all.size(); i++) {
+            if (Arrays.asList(all.getBody(i).split("\\s+")).contains("invoice")) {
+                expected.add(all.getMessageType(i) + ":" + all.getId(i));
+            }
+        }
+        assertFalse(expected.isEmpty());
+
+        JSONArray hits = reader.searchMessages("invoice", 10000, false);
+
+        assertEquals(expected, hitKeys(hits));
+    }
+
+    @Test
+    public void searchIndexSyncOnlyReadsNewMessagesAfterTheNewestIsDeleted() throws Exception {
+        reader.setSearchIndex(new MessageSearchIndex(RuntimeEnvironment.getApplication()));
+        reader.syncSearchIndex(MessageReader.DEFAULT_TIMEOUT_MS);
+        int indexed = reader.searchMessages("invoice", 10000, false).length();
+
+        fixture.getDatabase().execSQL("DELETE FROM sms WHERE _id = " + fixture.getSmsCount());
+        fixture.getDatabase().execSQL("INSERT INTO sms (thread_id, address, body, date, type, read, sub_id) "
+                + "VALUES (1, '" + fixture.getSenders().get(0) + "', 'zebra crossing', "
+                + (MessageFixture.START_DATE + 365L * 24 * 3600 * 1000) + ", 1, 0, 1)");
+        provider.resetQueries();
+        reader.syncSearchIndex(MessageReader.DEFAULT_TIMEOUT_MS);
+
+        // A rebuild would have read the addresses and texts of every MMS again
+        assertEquals(0, provider.getQueries("addr"));
+        assertEquals(0, provider.getQueries("part"));
+        JSONArray hits = reader.searchMessages("zebra", 10, false);
+        assertEquals(1, hits.length());
+        assertEquals(String.valueOf(fixture.getSmsCount()), hits.getJSONObject(0).getString("id"));
+        assertTrue(reader.searchMessages("invoice", 10000, false).length() >= indexed - 1);
+    }
+
+    @Test
+    public void pagesWithoutSendersDoNotOverwriteTheIndex() throws Exception {
+        reader.setSearchIndex(new MessageSearchIndex(RuntimeEnvironment.getApplication()));
+        reader.syncSearchIndex(MessageReader.DEFAULT_TIMEOUT_MS);
+        String sender = fixture.getSenders().get(2);
+        int bySender = reader.searchMessages(sender.substring(1), 10000, false).length();
+        assertEquals(fixture.countFrom(sender), bySender);
+
+        GetMessageFilterInput filter = filter(10000);
+        filter.setFields(Arrays.asList("id", "body", "date", "messageType"));
+        read(filter);
+
+        assertEquals(bySender, reader.searchMessages(sender.substring(1), 10000, false).length());
+    }
+
+    @Test
+    public void mmsWithoutTextAreNotFoundByThePlaceholder() throws Exception {
+        long id = fixture.getMmsCount() + 1;
+        fixture.getDatabase().execSQL("INSERT INTO pdu (_id, thread_id, date, msg_box, read, sub_id) VALUES ("
+                + id + ", 1, " + (MessageFixture.START_DATE / 1000) + ", 1, 1, 1)");
+        fixture.getDatabase().execSQL("INSERT INTO addr (msg_id, address, type) VALUES ("
+                + id + ", '" + fixture.getSenders().get(0) + "', 137)");
+        reader.setSearchIndex(new MessageSearchIndex(RuntimeEnvironment.getApplication()));
+        reader.syncSearchIndex(MessageReader.DEFAULT_TIMEOUT_MS);
+
+        assertEquals(0, reader.searchMessages("text content", 10, false).length());
+    }
+
+    @Test
+    public void senderHitsOutrankBodyHits() throws Exception {
+        MessageSearchIndex index = new MessageSearchIndex(RuntimeEnvironment.getApplication());
+        try {
+            MessageRows rows = new MessageRows();
+            rows.add(MessageRows.TYPE_SMS, 1, 2000, "+15551234567", "see you");
+            rows.add(MessageRows.TYPE_SMS, 2, 1000, "+15550000001", "call 15551234567 back");
+            index.addAll(rows);
+
+            JSONArray hits = index.search("15551234567", 10, false);
+
+            assertEquals(2, hits.length());
+            assertEquals("1", hits.getJSONObject(0).getString("id"));
+            assertTrue(hits.getJSONObject(0).getDouble("score") > hits.getJSONObject(1).getDouble("score"));
+        } finally {
+            index.close();
+        }
+    }
+
+    @Test
+    public void onlyTheNewestMatchesAreRanked() throws Exception {
+        MessageSearchIndex index = new MessageSearchIndex(RuntimeEnvironment.getApplication());
+        try {
+            // The oldest message is the best match, but only ranks while it
+            // is among the newest MAX_RANKED_CANDIDATES matches
+            MessageRows rows = new MessageRows();
+            rows.add(MessageRows.TYPE_SMS, 1, 1, "+1555", "common common common common");
+            for (int i = 2; i <= MessageSearchIndex.MAX_RANKED_CANDIDATES; i++) {
+                rows.add(MessageRows.TYPE_SMS, i, i, "+1555", "common");
+            }
+            index.addAll(rows);
+            assertEquals("1", index.search("common", 1, false).getJSONObject(0).getString("id"));
+
+            MessageRows newer = new MessageRows();
+            newer.add(MessageRows.TYPE_SMS, MessageSearchIndex.MAX_RANKED_CANDIDATES + 1,
+                    MessageSearchIndex.MAX_RANKED_CANDIDATES + 1, "+1555", "common");
+            index.addAll(newer);
+            JSONArray hits = index.search("common", 1, false);
+
+            assertEquals(1, hits.length());
+            assertEquals(String.valueOf(MessageSearchIndex.MAX_RANKED_CANDIDATES + 1),
+                    hits.getJSONObject(0).getString("id"));
+        } finally {
+            index.close();
+        }
+    }
+
+    private static GetMessageFilterInput filter(int limit) {
+        GetMessageFilterInput filter = new GetMessageFilterInput();
+        filter.setLimit(limit);
+        return filter;
+    }
+
+    private List<MessageRows> batch(List<GetMessageFilterInput> filters) {
+        try {
+            return reader.getMessagesBatch(filters, MessageReader.DEFAULT_TIMEOUT_MS);
+        } catch (TimeoutException e) {
+            throw new AssertionError(e);
+        }
+    }
+
+    private static Set<String> hitKeys(JSONArray hits) throws Exception {
+        Set<String> keys = new HashSet<>();
+        for (int i = 0; i < hits.length(); i++) {
+            JSONObject hit = hits.getJSONObject(i);
+            keys.add(hit.getString("messageType") + ":" + hit.getString("id"));
+        }
+        return keys;
+    }
+
+    private static List<String> keys(MessageRows rows) {
+        List<String> keys = new ArrayList<>(rows.size());
+        for (int i = 0; i < rows.size(); i++) {
+            keys.add(rows.getMessageType(i) + ":" + rows.getId(i));
+        }
+        return keys;
+    }
+}
@@ -0,0 +1,70 @@
+package ai.soliman.plugins.messagereader;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import org.junit.Test;
+
+public class SelectionChunksTest {
+
+    @Test
+    public void shortListsStayInOneChunk() {
+        List<String> ids = ids(10);
+        List<List<String>> chunks = SelectionChunks.split(ids, 999);
+        assertEquals(1, chunks.size());
+        assertEquals(ids, chunks.get(0));
+
+        assertEquals(1, SelectionChunks.split(Collections.<String>emptyList(), 999).size());
+    }
+
+    @Test
+    public void tenThousandIdsAreSplitUnderTheLegacyLimit() {
+        List<String> ids = ids(10000);
+        int max = SelectionChunks.maxIdsPerQuery(22);
+        List<List<String>> chunks = SelectionChunks.split(ids, max);
+
+        assertEquals((10000 + max - 1) / max, chunks.size());
+        List<String> merged = new ArrayList<>();
+        for (List<String> chunk : chunks) {
+            assertTrue(chunk.size() + SelectionChunks.RESERVED_VARIABLES <= SelectionChunks.LEGACY_MAX_VARIABLES);
+            merged.addAll(chunk);
+        }
+        assertEquals(ids, merged);
+    }
+
+    @Test
+    public void newerDevicesUseTheLargerLimit() {
+        assertEquals(SelectionChunks.MAX_VARIABLES, SelectionChunks.maxVariables(31));
+        assertEquals(SelectionChunks.LEGACY_MAX_VARIABLES, SelectionChunks.maxVariables(30));
+        assertEquals(SelectionChunks.MAX_VARIABLES - SelectionChunks.RESERVED_VARIABLES, SelectionChunks.maxIdsPerQuery(31));
+        assertEquals(1, SelectionChunks.split(ids(10000), SelectionChunks.maxIdsPerQuery(31)).size());
+    }
+
+    @Test
+    public void secondListsGetWhatTheFirstDoesNotNeedButAtLeastHalf() {
+        assertEquals(900, SelectionChunks.secondListShare(0, 3000, 900));
+        assertEquals(800, SelectionChunks.secondListShare(100, 3000, 900));
+        assertEquals(450, SelectionChunks.secondListShare(10000, 3000, 900));
+        assertEquals(20, SelectionChunks.secondListShare(10000, 20, 900));
+    }
+
+    @Test
+    public void distinctKeepsTheFirstOccurrence() {
+        List<String> ids = ids(5);
+        assertSame(ids, SelectionChunks.distinct(ids));
+
+        List<String> repeated = new ArrayList<>(ids);
+        repeated.addAll(ids(3));
+        assertEquals(ids, SelectionChunks.distinct(repeated));
+    }
+
+    private static List<String> ids(int count) {
+        List<String> ids = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            ids.add(String.valueOf(i + 1));
+        }
+        return ids;
+    }
+}
@@ -0,0 +1,45 @@
+package ai.soliman.plugins.messagereader;
+
+import static org.junit.Assert.*;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import org.junit.Test;
+
+public class SenderIndexTest {
+
+    @Test
+    public void formattingVariantsNormalizeToTheSameKey() {
+        String key = SenderIndex.normalize("5551234567");
+        assertEquals(key, SenderIndex.normalize("+1 555 123 4567"));
+        assertEquals(key, SenderIndex.normalize("(555) 123-4567"));
+        assertEquals(key, SenderIndex.normalize("001-555-123-4567"));
+    }
+
+    @Test
+    public void shortCodesAndNamesAreKeptWhole() {
+        assertEquals("12345", SenderIndex.normalize("12345"));
+        assertEquals("mybank", SenderIndex.normalize(" MyBank "));
+        assertEquals("user@example.com", SenderIndex.normalize("User@Example.com"));
+        assertFalse(SenderIndex.normalize("Bank1").equals(SenderIndex.normalize("1")));
+    }
+
+    @Test
+    public void resolveReturnsEveryStoredVariant() {
+        SenderIndex index = new SenderIndex();
+        index.add("+15551234567");
+        index.add("(555) 123-4567");
+        index.add("5559999999");
+
+        List<String> resolved = index.resolve(Collections.singletonList("555-123-4567"));
+        assertEquals(Arrays.asList("555-123-4567", "+15551234567", "(555) 123-4567"), resolved);
+    }
+
+    @Test
+    public void unknownSendersStillMatchExactly() {
+        SenderIndex index = new SenderIndex();
+        assertEquals(Arrays.asList("+447700900123", "MyBank"),
+                index.resolve(Arrays.asList("+447700900123", "MyBank")));
+    }
+}
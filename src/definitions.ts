@@ -1,4 +1,4 @@
-import type { PermissionState } from '@capacitor/core';
+import type { PermissionState, PluginListenerHandle } from '@capacitor/core';
 
 /**
  * Represents the permission status for accessing messages.
@@ -9,7 +9,8 @@ export interface PermissionStatus {
 }
 
 /**
- * Represents a message object with its properties.
+ * Represents a message object with its properties, as read with the default
+ * `detail: 'full'` and no `fields`.
  */
 export interface MessageObject {
   /** Unique identifier of the message. */
@@ -22,8 +23,33 @@ export interface MessageObject {
   sender: string;
   /** Content of the message. */
   body: string;
+  /** Box the message is in. Absent with `detail: 'ids'`. */
+  type?: MessageBox;
+  /**
+   * SIM subscription the message was sent or received on, or -1 when the
+   * provider does not know it. Absent when it was not read: with
+   * `detail: 'ids'`, when `fields` leaves it out, or on devices whose
+   * providers have no `sub_id` column.
+   */
+  subscriptionId?: number;
+  /**
+   * Groups of the first `bodyRegex` match, or the whole match when the regex
+   * has no groups. Only present with `captureGroups: true`.
+   */
+  captures?: (string | null)[];
 }
 
+/**
+ * A message read with a lighter `detail` level or narrowed by `fields`.
+ * `detail: 'ids'` leaves out `sender`, `body`, `type` and `subscriptionId`,
+ * `detail: 'headers'` leaves out `body`, and `fields` leaves out every
+ * property it does not list.
+ */
+export type PartialMessageObject = Partial<MessageObject>;
+
+/** Box of a message. MMS are never `queued`. */
+export type MessageBox = 'inbox' | 'sent' | 'draft' | 'outbox' | 'failed' | 'queued';
+
 /**
  * Input parameters for filtering messages.
  */
@@ -32,6 +58,17 @@ export interface GetMessageFilterInput {
   ids?: string[];
   /** Text to search for in the message body. */
   body?: string;
+  /**
+   * Java regex the body must contain a match of, e.g. `'code:? (\\d{6})'`.
+   * Use inline flags such as `(?i)` for case-insensitive matching.
+   */
+  bodyRegex?: string;
+  /** Only messages whose body contains at least one of these terms, ignoring case. */
+  bodyAnyOf?: string[];
+  /** Only messages whose body contains all of these terms, ignoring case. */
+  bodyAllOf?: string[];
+  /** Return the groups of the `bodyRegex` match as `captures`. */
+  captureGroups?: boolean;
   /** Phone number or address to filter by. */
   sender?: string;
   /** Minimum date (in milliseconds since epoch) to filter messages. */
@@ -44,6 +81,370 @@ export interface GetMessageFilterInput {
   indexTo?: number;
   /** Maximum number of messages to return. */
   limit?: number;
+  /**
+   * Most messages the page may hold, whatever `limit` is. Defaults to 10000.
+   * A page cut short by it is `truncated`.
+   */
+  maxRows?: number;
+  /**
+   * Estimated memory the page may take on the native side, in bytes: 64 per
+   * message plus 2 per character of sender and body. Defaults to 16 MiB.
+   * A page cut short by it is `truncated`.
+   */
+  maxBytes?: number;
+  /**
+   * Opaque continuation token returned as `nextPageToken` by a previous call.
+   * Resumes right after the last message of that page without re-scanning it.
+   */
+  pageToken?: string;
+  /** Only return messages from one of these phone numbers or addresses. */
+  senders?: string[];
+  /**
+   * Match `sender` and `senders` ignoring formatting and country prefixes, so
+   * "+1 555 123 4567" also matches "(555) 123-4567". Defaults to false.
+   */
+  normalizeSenders?: boolean;
+  /**
+   * How much of each message to load: `ids` (id, date, type), `headers` (adds
+   * sender) or `full` (adds body, the default). Lighter levels skip the MMS
+   * address and part tables.
+   */
+  detail?: 'ids' | 'headers' | 'full';
+  /**
+   * Only return these fields of each message; the others are absent from the
+   * returned objects. Leaving out `sender` or `body` also keeps them from
+   * being read from the providers.
+   */
+  fields?: MessageField[];
+  /** Cut bodies to at most this many characters, in the provider query when it allows it. */
+  bodyPreviewLength?: number;
+  /** Only return messages of this conversation (see `getConversations`). */
+  threadId?: string;
+  /** Only return messages in these boxes. */
+  boxes?: MessageBox[];
+  /** Only return messages of these SIM subscriptions. */
+  subscriptionIds?: number[];
+  /**
+   * Maximum time in milliseconds to wait for `getMessages`, after which the call
+   * is rejected with code `TIMEOUT`. Defaults to 30000. `streamMessages` and
+   * `getMessagesSince` apply it to the whole walk and default to 600000.
+   */
+  timeout?: number;
+  /** Return per-stage `diagnostics` for this call even when metrics mode is off. */
+  diagnostics?: boolean;
+  /**
+   * `objects` (default) returns `messages`. `compact` returns the rows as a
+   * `CompactMessagesResult`, to be decoded with `decodeMessages`.
+   */
+  format?: 'objects' | 'compact';
+}
+
+/** A message property, as listed in `fields`. */
+export type MessageField = 'id' | 'sender' | 'body' | 'date' | 'messageType' | 'type' | 'subscriptionId' | 'captures';
+
+/**
+ * A page in the compact wire format: `payload` is a JSON string holding one
+ * array per message, with the values in the order of `fields`. Use
+ * `decodeMessages` or `decodeMessagesResult` to read it.
+ */
+export interface CompactMessagesResult {
+  fields: MessageField[];
+  payload: string;
+  /** Token to pass as `pageToken` to fetch the next page. Absent on the last page. */
+  nextPageToken?: string;
+  /** Set when `maxRows` or `maxBytes` cut the page short. See `GetMessagesResult.truncated`. */
+  truncated?: boolean;
+  /** Timings of the call, present in metrics mode or when `diagnostics` was set. */
+  diagnostics?: CallDiagnostics;
+}
+
+/**
+ * A page of messages. Filters with a lighter `detail` or with `fields` get a
+ * `GetMessagesResult<PartialMessageObject>`.
+ */
+export interface GetMessagesResult<M extends PartialMessageObject = MessageObject> {
+  /** Messages ordered by date, newest first. */
+  messages: M[];
+  /** Token to pass as `pageToken` to fetch the next page. Absent on the last page. */
+  nextPageToken?: string;
+  /**
+   * Set when `maxRows` or `maxBytes` cut the page short; `nextPageToken`
+   * then resumes after the last message. A message that alone is over
+   * `maxBytes` comes as the only message of its page, with its body cut.
+   */
+  truncated?: boolean;
+  /** Timings of the call, present in metrics mode or when `diagnostics` was set. */
+  diagnostics?: CallDiagnostics;
+}
+
+/**
+ * Time spent in one stage of a read.
+ */
+export interface StageTiming {
+  ms: number;
+  /** Number of times the stage ran, e.g. once per MMS batch. */
+  count: number;
+  /** Rows or message ids handled by the stage. */
+  rows: number;
+}
+
+/**
+ * Per-stage timings and counts of one call. Stages nest: `smsPipeline` and
+ * `mmsPipeline` run in parallel and include their queries, `mmsTexts` includes
+ * `partStreams`, and `total` spans the whole call.
+ */
+export interface CallDiagnostics {
+  stages: Partial<Record<
+    | 'smsQuery'
+    | 'smsPipeline'
+    | 'mmsQuery'
+    | 'mmsSnapshot'
+    | 'mmsAddresses'
+    | 'mmsTexts'
+    | 'partStreams'
+    | 'mmsPipeline'
+    | 'merge'
+    | 'json'
+    | 'total',
+    StageTiming
+  >>;
+  /** Messages returned. */
+  rows: number;
+  /** Characters of the returned senders and bodies. */
+  textChars: number;
+  providerQueries: number;
+  streamOpens: number;
+  streamChars: number;
+  /** True when the page came from the result cache. */
+  cacheHit: boolean;
+}
+
+/**
+ * Percentiles of one stage over the recent calls.
+ */
+export interface StagePercentiles {
+  samples: number;
+  p50Ms: number;
+  p90Ms: number;
+  p99Ms: number;
+  maxMs: number;
+}
+
+/**
+ * Rolling metrics collected while metrics mode is enabled.
+ */
+export interface MessageMetrics {
+  /** Whether metrics mode is enabled. The other fields are absent when it is not. */
+  enabled: boolean;
+  /** Number of recent calls the percentiles are computed over. */
+  windowSize?: number;
+  calls?: number;
+  cacheHits?: number;
+  rows?: number;
+  textChars?: number;
+  providerQueries?: number;
+  streamOpens?: number;
+  streamChars?: number;
+  stages?: Record<string, StagePercentiles>;
+}
+
+/**
+ * An MMS part, as listed by `getMessageParts`.
+ */
+export interface MessagePartInfo {
+  partId: string;
+  contentType: string;
+  name?: string;
+  /** True when the content is stored in a file rather than inline. */
+  stored: boolean;
+}
+
+/**
+ * A chunk of an MMS part: `text` for text parts, base64 `data` otherwise.
+ */
+export interface MessagePart {
+  partId: string;
+  contentType: string;
+  text?: string;
+  data?: string;
+  /** Where the chunk starts, in characters for `text` and bytes for `data`. */
+  offset: number;
+  /** True when the part continues past this chunk. */
+  hasMore: boolean;
+}
+
+/**
+ * Summary of a conversation thread.
+ */
+export interface Conversation {
+  /** Thread id, usable as the `threadId` filter of `getMessages`. */
+  threadId: string;
+  /** Timestamp of the latest message in milliseconds since epoch. */
+  date: number;
+  /** Text of the latest message. */
+  snippet: string;
+  /** Total number of messages in the thread. */
+  messageCount: number;
+  /** Number of unread messages in the thread. */
+  unreadCount: number;
+  /** False when the thread has unread messages. */
+  read: boolean;
+  /** Addresses of the other participants. */
+  recipients: string[];
+}
+
+/**
+ * Options for `getMessageStats`: the message filter plus which buckets to compute.
+ */
+export interface MessageStatsOptions extends GetMessageFilterInput {
+  /** Count messages per sender. Defaults to true. */
+  bySender?: boolean;
+  /** Count messages per day, in the device's time zone. Defaults to true. */
+  byDay?: boolean;
+}
+
+/**
+ * Aggregates over every message matching a filter; page options are ignored.
+ */
+export interface MessageStats {
+  total: number;
+  smsCount: number;
+  mmsCount: number;
+  /** Oldest message date, absent when nothing matched. */
+  minDate?: number;
+  /** Newest message date, absent when nothing matched. */
+  maxDate?: number;
+  /** Senders by descending count. */
+  bySender?: { sender: string; count: number; lastDate: number }[];
+  /** Days in ascending order, as `YYYY-MM-DD`. */
+  byDay?: { day: string; count: number }[];
+}
+
+/**
+ * Options for an incremental sync.
+ */
+export interface GetMessagesSinceOptions extends GetMessageFilterInput {
+  /** Watermark returned by the previous sync. Omit it for the first, full sync. */
+  watermark?: string;
+  /** SMS ids the client already holds, to detect deletions. */
+  knownSmsIds?: string[];
+  /** MMS ids the client already holds, to detect deletions. */
+  knownMmsIds?: string[];
+}
+
+/**
+ * Result of an incremental sync.
+ */
+export interface GetMessagesSinceResult {
+  /** Messages added since the watermark, newest first. */
+  messages: MessageObject[];
+  /** Watermark to persist and pass to the next sync. */
+  watermark: string;
+  /** Ids from `knownSmsIds` that no longer exist. */
+  deletedSmsIds: string[];
+  /** Ids from `knownMmsIds` that no longer exist. */
+  deletedMmsIds: string[];
+  /**
+   * True when no message seen by the previous sync is left, as after the
+   * message store was recreated: the local copy should be replaced by
+   * `messages`. Deleting the newest messages does not reset the sync.
+   */
+  reset: boolean;
+}
+
+/**
+ * Options for streaming messages.
+ */
+export interface StreamMessagesOptions extends GetMessageFilterInput {
+  /** Number of messages per batch. Defaults to 50. */
+  batchSize?: number;
+}
+
+/**
+ * A batch of messages delivered by `streamMessages`.
+ */
+export interface MessageBatch {
+  /** Identifier of the stream, used to cancel it. */
+  streamId: string;
+  /** Messages of this batch, ordered by date, newest first. */
+  messages: MessageObject[];
+  /** True on the last result of the stream. */
+  done: boolean;
+  /** True when the stream ended because it was cancelled. */
+  cancelled?: boolean;
+}
+
+export type MessageBatchCallback = (batch: MessageBatch | null, err?: any) => void;
+
+/**
+ * Provider work done by the plugin since start or since the last reset.
+ */
+export interface QueryStats {
+  /** Number of content provider queries issued. */
+  providerQueries: number;
+  /** Number of MMS part streams opened. */
+  streamOpens: number;
+  /** Number of characters read from MMS part streams. */
+  streamChars: number;
+}
+
+/**
+ * Options for the in-memory result cache of `getMessages`.
+ */
+export interface CacheOptions {
+  /** Enables the cache when true (default), disables and clears it when false. */
+  enabled?: boolean;
+  /** Maximum number of cached results. Defaults to 32. */
+  maxEntries?: number;
+  /** Maximum estimated size of the cached results, in bytes. Defaults to 4 MB. */
+  maxBytes?: number;
+}
+
+/**
+ * Statistics of the result cache.
+ */
+export interface CacheStats {
+  /** Whether the cache is enabled. The other fields are absent when it is not. */
+  enabled: boolean;
+  entries?: number;
+  bytes?: number;
+  maxEntries?: number;
+  maxBytes?: number;
+  hits?: number;
+  misses?: number;
+  evictions?: number;
+  /** Number of times the cache was dropped because SMS or MMS changed. */
+  invalidations?: number;
+}
+
+/**
+ * Options for a full-text search.
+ */
+export interface SearchMessagesOptions {
+  /** Free text; every word must match. */
+  query: string;
+  /** Maximum number of results. Defaults to 50. */
+  limit?: number;
+  /** When true (default), each word also matches longer words starting with it. */
+  prefix?: boolean;
+}
+
+/**
+ * A message returned by a full-text search.
+ */
+export interface SearchHit extends MessageObject {
+  /** Relevance of the hit; higher is better. */
+  score: number;
+}
+
+/**
+ * Result of a full-text search.
+ */
+export interface SearchMessagesResult {
+  /** Matching messages, most relevant first. */
+  messages: SearchHit[];
+  /** True while the index is still catching up with the inbox. */
+  indexing: boolean;
 }
 
 /**
@@ -53,9 +454,153 @@ export interface MessageReaderPlugin {
   /**
    * Retrieves messages based on the provided filter criteria.
    * @param filter - The filter criteria to apply when fetching messages.
-   * @returns A promise that resolves with an array of filtered MessageObject.
+   * @returns A promise that resolves with an array of filtered MessageObject and the next page token.
+   */
+  getMessages(filter: GetMessageFilterInput & { format: 'compact' }): Promise<CompactMessagesResult>;
+  getMessages(
+    filter: GetMessageFilterInput & { detail: 'ids' | 'headers' },
+  ): Promise<GetMessagesResult<PartialMessageObject>>;
+  getMessages(
+    filter: GetMessageFilterInput & { fields: MessageField[] },
+  ): Promise<GetMessagesResult<PartialMessageObject>>;
+  getMessages(filter: GetMessageFilterInput): Promise<GetMessagesResult>;
+
+  /**
+   * Runs several `getMessages` filters in one call. Filters that differ only in
+   * `ids`, or only in `sender`/`senders`, share their provider queries.
+   * @returns One result per filter, in the same order.
+   */
+  getMessagesBatch(options: {
+    filters: GetMessageFilterInput[];
+    timeout?: number;
+    diagnostics?: boolean;
+    format: 'compact';
+  }): Promise<{ results: CompactMessagesResult[]; diagnostics?: CallDiagnostics }>;
+  getMessagesBatch(options: {
+    filters: GetMessageFilterInput[];
+    timeout?: number;
+    diagnostics?: boolean;
+    format?: 'objects';
+  }): Promise<{ results: GetMessagesResult<PartialMessageObject>[]; diagnostics?: CallDiagnostics }>;
+
+  /**
+   * Retrieves one page of conversations, newest first, from a single threads
+   * query. Page through a conversation with the `threadId` filter of `getMessages`.
+   * @param options - Paging options; `limit` defaults to 50.
+   */
+  getConversations(options?: { indexFrom?: number; limit?: number }): Promise<{ conversations: Conversation[] }>;
+
+  /**
+   * Lists the parts of an MMS without reading their content.
+   */
+  getMessageParts(options: { mmsId: string }): Promise<{ parts: MessagePartInfo[] }>;
+
+  /**
+   * Reads a chunk of a single MMS part on demand. `length` defaults to and
+   * is capped at 786432 characters or bytes; read the next chunk from
+   * `offset + length` while `hasMore` is true.
+   */
+  getMessagePart(options: { mmsId: string; partId: string; offset?: number; length?: number }): Promise<MessagePart>;
+
+  /**
+   * Computes counts, the date range and per-sender and per-day buckets natively,
+   * returning only the aggregates.
+   * @param options - Filter options and which buckets to compute.
+   */
+  getMessageStats(options?: MessageStatsOptions): Promise<MessageStats>;
+
+  /**
+   * Retrieves only the messages added since a previous sync, and reports which
+   * of the known ids were deleted. Paging options are ignored.
+   * @param options - The watermark, the known ids and optional filter criteria.
+   * @returns A promise that resolves with the new messages and the next watermark.
+   */
+  getMessagesSince(options: GetMessagesSinceOptions): Promise<GetMessagesSinceResult>;
+
+  /**
+   * Streams messages in batches while the cursors are still being read.
+   * Without a limit the whole matching inbox is streamed.
+   * @param options - The filter criteria and batch size.
+   * @param callback - Called for every batch, and a last time with `done: true`.
+   * @returns A promise that resolves with the stream id.
+   */
+  streamMessages(options: StreamMessagesOptions, callback: MessageBatchCallback): Promise<string>;
+
+  /**
+   * Cancels a running stream. Its callback receives a last batch with `done: true`.
+   * @param options - The id of the stream to cancel.
+   */
+  cancelStream(options: { streamId: string }): Promise<void>;
+
+  /**
+   * Returns how many provider queries and part stream reads have been made.
+   * @param options - Set `reset` to clear the counters after reading them.
+   */
+  getQueryStats(options?: { reset?: boolean }): Promise<QueryStats>;
+
+  /**
+   * Enables or disables metrics mode. While enabled, `getMessages` and
+   * `getMessagesBatch` results carry `diagnostics` and their timings are kept
+   * for `getMetrics`.
+   * @param options - Set `enabled` to false to turn it off; `windowSize` is the number of calls kept (default 256).
+   */
+  configureMetrics(options: { enabled?: boolean; windowSize?: number }): Promise<void>;
+
+  /**
+   * Returns p50/p90/p99/max durations per stage over the recent calls.
+   * @param options - Set `reset` to clear the metrics after reading them.
+   */
+  getMetrics(options?: { reset?: boolean }): Promise<MessageMetrics>;
+
+  /**
+   * Enables, resizes or disables the in-memory cache of `getMessages` results.
+   * Cached results are dropped as soon as an SMS or MMS changes.
+   * @param options - The cache options.
+   */
+  configureCache(options: CacheOptions): Promise<void>;
+
+  /**
+   * Returns hit, miss and eviction counts of the result cache.
+   */
+  getCacheStats(): Promise<CacheStats>;
+
+  /**
+   * Enables or disables the on-device full-text search index. Enabling it
+   * indexes the inbox once in the background, then only new messages.
+   * @param options - Set `enabled` to false to stop maintaining the index.
+   */
+  configureSearchIndex(options: { enabled?: boolean }): Promise<void>;
+
+  /**
+   * Enables or disables the persistent MMS snapshot. Resolved MMS senders and
+   * bodies are kept in a private database across restarts, so only new or
+   * changed MMS are read from the provider's addr and part tables.
+   * @param options - Set `enabled` to false to stop using it and delete its database.
+   */
+  configureMmsSnapshot(options: { enabled?: boolean }): Promise<void>;
+
+  /**
+   * Searches message bodies and senders through the full-text index.
+   * Rejects when the index is not enabled.
+   * @param options - The query and search options.
+   */
+  searchMessages(options: SearchMessagesOptions): Promise<SearchMessagesResult>;
+
+  /**
+   * Listens for messages received in the SMS/MMS inboxes while subscribed.
+   * Change notifications are debounced and only the new rows are read. An MMS
+   * is reported once its text is stored, or without text after a minute.
+   * @param listenerFunc - Called once per new message, oldest first.
+   */
+  addListener(
+    eventName: 'messageReceived',
+    listenerFunc: (message: MessageObject) => void,
+  ): Promise<PluginListenerHandle>;
+
+  /**
+   * Removes all listeners, which also stops observing the message stores.
    */
-  getMessages(filter: GetMessageFilterInput): Promise<{ messages: MessageObject[] }>;
+  removeAllListeners(): Promise<void>;
 
   /**
    * Checks the current permission status for accessing messages.
@@ -5,5 +5,6 @@ import type { MessageReaderPlugin } from './definitions';
 const MessageReader = registerPlugin<MessageReaderPlugin>('MessageReader');
 
 export * from './definitions';
+export * from './wire';
 export { MessageReader };
 
@@ -0,0 +1,43 @@
+import type { CompactMessagesResult, GetMessagesResult, PartialMessageObject } from './definitions';
+
+/**
+ * Decodes the messages of a page returned with `format: 'compact'`.
+ * Properties that are null on the native side are left out, as in the
+ * `objects` format.
+ */
+export function decodeMessages(result: CompactMessagesResult): PartialMessageObject[] {
+  const rows = JSON.parse(result.payload) as unknown[][];
+  const fields = result.fields;
+  const messages = new Array<PartialMessageObject>(rows.length);
+  for (let i = 0; i < rows.length; i++) {
+    const row = rows[i];
+    const message: Record<string, unknown> = {};
+    for (let f = 0; f < fields.length; f++) {
+      const value = row[f];
+      if (value === null) {
+        continue;
+      }
+      // Ids travel as numbers to keep the payload small
+      message[fields[f]] = fields[f] === 'id' ? String(value) : value;
+    }
+    messages[i] = message as unknown as PartialMessageObject;
+  }
+  return messages;
+}
+
+/**
+ * Turns a compact page into the same shape as an `objects` page.
+ */
+export function decodeMessagesResult(result: CompactMessagesResult): GetMessagesResult<PartialMessageObject> {
+  const decoded: GetMessagesResult<PartialMessageObject> = { messages: decodeMessages(result) };
+  if (result.nextPageToken !== undefined) {
+    decoded.nextPageToken = result.nextPageToken;
+  }
+  if (result.truncated !== undefined) {
+    decoded.truncated = result.truncated;
+  }
+  if (result.diagnostics !== undefined) {
+    decoded.diagnostics = result.diagnostics;
+  }
+  return decoded;
+}